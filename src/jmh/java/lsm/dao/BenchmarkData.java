@@ -0,0 +1,62 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Keys and values of given size for benchmarks. Keys are ordered as their numbers:
+ * a number is zero-padded to the key size, so sizes below 10 bytes can't hold every int.
+ */
+final class BenchmarkData {
+    private static final int NUMBER_DIGITS = 10;
+
+    private BenchmarkData() {
+    }
+
+    static MemorySegment key(int number, int size) {
+        if (size < NUMBER_DIGITS) {
+            throw new IllegalArgumentException("Key size must be at least " + NUMBER_DIGITS);
+        }
+        byte[] key = new byte[size];
+        Arrays.fill(key, (byte) 'k');
+        byte[] digits = String.format("%0" + NUMBER_DIGITS + "d", number).getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(digits, 0, key, size - NUMBER_DIGITS, NUMBER_DIGITS);
+        return MemorySegment.ofArray(key);
+    }
+
+    /**
+     * Key which isn't equal to any {@link #key} of the same size, but is ordered right after the number.
+     */
+    static MemorySegment missingKey(int number, int size) {
+        MemorySegment key = key(number, size);
+        byte[] missing = Arrays.copyOf(key.toByteArray(), size + 1);
+        missing[size] = '_';
+        return MemorySegment.ofArray(missing);
+    }
+
+    /**
+     * Key ordered as its number, which differs from others in the first 8 bytes: numbers up to {@code count}
+     * are spread evenly over all longs, unlike {@link #key}, where keys share a long common prefix.
+     */
+    static MemorySegment spreadKey(long number, long count, int size) {
+        if (size < Long.BYTES) {
+            throw new IllegalArgumentException("Key size must be at least " + Long.BYTES);
+        }
+        long spread = number * Long.divideUnsigned(-1L, count);
+        byte[] key = new byte[size];
+        Arrays.fill(key, (byte) 'k');
+        for (int i = 0; i < Long.BYTES; i++) {
+            // keys are compared by signed bytes
+            key[i] = (byte) ((spread >>> (Long.SIZE - Byte.SIZE * (i + 1))) ^ 0x80);
+        }
+        return MemorySegment.ofArray(key);
+    }
+
+    static MemorySegment value(int number, int size) {
+        byte[] value = new byte[size];
+        Arrays.fill(value, (byte) ('a' + number % 26));
+        return MemorySegment.ofArray(value);
+    }
+}
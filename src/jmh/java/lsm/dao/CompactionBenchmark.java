@@ -0,0 +1,78 @@
+package lsm.dao;
+
+import lsm.BaseEntry;
+import lsm.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import service.FileUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wall time of {@link LsmDao#compact()} of {@code tables} tables into one, including waiting for it in close.
+ * Background compaction is off, so tables are merged only by the measured call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.foreign"})
+public class CompactionBenchmark {
+    private static final int KEYS = 400_000;
+
+    @Param({"4", "16"})
+    private int tables;
+
+    @Param({"DENSE", "BLOCK"})
+    private Config.TableFormat format;
+
+    @Param({"16"})
+    private int keySize;
+
+    @Param({"16"})
+    private int valueSize;
+
+    private Path dir;
+    private LsmDao dao;
+
+    @Setup(Level.Invocation)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("compaction");
+        Config config = new Config(dir, Long.MAX_VALUE)
+                .withTableFormat(format)
+                .withCompaction(Config.Compaction.DEFAULT.withStrategy(Config.Compaction.Strategy.NONE));
+        dao = new LsmDao(config);
+        for (int t = 0; t < tables; t++) {
+            for (int i = t; i < KEYS; i += tables) {
+                dao.upsert(new BaseEntry<>(BenchmarkData.key(i, keySize), BenchmarkData.value(i, valueSize)));
+            }
+            dao.flush();
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        FileUtils.recursiveDelete(dir);
+    }
+
+    @Benchmark
+    public void compact() throws IOException {
+        dao.compact();
+        dao.close();
+    }
+}
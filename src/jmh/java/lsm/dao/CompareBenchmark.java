@@ -0,0 +1,77 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Utils#compareMemorySegments} of keys which differ only in the last byte, the worst case of a lookup,
+ * and of keys which differ in the first one. Keys are on heap and in native memory, as in memory tables and tables.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.foreign"})
+public class CompareBenchmark {
+    @Param({"8", "16", "64", "256", "1024"})
+    private int keySize;
+
+    @Param({"false", "true"})
+    private boolean nativeKeys;
+
+    private MemorySegment key;
+    private MemorySegment lastDiffers;
+    private MemorySegment firstDiffers;
+
+    @Setup
+    public void setup() {
+        byte[] bytes = new byte[keySize];
+        Arrays.fill(bytes, (byte) 'k');
+        key = segment(bytes);
+        bytes[keySize - 1]++;
+        lastDiffers = segment(bytes);
+        bytes[keySize - 1]--;
+        bytes[0]++;
+        firstDiffers = segment(bytes);
+    }
+
+    @Benchmark
+    public int lastByteDiffers() {
+        return Utils.compareMemorySegments(key, lastDiffers);
+    }
+
+    @Benchmark
+    public int firstByteDiffers() {
+        return Utils.compareMemorySegments(key, firstDiffers);
+    }
+
+    @Benchmark
+    public int equal() {
+        return Utils.compareMemorySegments(key, key);
+    }
+
+    private MemorySegment segment(byte[] bytes) {
+        MemorySegment heap = MemorySegment.ofArray(bytes.clone());
+        if (!nativeKeys) {
+            return heap;
+        }
+        MemorySegment copy = MemorySegment.allocateNative(bytes.length, ResourceScope.globalScope());
+        copy.copyFrom(heap);
+        return copy;
+    }
+}
@@ -0,0 +1,155 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import lsm.BaseEntry;
+import lsm.Entry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import service.FileUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point lookup latency in one dense table with key prefixes in the index (version 3) and without them (version 2).
+ * Random lookups are interesting when the table doesn't fit in the page cache: every probe of binary search
+ * without prefixes may fault a page of the table file, with prefixes most probes stay in the index.
+ * Run it with {@code -p entries=...} big enough for the table to exceed free memory, or under a memory limit,
+ * e.g. {@code systemd-run --scope -p MemoryMax=1G ./gradlew jmh}.
+ * Writing such a table takes a while, so with {@code -p dir=...} tables are kept there and reused by later runs.
+ * <p>
+ * {@code NUMBERED} keys share 8 first bytes, so prefixes don't help them, {@code SPREAD} ones differ in them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.foreign"})
+public class DenseLookupBenchmark {
+    private static final int LOOKUP_KEYS = 1 << 16;
+
+    public enum Keys {
+        NUMBERED,
+        SPREAD
+    }
+
+    @Param({"2", "3"})
+    private int version;
+
+    @Param({"NUMBERED", "SPREAD"})
+    private Keys keys;
+
+    @Param({"1000000"})
+    private int entries;
+
+    @Param({"16"})
+    private int keySize;
+
+    @Param({"100"})
+    private int valueSize;
+
+    /**
+     * Directory to keep tables between runs, by default they are written to a temporary one and deleted.
+     */
+    @Param({""})
+    private String dir;
+
+    private Path tablesDir;
+    private SSTable table;
+    private MemorySegment[] hits;
+    private MemorySegment[] misses;
+
+    @Setup
+    public void setup() throws IOException {
+        tablesDir = dir.isEmpty() ? Files.createTempDirectory("dense-lookup") : Files.createDirectories(Path.of(dir));
+        Path tablePath = tablesDir.resolve("v" + version + "-" + keys + "-" + entries + "-" + keySize + "-" + valueSize);
+        Path indexPath = Utils.withSuffix(tablePath, SSTable.INDEX);
+        if (!Files.exists(tablePath) || !Files.exists(indexPath)) {
+            Path tableTemp = Utils.withSuffix(tablePath, SSTable.TEMP);
+            Path indexTemp = Utils.withSuffix(indexPath, SSTable.TEMP);
+            Files.deleteIfExists(tableTemp);
+            Files.deleteIfExists(indexTemp);
+            Files.createFile(tableTemp);
+            Files.createFile(indexTemp);
+            SSTable.writeDense(tableTemp, indexTemp, entries(), null, version, SSTable.MAX_INT_OFFSET);
+            Utils.rename(indexTemp, indexPath);
+            Utils.rename(tableTemp, tablePath);
+        }
+        table = SSTable.open(tablePath, 0, null);
+
+        hits = new MemorySegment[LOOKUP_KEYS];
+        misses = new MemorySegment[LOOKUP_KEYS];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < LOOKUP_KEYS; i++) {
+            int number = random.nextInt(entries);
+            hits[i] = key(number);
+            byte[] missing = Arrays.copyOf(hits[i].toByteArray(), keySize + 1);
+            missing[keySize] = '_';
+            misses[i] = MemorySegment.ofArray(missing);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        table.close();
+        if (dir.isEmpty()) {
+            FileUtils.recursiveDelete(tablesDir);
+        }
+    }
+
+    @Benchmark
+    public Entry<MemorySegment> hit() {
+        return table.get(hits[ThreadLocalRandom.current().nextInt(LOOKUP_KEYS)]);
+    }
+
+    @Benchmark
+    public Entry<MemorySegment> miss() {
+        return table.get(misses[ThreadLocalRandom.current().nextInt(LOOKUP_KEYS)]);
+    }
+
+    private MemorySegment key(int number) {
+        return keys == Keys.SPREAD
+                ? BenchmarkData.spreadKey(number, entries, keySize)
+                : BenchmarkData.key(number, keySize);
+    }
+
+    /**
+     * Entries are generated while the table is written, they would not fit in memory for a big table.
+     */
+    private Iterator<Entry<MemorySegment>> entries() {
+        return new Iterator<>() {
+            int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < entries;
+            }
+
+            @Override
+            public Entry<MemorySegment> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int number = next++;
+                return new BaseEntry<>(key(number), BenchmarkData.value(number, valueSize));
+            }
+        };
+    }
+}
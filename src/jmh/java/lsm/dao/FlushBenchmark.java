@@ -0,0 +1,87 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import lsm.BaseEntry;
+import lsm.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import service.FileUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flush throughput: {@link SSTable#writeTable} of a full memory table, in entries per second.
+ * The memory is filled once, every invocation writes a new table and deletes it afterwards.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.foreign"})
+public class FlushBenchmark {
+    private static final int ENTRIES = 100_000;
+
+    @Param({"DENSE", "BLOCK"})
+    private Config.TableFormat format;
+
+    @Param({"HEAP", "ARENA"})
+    private Config.MemTable memTable;
+
+    @Param({"16"})
+    private int keySize;
+
+    @Param({"100", "1000"})
+    private int valueSize;
+
+    private Path dir;
+    private Config config;
+    private Storage.Memory memory;
+    private int table;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("flush");
+        config = new Config(dir, Long.MAX_VALUE).withTableFormat(format).withMemTable(memTable);
+        memory = Storage.Memory.create(config);
+        for (int i = 0; i < ENTRIES; i++) {
+            MemorySegment key = BenchmarkData.key(i, keySize);
+            memory.put(key, new BaseEntry<>(key, BenchmarkData.value(i, valueSize)));
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTable() throws IOException {
+        FileUtils.recursiveDelete(dir);
+        Files.createDirectories(dir);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.recursiveDelete(dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public SSTable flush() throws IOException {
+        SSTable written = SSTable.writeTable(dir.resolve(String.valueOf(table++)), memory.get(null, null),
+                memory.count(), 0, config, null);
+        written.close();
+        return written;
+    }
+}
@@ -0,0 +1,74 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import lsm.BaseEntry;
+import lsm.Config;
+import lsm.Entry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link Storage.Memory#put} by concurrent writers, which overwrite random keys of a fixed set.
+ * Full memory is replaced by a new one, as sealing does, so native memory of {@link ArenaMemory} doesn't grow
+ * with the length of the run. Run with {@code -t} to change the number of writers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.foreign"})
+public class MemTableBenchmark {
+    private static final int KEYS = 100_000;
+    private static final long MEMORY_BYTES = 64 * 1024 * 1024;
+
+    @Param({"HEAP", "ARENA"})
+    private Config.MemTable memTable;
+
+    @Param({"16"})
+    private int keySize;
+
+    @Param({"100"})
+    private int valueSize;
+
+    private Config config;
+    private Entry<MemorySegment>[] entries;
+    private volatile Storage.Memory memory;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        config = new Config(Path.of("."), MEMORY_BYTES).withMemTable(memTable);
+        entries = new Entry[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            entries[i] = new BaseEntry<>(BenchmarkData.key(i, keySize), BenchmarkData.value(i, valueSize));
+        }
+        memory = Storage.Memory.create(config);
+    }
+
+    @Benchmark
+    public boolean put() {
+        Entry<MemorySegment> entry = entries[ThreadLocalRandom.current().nextInt(KEYS)];
+        Storage.Memory current = memory;
+        boolean oversize = current.put(entry.key(), entry);
+        if (oversize) {
+            memory = Storage.Memory.create(config);
+        }
+        return oversize;
+    }
+}
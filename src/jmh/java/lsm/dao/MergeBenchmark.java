@@ -0,0 +1,92 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import lsm.BaseEntry;
+import lsm.Entry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merge throughput of {@link CustomIterators#mergeList} against the number of sources,
+ * compared with the pairwise chain of {@link CustomIterators#mergeTwo} it replaced.
+ * Every source holds an equal share of keys, and every tenth key is also in the next source, so duplicates are dropped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.foreign"})
+public class MergeBenchmark {
+    private static final int ENTRIES = 10_000;
+
+    @Param({"2", "8", "32", "128"})
+    private int sources;
+
+    @Param({"16"})
+    private int keySize;
+
+    private List<List<Entry<MemorySegment>>> data;
+
+    @Setup
+    public void setup() {
+        data = new ArrayList<>(sources);
+        for (int s = 0; s < sources; s++) {
+            data.add(new ArrayList<>());
+        }
+        MemorySegment value = BenchmarkData.value(0, 8);
+        for (int i = 0; i < ENTRIES; i++) {
+            Entry<MemorySegment> entry = new BaseEntry<>(BenchmarkData.key(i, keySize), value);
+            int source = i % sources;
+            data.get(source).add(entry);
+            if (i % 10 == 0) {
+                data.get((source + 1) % sources).add(entry);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public void heap(Blackhole blackhole) {
+        drain(CustomIterators.mergeList(iterators()), blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public void pairwise(Blackhole blackhole) {
+        drain(iterators().stream()
+                .map(PeekingIterator::new)
+                .reduce(CustomIterators::mergeTwo)
+                .orElseThrow(), blackhole);
+    }
+
+    private List<Iterator<Entry<MemorySegment>>> iterators() {
+        List<Iterator<Entry<MemorySegment>>> iterators = new ArrayList<>(sources);
+        for (List<Entry<MemorySegment>> source : data) {
+            iterators.add(source.iterator());
+        }
+        return iterators;
+    }
+
+    private static void drain(Iterator<Entry<MemorySegment>> iterator, Blackhole blackhole) {
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next());
+        }
+    }
+}
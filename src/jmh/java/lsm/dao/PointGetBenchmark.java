@@ -0,0 +1,113 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import lsm.BaseEntry;
+import lsm.Config;
+import lsm.Entry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import service.FileUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point lookup through {@link LsmDao#get(MemorySegment)} against the old range-iterator fallback.
+ * Keys are spread over all tables, so every table covers the whole key range.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.foreign"})
+public class PointGetBenchmark {
+    private static final int KEYS_PER_TABLE = 1000;
+
+    @Param({"1", "10", "100"})
+    private int tables;
+
+    @Param({"16"})
+    private int keySize;
+
+    @Param({"100"})
+    private int valueSize;
+
+    private Path dir;
+    private LsmDao dao;
+    private MemorySegment[] hits;
+    private MemorySegment[] misses;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("point-get");
+        dao = new LsmDao(new Config(dir, Long.MAX_VALUE));
+        int keys = tables * KEYS_PER_TABLE;
+        hits = new MemorySegment[keys];
+        misses = new MemorySegment[keys];
+        for (int t = 0; t < tables; t++) {
+            for (int i = t; i < keys; i += tables) {
+                hits[i] = BenchmarkData.key(i, keySize);
+                misses[i] = BenchmarkData.missingKey(i, keySize);
+                dao.upsert(new BaseEntry<>(hits[i], BenchmarkData.value(i, valueSize)));
+            }
+            dao.flush();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        dao.close();
+        FileUtils.recursiveDelete(dir);
+    }
+
+    @Benchmark
+    public Entry<MemorySegment> pointHit() {
+        return dao.get(random(hits));
+    }
+
+    @Benchmark
+    public Entry<MemorySegment> pointMiss() {
+        return dao.get(random(misses));
+    }
+
+    @Benchmark
+    public Entry<MemorySegment> rangeHit() {
+        return rangeGet(random(hits));
+    }
+
+    @Benchmark
+    public Entry<MemorySegment> rangeMiss() {
+        return rangeGet(random(misses));
+    }
+
+    /**
+     * Lookup as it was done before the point path: first element of the merged range.
+     */
+    private Entry<MemorySegment> rangeGet(MemorySegment key) {
+        Iterator<Entry<MemorySegment>> iterator = dao.get(key, null);
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        Entry<MemorySegment> next = iterator.next();
+        return Utils.compareMemorySegments(next.key(), key) == 0 ? next : null;
+    }
+
+    private static MemorySegment random(MemorySegment[] keys) {
+        return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+    }
+}
@@ -0,0 +1,119 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import lsm.BaseEntry;
+import lsm.Config;
+import lsm.Entry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import service.FileUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link LsmDao#upsert(Entry)} from 1 to 64 threads, one benchmark per number of threads,
+ * so a single run shows how it scales. Writers overwrite random keys of a fixed set, so memory isn't flushed
+ * and the run measures the write path: entering memory, the log append and the put.
+ * Every upsert is still appended to the log under the lock of its segment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.foreign"})
+public class UpsertBenchmark {
+    private static final int KEYS = 100_000;
+
+    @Param({"HEAP", "ARENA"})
+    private Config.MemTable memTable;
+
+    @Param({"16"})
+    private int keySize;
+
+    @Param({"100"})
+    private int valueSize;
+
+    private Path dir;
+    private LsmDao dao;
+    private Entry<MemorySegment>[] entries;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("upsert");
+        dao = new LsmDao(new Config(dir, 256L * 1024 * 1024).withMemTable(memTable));
+        entries = new Entry[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            entries[i] = new BaseEntry<>(BenchmarkData.key(i, keySize), BenchmarkData.value(i, valueSize));
+            dao.upsert(entries[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        dao.close();
+        FileUtils.recursiveDelete(dir);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads1() {
+        upsert();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void threads2() {
+        upsert();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void threads4() {
+        upsert();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void threads8() {
+        upsert();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void threads16() {
+        upsert();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void threads32() {
+        upsert();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void threads64() {
+        upsert();
+    }
+
+    private void upsert() {
+        dao.upsert(entries[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+}
@@ -2,7 +2,205 @@ package lsm;
 
 import java.nio.file.Path;
 
+/**
+ * Settings of {@link Dao}.
+ *
+ * @param basePath directory with tables
+ * @param flushThresholdBytes size of memory table, after which it is flushed
+ * @param bloomBitsPerKey bits per key in bloom filters of new tables, 0 disables filters.
+ *                        10 bits give about 1% of false positives
+ * @param walSyncPolicy when the write-ahead log is forced to disk
+ * @param walSyncIntervalMillis period of sync for {@link SyncPolicy#PERIODIC}
+ * @param tableFormat format of new tables, tables of both formats are readable
+ * @param blockSize size of data block for {@link TableFormat#BLOCK}
+ * @param blockCacheBytes size of off-heap cache for blocks of {@link TableFormat#BLOCK} tables, 0 disables it.
+ *                        {@link TableFormat#DENSE} tables, the default, are read from mapped files and never
+ *                        use it, so it needs {@code tableFormat} BLOCK
+ * @param compaction how tables are compacted in background
+ * @param compression codec of data blocks of new {@link TableFormat#BLOCK} tables
+ * @param writeStall limits of memory tables waiting for flush
+ * @param flushThreads number of memory tables written to disk concurrently,
+ *                     their tables are added in order of sealing anyway
+ * @param memTable where memory tables keep entries
+ */
 public record Config(
         Path basePath,
-        long flushThresholdBytes) {
+        long flushThresholdBytes,
+        int bloomBitsPerKey,
+        SyncPolicy walSyncPolicy,
+        long walSyncIntervalMillis,
+        TableFormat tableFormat,
+        int blockSize,
+        long blockCacheBytes,
+        Compaction compaction,
+        Compression compression,
+        WriteStall writeStall,
+        int flushThreads,
+        MemTable memTable) {
+
+    public static final int DEFAULT_BLOOM_BITS_PER_KEY = 10;
+    public static final long DEFAULT_WAL_SYNC_INTERVAL_MILLIS = 100;
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024;
+    public static final int DEFAULT_FLUSH_THREADS = 2;
+
+    public Config(Path basePath, long flushThresholdBytes) {
+        this(basePath, flushThresholdBytes, DEFAULT_BLOOM_BITS_PER_KEY,
+                SyncPolicy.PERIODIC, DEFAULT_WAL_SYNC_INTERVAL_MILLIS,
+                TableFormat.DENSE, DEFAULT_BLOCK_SIZE, 0, Compaction.DEFAULT, Compression.NONE, WriteStall.DEFAULT,
+                DEFAULT_FLUSH_THREADS, MemTable.HEAP);
+    }
+
+    public Config withTableFormat(TableFormat format) {
+        return new Config(basePath, flushThresholdBytes, bloomBitsPerKey, walSyncPolicy, walSyncIntervalMillis,
+                format, blockSize, blockCacheBytes, compaction, compression, writeStall, flushThreads,
+                memTable);
+    }
+
+    /**
+     * Cache is used only by {@link TableFormat#BLOCK} tables, set the format with {@link #withTableFormat}.
+     */
+    public Config withBlockCacheBytes(long bytes) {
+        return new Config(basePath, flushThresholdBytes, bloomBitsPerKey, walSyncPolicy, walSyncIntervalMillis,
+                tableFormat, blockSize, bytes, compaction, compression, writeStall, flushThreads,
+                memTable);
+    }
+
+    public Config withCompaction(Compaction compaction) {
+        return new Config(basePath, flushThresholdBytes, bloomBitsPerKey, walSyncPolicy, walSyncIntervalMillis,
+                tableFormat, blockSize, blockCacheBytes, compaction, compression, writeStall, flushThreads,
+                memTable);
+    }
+
+    public Config withCompression(Compression compression) {
+        return new Config(basePath, flushThresholdBytes, bloomBitsPerKey, walSyncPolicy, walSyncIntervalMillis,
+                tableFormat, blockSize, blockCacheBytes, compaction, compression, writeStall, flushThreads,
+                memTable);
+    }
+
+    public Config withWriteStall(WriteStall writeStall) {
+        return new Config(basePath, flushThresholdBytes, bloomBitsPerKey, walSyncPolicy, walSyncIntervalMillis,
+                tableFormat, blockSize, blockCacheBytes, compaction, compression, writeStall, flushThreads,
+                memTable);
+    }
+
+    public Config withFlushThreads(int threads) {
+        return new Config(basePath, flushThresholdBytes, bloomBitsPerKey, walSyncPolicy, walSyncIntervalMillis,
+                tableFormat, blockSize, blockCacheBytes, compaction, compression, writeStall, threads,
+                memTable);
+    }
+
+    public Config withMemTable(MemTable memTable) {
+        return new Config(basePath, flushThresholdBytes, bloomBitsPerKey, walSyncPolicy, walSyncIntervalMillis,
+                tableFormat, blockSize, blockCacheBytes, compaction, compression, writeStall, flushThreads,
+                memTable);
+    }
+
+    /**
+     * Every policy writes the log before upsert returns, so acknowledged writes survive
+     * a crash of the process. Policy only decides how much may be lost if the OS crashes.
+     */
+    public enum SyncPolicy {
+        /**
+         * Upsert returns after its record is forced, concurrent upserts share one force.
+         */
+        EVERY_WRITE,
+        /**
+         * Log is forced in background every {@link #walSyncIntervalMillis()}.
+         */
+        PERIODIC,
+        /**
+         * Log is never forced explicitly.
+         */
+        NEVER
+    }
+
+    public enum TableFormat {
+        /**
+         * Entries with varint lengths and index file with offset and 8-byte key prefix of every entry,
+         * see {@code lsm.dao.DenseTable}. Tables written before, without prefixes or with 8-byte lengths,
+         * are still readable.
+         */
+        DENSE,
+        /**
+         * Prefix-compressed data blocks with in-memory index of their first keys, see {@code lsm.dao.BlockTable}.
+         */
+        BLOCK
+    }
+
+    public enum MemTable {
+        /**
+         * Skip list of given entries on heap.
+         */
+        HEAP,
+        /**
+         * Keys and values are copied to native memory and indexed by a skip list in it,
+         * see {@code lsm.dao.ArenaMemory}. Nothing is allocated on heap per entry.
+         * The memory is freed at once, but by the garbage collector after the flushed table,
+         * its iterators and entries become unreachable, not right after flush:
+         * native memory of flushed tables is not limited by the heap size.
+         */
+        ARENA
+    }
+
+    /**
+     * Codec is written to the table header, so tables with different codecs are readable together.
+     * {@link TableFormat#DENSE} tables have no blocks and are never compressed.
+     */
+    public enum Compression {
+        NONE,
+        /**
+         * {@link java.util.zip.Deflater} with the fastest level.
+         */
+        DEFLATE
+    }
+
+    /**
+     * Backpressure for writers when flush can't keep up. A full memory table is sealed and waits for flush,
+     * while writes go to a new one. Writers are slowed down and then stopped as sealed tables pile up.
+     *
+     * @param maxImmutableTables when the active table is full and this many tables wait for flush,
+     *                           writers are blocked until one of them is flushed
+     * @param slowdownImmutableTables from this many tables waiting for flush every write is delayed
+     * @param slowdownMicros delay of every write while slowed down
+     * @param timeoutMillis how long a blocked writer waits before {@link WriteStallException}
+     */
+    public record WriteStall(int maxImmutableTables, int slowdownImmutableTables, long slowdownMicros,
+                             long timeoutMillis) {
+        public static final WriteStall DEFAULT = new WriteStall(4, 3, 1000, 10_000);
+    }
+
+    /**
+     * Settings of background compaction, it starts after a flush when the strategy finds work.
+     *
+     * @param strategy which tables are merged
+     * @param minTables {@link Strategy#SIZE_TIERED}: least number of similar tables to merge,
+     *                  {@link Strategy#LEVELED}: number of tables in level 0 which triggers its compaction
+     * @param maxTables {@link Strategy#SIZE_TIERED}: most tables merged at once
+     * @param levelRatio {@link Strategy#LEVELED}: how many times every level is bigger than the previous one
+     */
+    public record Compaction(Strategy strategy, int minTables, int maxTables, int levelRatio) {
+        public static final Compaction DEFAULT = new Compaction(Strategy.SIZE_TIERED, 4, 32, 10);
+
+        public Compaction withStrategy(Strategy strategy) {
+            return new Compaction(strategy, minTables, maxTables, levelRatio);
+        }
+
+        public enum Strategy {
+            /**
+             * Only {@link Dao#compact()} merges tables.
+             */
+            NONE,
+            /**
+             * Merges runs of adjacent tables of similar size, so their number grows as logarithm of data size.
+             */
+            SIZE_TIERED,
+            /**
+             * Flushed tables form level 0, deeper levels are sets of tables with disjoint key ranges
+             * of about {@link #flushThresholdBytes()} each. Level 1 holds {@link #minTables()} flushes,
+             * every next one {@link #levelRatio()} times more. Overflowing level is merged
+             * into the next one table by table, together with overlapping tables only.
+             */
+            LEVELED
+        }
+    }
 }
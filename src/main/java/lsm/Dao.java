@@ -2,7 +2,10 @@ package lsm;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 
 public interface Dao<D, E extends Entry<D>> extends Closeable {
 
@@ -31,6 +34,19 @@ public interface Dao<D, E extends Entry<D>> extends Closeable {
         return null;
     }
 
+    /**
+     * Returns entries by keys. Note: default implementation gets them one by one.
+     * @param keys keys to look up
+     * @return entries in order of keys, null for absent ones
+     */
+    default List<E> getAll(List<D> keys) throws IOException {
+        List<E> entries = new ArrayList<>(keys.size());
+        for (D key : keys) {
+            entries.add(get(key));
+        }
+        return entries;
+    }
+
     /**
      * Returns ordered iterator of all entries with keys from (inclusive).
      * @param from lower bound of range (inclusive)
@@ -63,6 +79,25 @@ public interface Dao<D, E extends Entry<D>> extends Closeable {
      */
     void upsert(E entry);
 
+    /**
+     * Inserts or replaces entries as one batch. Note: default implementation upserts them one by one.
+     * @param entries elements to upsert, later ones win on equal keys
+     */
+    default void upsert(Collection<E> entries) {
+        for (E entry : entries) {
+            upsert(entry);
+        }
+    }
+
+    /**
+     * Returns read-only view of data at the moment of the call, its reads don't see later writes.
+     * It must be closed after use (unsupported by default).
+     * @return dao, which throws {@link UnsupportedOperationException} on upsert
+     */
+    default Dao<D, E> snapshot() throws IOException {
+        throw new UnsupportedOperationException("Snapshots are not supported");
+    }
+
     /**
      * Persists data (no-op by default).
      */
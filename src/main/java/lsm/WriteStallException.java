@@ -0,0 +1,17 @@
+package lsm;
+
+/**
+ * Thrown by {@link Dao#upsert} when writes have been stopped for longer than {@link Config.WriteStall#timeoutMillis()},
+ * because flush can't keep up with them. The entry is not written and the write may be retried later.
+ */
+public class WriteStallException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public WriteStallException(String message) {
+        super(message);
+    }
+
+    public WriteStallException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,242 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryHandles;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import lsm.BaseEntry;
+import lsm.Entry;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Memory table in native memory: keys and values are copied to chunks of one scope
+ * and indexed by a skip list, whose nodes are in the same chunks.
+ * <pre>
+ * node:  value pointer, height (int), key size (int), next pointer * height, key
+ * value: size (-1 for tombstone), value
+ * </pre>
+ * Pointer is chunk number in high half and offset in it in low half, 0 is the head node and means no node.
+ * New value of a key is appended and replaces the pointer, the old one stays until the memory is freed,
+ * so size of the memory is the number of bytes taken from chunks.
+ * <p>
+ * Puts are serialized, gets and iterators don't lock: pointers are published with release
+ * and read with acquire, after the data they point to is written.
+ * <p>
+ * Entries returned by gets are slices of the chunks and may be used after the memory is flushed,
+ * so the scope isn't closed explicitly: all chunks are freed at once when the flushed memory
+ * and the last entry from it become unreachable.
+ */
+public final class ArenaMemory extends Storage.Memory {
+    private static final int MAX_HEIGHT = 12;
+    private static final long MIN_CHUNK_SIZE = 4 * 1024;
+    private static final long MAX_CHUNK_SIZE = 1024 * 1024;
+    private static final long NULL = 0;
+    private static final long TOMBSTONE = -1;
+
+    private static final long VALUE_OFFSET = 0;
+    private static final long HEIGHT_OFFSET = VALUE_OFFSET + Long.BYTES;
+    private static final long KEY_SIZE_OFFSET = HEIGHT_OFFSET + Integer.BYTES;
+    private static final long NEXT_OFFSET = KEY_SIZE_OFFSET + Integer.BYTES;
+
+    private static final VarHandle POINTER = MemoryHandles.varHandle(long.class, ByteOrder.nativeOrder());
+
+    private final ResourceScope scope = ResourceScope.newImplicitScope();
+    private final long chunkSize;
+    private volatile MemorySegment[] chunks = new MemorySegment[4];
+    private int chunkCount; //guarded by this
+    private long chunkPosition; //guarded by this
+    private long allocatedBytes; //guarded by this
+    private final long[] update = new long[MAX_HEIGHT]; //guarded by this
+
+    ArenaMemory(long sizeLimit) {
+        super(sizeLimit);
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, sizeLimit / 4));
+        allocate(NEXT_OFFSET + MAX_HEIGHT * Long.BYTES); //head
+    }
+
+    @Override
+    public synchronized boolean put(MemorySegment key, Entry<MemorySegment> value) {
+        long allocated = allocatedBytes;
+        boolean newKey = insert(key, value);
+        return grow(allocatedBytes - allocated, newKey ? 1 : 0);
+    }
+
+    @Override
+    public synchronized boolean putAll(Collection<Entry<MemorySegment>> entries) {
+        long allocated = allocatedBytes;
+        long newKeys = 0;
+        for (Entry<MemorySegment> entry : entries) {
+            if (insert(entry.key(), entry)) {
+                newKeys++;
+            }
+        }
+        return grow(allocatedBytes - allocated, newKeys);
+    }
+
+    /**
+     * @return true if the key is new
+     */
+    private boolean insert(MemorySegment key, Entry<MemorySegment> value) {
+        long node = findGreaterOrEqual(key, update);
+        long valueBytes = Long.BYTES + (value.isTombstone() ? 0 : value.value().byteSize());
+        long valuePointer = allocate(valueBytes);
+        MemorySegment valueChunk = chunk(valuePointer);
+        long valueOffset = offset(valuePointer);
+        if (value.isTombstone()) {
+            MemoryAccess.setLongAtOffset(valueChunk, valueOffset, TOMBSTONE);
+        } else {
+            MemoryAccess.setLongAtOffset(valueChunk, valueOffset, value.value().byteSize());
+            valueChunk.asSlice(valueOffset + Long.BYTES, value.value().byteSize()).copyFrom(value.value());
+        }
+
+        if (node != NULL && Utils.compareMemorySegments(key(node), key) == 0) {
+            POINTER.setRelease(chunk(node), offset(node) + VALUE_OFFSET, valuePointer);
+            return false;
+        }
+
+        int height = randomHeight();
+        long nodeBytes = NEXT_OFFSET + (long) height * Long.BYTES + key.byteSize();
+        node = allocate(nodeBytes);
+        MemorySegment chunk = chunk(node);
+        long offset = offset(node);
+        MemoryAccess.setLongAtOffset(chunk, offset + VALUE_OFFSET, valuePointer);
+        MemoryAccess.setIntAtOffset(chunk, offset + HEIGHT_OFFSET, height);
+        MemoryAccess.setIntAtOffset(chunk, offset + KEY_SIZE_OFFSET, (int) key.byteSize());
+        chunk.asSlice(offset + NEXT_OFFSET + (long) height * Long.BYTES, key.byteSize()).copyFrom(key);
+        for (int level = 0; level < height; level++) {
+            MemoryAccess.setLongAtOffset(chunk, offset + nextOffset(level), next(update[level], level));
+            POINTER.setRelease(chunk(update[level]), offset(update[level]) + nextOffset(level), node);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return next(NULL, 0) == NULL;
+    }
+
+    @Override
+    public Entry<MemorySegment> get(MemorySegment key) {
+        long node = findGreaterOrEqual(key, null);
+        if (node == NULL || Utils.compareMemorySegments(key(node), key) != 0) {
+            return null;
+        }
+        return entry(node);
+    }
+
+    @Override
+    public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to) {
+        long first = from == null ? next(NULL, 0) : findGreaterOrEqual(from, null);
+        return new Iterator<>() {
+            private long node = first;
+
+            @Override
+            public boolean hasNext() {
+                return node != NULL && (to == null || Utils.compareMemorySegments(key(node), to) < 0);
+            }
+
+            @Override
+            public Entry<MemorySegment> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Entry<MemorySegment> entry = entry(node);
+                node = ArenaMemory.this.next(node, 0);
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * @param update if not null, gets the last node before the key on every level
+     * @return first node with key not less than the given one
+     */
+    private long findGreaterOrEqual(MemorySegment key, long[] update) {
+        long node = NULL;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long next = next(node, level);
+            while (next != NULL && Utils.compareMemorySegments(key(next), key) < 0) {
+                node = next;
+                next = next(node, level);
+            }
+            if (update != null) {
+                update[level] = node;
+            }
+        }
+        return next(node, 0);
+    }
+
+    private Entry<MemorySegment> entry(long node) {
+        long valuePointer = (long) POINTER.getAcquire(chunk(node), offset(node) + VALUE_OFFSET);
+        MemorySegment valueChunk = chunk(valuePointer);
+        long valueOffset = offset(valuePointer);
+        long size = MemoryAccess.getLongAtOffset(valueChunk, valueOffset);
+        MemorySegment value = size == TOMBSTONE ? null : valueChunk.asSlice(valueOffset + Long.BYTES, size);
+        return new BaseEntry<>(key(node), value);
+    }
+
+    private MemorySegment key(long node) {
+        MemorySegment chunk = chunk(node);
+        long offset = offset(node);
+        int height = MemoryAccess.getIntAtOffset(chunk, offset + HEIGHT_OFFSET);
+        int keySize = MemoryAccess.getIntAtOffset(chunk, offset + KEY_SIZE_OFFSET);
+        return chunk.asSlice(offset + NEXT_OFFSET + (long) height * Long.BYTES, keySize);
+    }
+
+    private long next(long node, int level) {
+        return (long) POINTER.getAcquire(chunk(node), offset(node) + nextOffset(level));
+    }
+
+    private static long nextOffset(int level) {
+        return NEXT_OFFSET + (long) level * Long.BYTES;
+    }
+
+    private MemorySegment chunk(long pointer) {
+        return chunks[(int) (pointer >>> 32)];
+    }
+
+    private static long offset(long pointer) {
+        return pointer & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Native memory is zeroed, so next pointers of a new node are already null.
+     */
+    private long allocate(long bytes) {
+        long size = align(bytes);
+        if (chunkCount == 0 || chunkPosition + size > chunks[chunkCount - 1].byteSize()) {
+            MemorySegment chunk = MemorySegment.allocateNative(Math.max(chunkSize, size), Long.BYTES, scope);
+            MemorySegment[] current = chunks;
+            if (chunkCount == current.length) {
+                MemorySegment[] grown = new MemorySegment[current.length * 2];
+                System.arraycopy(current, 0, grown, 0, chunkCount);
+                current = grown;
+            }
+            current[chunkCount++] = chunk;
+            chunks = current;
+            chunkPosition = 0;
+        }
+        long pointer = ((long) (chunkCount - 1) << 32) | chunkPosition;
+        chunkPosition += size;
+        allocatedBytes += size;
+        return pointer;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    private static int randomHeight() {
+        int height = 1;
+        while (height < MAX_HEIGHT && ThreadLocalRandom.current().nextInt(4) == 0) {
+            height++;
+        }
+        return height;
+    }
+}
@@ -0,0 +1,170 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded off-heap cache of {@link BlockTable} blocks, shared by all tables of one {@link LsmDao}.
+ * {@link DenseTable} is read from its mapped files, where the page cache of the OS does this work, and doesn't use it.
+ * Memory is one native segment cut into slots of block size, so nothing is allocated or freed while it works.
+ *
+ * <p>Eviction is CLOCK: a block enters with its reference bit clear and gets it on the next hit,
+ * the hand clears bits and evicts the first block without one. A block read once is gone after one sweep,
+ * while hot blocks survive. Only point lookups fill the cache, range scans and compaction read tables directly,
+ * so they can't flush out hot data.
+ *
+ * <p>Readers don't lock: a slot is pinned by a counter, and a pinned slot is never evicted.
+ */
+public final class BlockCache implements Closeable {
+    private static final int LOCKED = Integer.MIN_VALUE;
+
+    private final int slotSize;
+    private final int slotCount;
+    private final ResourceScope scope;
+    private final MemorySegment memory;
+    private final Map<BlockKey, Integer> slots = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<BlockKey> owners;
+    private final AtomicIntegerArray pins;
+    private final AtomicIntegerArray referenced;
+    private final int[] lengths;
+    private int hand;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public BlockCache(long capacityBytes, int slotSize) {
+        this.slotSize = slotSize;
+        this.slotCount = Math.toIntExact(capacityBytes / slotSize);
+        this.scope = ResourceScope.newSharedScope();
+        this.memory = MemorySegment.allocateNative((long) slotCount * slotSize, scope);
+        this.owners = new AtomicReferenceArray<>(slotCount);
+        this.pins = new AtomicIntegerArray(slotCount);
+        this.referenced = new AtomicIntegerArray(slotCount);
+        this.lengths = new int[slotCount];
+    }
+
+    /**
+     * Returns pinned block, which must be closed after use, or null if it isn't cached.
+     */
+    public Handle get(long tableId, int block) {
+        BlockKey key = new BlockKey(tableId, block);
+        Integer slot = slots.get(key);
+        if (slot != null && pin(slot)) {
+            if (key.equals(owners.get(slot))) {
+                referenced.set(slot, 1);
+                hits.increment();
+                return new Handle(slot);
+            }
+            pins.decrementAndGet(slot);
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Copies block into the cache, blocks bigger than a slot are not cached.
+     */
+    public void put(long tableId, int block, MemorySegment data) {
+        BlockKey key = new BlockKey(tableId, block);
+        if (data.byteSize() > slotSize || slots.containsKey(key)) {
+            return;
+        }
+        synchronized (this) {
+            if (slots.containsKey(key)) {
+                return;
+            }
+            int slot = lockVictim();
+            if (slot < 0) {
+                return;
+            }
+            BlockKey evicted = owners.get(slot);
+            if (evicted != null) {
+                slots.remove(evicted, slot);
+                evictions.increment();
+            }
+            memory.asSlice((long) slot * slotSize, data.byteSize()).copyFrom(data);
+            lengths[slot] = (int) data.byteSize();
+            referenced.set(slot, 0);
+            owners.set(slot, key);
+            pins.set(slot, 0);
+            slots.put(key, slot);
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), slots.size(), slotCount);
+    }
+
+    @Override
+    public void close() {
+        scope.close();
+    }
+
+    /**
+     * Moves the clock hand until a free or unreferenced unpinned slot is found and locks it.
+     *
+     * @return locked slot or -1 if all slots are pinned
+     */
+    private int lockVictim() {
+        for (int i = 0; i < 2 * slotCount; i++) {
+            int slot = hand;
+            hand = (hand + 1) % slotCount;
+            if (owners.get(slot) != null && referenced.get(slot) == 1) {
+                referenced.set(slot, 0);
+                continue;
+            }
+            if (pins.compareAndSet(slot, 0, LOCKED)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean pin(int slot) {
+        while (true) {
+            int current = pins.get(slot);
+            if (current < 0) {
+                return false;
+            }
+            if (pins.compareAndSet(slot, current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private record BlockKey(long tableId, int block) {
+        //empty
+    }
+
+    public record Stats(long hits, long misses, long evictions, int cachedBlocks, int capacityBlocks) {
+        //empty
+    }
+
+    /**
+     * Pinned cached block. Its segment must not be used after close.
+     */
+    public final class Handle implements AutoCloseable {
+        private final int slot;
+
+        private Handle(int slot) {
+            this.slot = slot;
+        }
+
+        public MemorySegment segment() {
+            return memory.asSlice((long) slot * slotSize, lengths[slot]);
+        }
+
+        @Override
+        public void close() {
+            pins.decrementAndGet(slot);
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import lsm.BaseEntry;
+import lsm.Config;
+import lsm.Entry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Table made of data blocks of about {@code blockSize} bytes and a sparse index with the first key of every block.
+ * It is a single file without {@link SSTable#INDEX} sidecar:
+ * <pre>
+ * header: magic (long), version (int), flags (int, codec of blocks)
+ * blocks: entries, each is shared key prefix length (int), rest of key length (int),
+ *         value length (int, {@link SSTable#NULL_VALUE} for tombstone), rest of key, value.
+ *         Compressed block is its uncompressed length (int) and deflated entries
+ * index:  for each block offset (long), length (int), first key length (int), first key
+ * footer: index offset (long), block count (long), entry count (long), magic (long)
+ * </pre>
+ * Keys share prefix with the previous key of the same block only, so every block is decoded on its own.
+ * The index is read to heap on open, so a lookup touches the file only in one block.
+ * Point lookups go through {@link BlockCache} if there is one, range scans never do.
+ * Compressed blocks are inflated into reusable direct buffers and cached uncompressed.
+ * Values of a compressed table are copied to heap, as the buffer is overwritten by the next block.
+ */
+public final class BlockTable {
+    public static final long MAGIC = 0x4C534D5F424C4B31L;
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = Long.BYTES + 2 * Integer.BYTES;
+    private static final int FOOTER_SIZE = 4 * Long.BYTES;
+    private static final int ENTRY_HEADER_SIZE = 3 * Integer.BYTES;
+    private static final int INDEX_ENTRY_HEADER_SIZE = Long.BYTES + 2 * Integer.BYTES;
+    private static final int CODEC_NONE = 0;
+    private static final int CODEC_DEFLATE = 1;
+    private static final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<BlockBuffer> pointBuffer = ThreadLocal.withInitial(BlockBuffer::new);
+
+    private final MemorySegment mapFile;
+    private final long id;
+    private final BlockCache cache;
+    private final boolean compressed;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final MemorySegment[] firstKeys;
+    private final long entryCount;
+
+    private BlockTable(MemorySegment mapFile, long id, BlockCache cache, boolean compressed,
+                       long[] blockOffsets, int[] blockLengths, MemorySegment[] firstKeys, long entryCount) {
+        this.mapFile = mapFile;
+        this.id = id;
+        this.cache = cache;
+        this.compressed = compressed;
+        this.blockOffsets = blockOffsets;
+        this.blockLengths = blockLengths;
+        this.firstKeys = firstKeys;
+        this.entryCount = entryCount;
+    }
+
+    /**
+     * Opens table from mapped file.
+     *
+     * @param id identifier of the table, unique within {@code cache}
+     * @param cache cache for blocks of point lookups, may be null
+     */
+    public static BlockTable open(MemorySegment mapFile, long id, BlockCache cache) {
+        long size = mapFile.byteSize();
+        if (size < HEADER_SIZE + FOOTER_SIZE
+                || getLong(mapFile, 0) != MAGIC
+                || getLong(mapFile, size - Long.BYTES) != MAGIC) {
+            throw new IllegalStateException("Not a block table");
+        }
+        int version = getInt(mapFile, Long.BYTES);
+        if (version != VERSION) {
+            throw new IllegalStateException("Unsupported block table version: " + version);
+        }
+        int codec = getInt(mapFile, Long.BYTES + Integer.BYTES);
+        if (codec != CODEC_NONE && codec != CODEC_DEFLATE) {
+            throw new IllegalStateException("Unsupported block codec: " + codec);
+        }
+        long footer = size - FOOTER_SIZE;
+        long indexOffset = getLong(mapFile, footer);
+        int blockCount = Math.toIntExact(getLong(mapFile, footer + Long.BYTES));
+        long entryCount = getLong(mapFile, footer + 2 * Long.BYTES);
+
+        long[] blockOffsets = new long[blockCount];
+        int[] blockLengths = new int[blockCount];
+        MemorySegment[] firstKeys = new MemorySegment[blockCount];
+        long offset = indexOffset;
+        for (int i = 0; i < blockCount; i++) {
+            blockOffsets[i] = getLong(mapFile, offset);
+            blockLengths[i] = getInt(mapFile, offset + Long.BYTES);
+            int keyLength = getInt(mapFile, offset + Long.BYTES + Integer.BYTES);
+            offset += INDEX_ENTRY_HEADER_SIZE;
+            firstKeys[i] = MemorySegment.ofArray(mapFile.asSlice(offset, keyLength).toByteArray());
+            offset += keyLength;
+        }
+        return new BlockTable(mapFile, id, cache, codec == CODEC_DEFLATE,
+                blockOffsets, blockLengths, firstKeys, entryCount);
+    }
+
+    /**
+     * Writes table to {@code path} in one pass.
+     *
+     * @param bloomFilter filter to add all keys to, may be null
+     */
+    public static void write(Path path, Iterator<Entry<MemorySegment>> values, int blockSize,
+                             Config.Compression compression, BloomFilter bloomFilter) throws IOException {
+        Deflater deflater = compression == Config.Compression.DEFLATE ? new Deflater(Deflater.BEST_SPEED) : null;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            Writer writer = new Writer(channel, blockSize, deflater);
+            while (values.hasNext()) {
+                Entry<MemorySegment> entry = values.next();
+                if (bloomFilter != null) {
+                    bloomFilter.add(entry.key());
+                }
+                writer.add(entry);
+            }
+            writer.finish();
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    public long entryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Smallest key of the table or null if it is empty.
+     */
+    public MemorySegment firstKey() {
+        return firstKeys.length == 0 ? null : firstKeys[0];
+    }
+
+    /**
+     * Largest key of the table or null if it is empty, the last block is decoded to find it.
+     */
+    public MemorySegment lastKey() {
+        if (firstKeys.length == 0) {
+            return null;
+        }
+        BlockCursor cursor = new BlockCursor(block(firstKeys.length - 1, pointBuffer.get()));
+        byte[] last = null;
+        while (cursor.next()) {
+            last = cursor.keyBytes();
+        }
+        return last == null ? null : MemorySegment.ofArray(last);
+    }
+
+    /**
+     * Returns entry with exactly this key (tombstones included) or null.
+     * Returned entry has {@code key} as its key. Its value is mapped from the table
+     * or, if the block was found in the cache or decompressed, copied to heap.
+     */
+    public Entry<MemorySegment> get(MemorySegment key) {
+        int block = floorBlock(key);
+        if (block < 0) {
+            return null;
+        }
+        if (cache != null) {
+            try (BlockCache.Handle cached = cache.get(id, block)) {
+                if (cached != null) {
+                    return copyValue(findInBlock(cached.segment(), key));
+                }
+            }
+        }
+        MemorySegment data = block(block, pointBuffer.get());
+        if (cache != null) {
+            cache.put(id, block, data);
+        }
+        Entry<MemorySegment> entry = findInBlock(data, key);
+        return compressed ? copyValue(entry) : entry;
+    }
+
+    private static Entry<MemorySegment> copyValue(Entry<MemorySegment> entry) {
+        if (entry == null || entry.isTombstone()) {
+            return entry;
+        }
+        return new BaseEntry<>(entry.key(), MemorySegment.ofArray(entry.value().toByteArray()));
+    }
+
+    private static Entry<MemorySegment> findInBlock(MemorySegment block, MemorySegment key) {
+        BlockCursor cursor = new BlockCursor(block);
+        while (cursor.next()) {
+            int compare = Utils.compareMemorySegments(cursor.key(), key);
+            if (compare == 0) {
+                return new BaseEntry<>(key, cursor.value());
+            }
+            if (compare > 0) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public Iterator<Entry<MemorySegment>> range(MemorySegment from, MemorySegment to) {
+        int block = 0;
+        if (from != null) {
+            block = Math.max(0, floorBlock(from));
+        }
+        if (block >= firstKeys.length
+                || (to != null && Utils.compareMemorySegments(firstKeys[block], to) >= 0)) {
+            return Collections.emptyIterator();
+        }
+        return new RangeIterator(block, from, to);
+    }
+
+    /**
+     * Returns block as it is in the file or, if the table is compressed, inflated into {@code buffer}.
+     */
+    private MemorySegment block(int block, BlockBuffer buffer) {
+        MemorySegment stored = mapFile.asSlice(blockOffsets[block], blockLengths[block]);
+        return compressed ? buffer.inflate(stored) : stored;
+    }
+
+    /**
+     * Index of the last block with first key not greater than {@code key}, -1 if there is no such block.
+     */
+    private int floorBlock(MemorySegment key) {
+        int l = 0;
+        int r = firstKeys.length - 1;
+        while (l <= r) {
+            int middle = (l + r) >>> 1;
+            int compare = Utils.compareMemorySegments(firstKeys[middle], key);
+            if (compare == 0) {
+                return middle;
+            } else if (compare < 0) {
+                l = middle + 1;
+            } else {
+                r = middle - 1;
+            }
+        }
+        return r;
+    }
+
+    private static long getLong(MemorySegment segment, long offset) {
+        return MemoryAccess.getLongAtOffset(segment, offset);
+    }
+
+    private static int getInt(MemorySegment segment, long offset) {
+        return MemoryAccess.getIntAtOffset(segment, offset);
+    }
+
+    private final class RangeIterator implements Iterator<Entry<MemorySegment>> {
+        private final MemorySegment to;
+        private final BlockBuffer buffer = compressed ? new BlockBuffer() : null;
+        private int block;
+        private BlockCursor cursor;
+        private Entry<MemorySegment> next;
+
+        RangeIterator(int block, MemorySegment from, MemorySegment to) {
+            this.to = to;
+            this.block = block;
+            this.cursor = new BlockCursor(block(block, buffer));
+            advance();
+            while (from != null && next != null && Utils.compareMemorySegments(next.key(), from) < 0) {
+                advance();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<MemorySegment> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<MemorySegment> result = next;
+            advance();
+            return result;
+        }
+
+        private void advance() {
+            while (!cursor.next()) {
+                block++;
+                if (block >= blockOffsets.length) {
+                    next = null;
+                    return;
+                }
+                cursor = new BlockCursor(block(block, buffer));
+            }
+            if (to != null && Utils.compareMemorySegments(cursor.key(), to) >= 0) {
+                next = null;
+                block = blockOffsets.length;
+                return;
+            }
+            MemorySegment value = cursor.value();
+            if (compressed && value != null) {
+                value = MemorySegment.ofArray(value.toByteArray());
+            }
+            next = new BaseEntry<>(MemorySegment.ofArray(cursor.keyBytes()), value);
+        }
+    }
+
+    /**
+     * Direct buffers for inflated blocks, which grow to the biggest block and are reused.
+     * Compressed block is copied to {@code input} first: {@link Inflater} doesn't accept buffers
+     * of mapped segments with shared scope. Result of {@link #inflate} is valid until its next call.
+     */
+    private static final class BlockBuffer {
+        private ByteBuffer input = ByteBuffer.allocateDirect(Config.DEFAULT_BLOCK_SIZE);
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(Config.DEFAULT_BLOCK_SIZE);
+
+        MemorySegment inflate(MemorySegment stored) {
+            int length = getInt(stored, 0);
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocateDirect(Math.max(length, buffer.capacity() * 2));
+            }
+            int storedLength = (int) stored.byteSize() - Integer.BYTES;
+            if (input.capacity() < storedLength) {
+                input = ByteBuffer.allocateDirect(Math.max(storedLength, input.capacity() * 2));
+            }
+            input.clear().limit(storedLength);
+            MemorySegment.ofByteBuffer(input).copyFrom(stored.asSlice(Integer.BYTES));
+            buffer.clear().limit(length);
+            Inflater decoder = inflater.get();
+            decoder.reset();
+            decoder.setInput(input);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (decoder.inflate(buffer) == 0 && (decoder.finished() || decoder.needsInput())) {
+                        throw new IllegalStateException("Corrupted block");
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Corrupted block", e);
+            }
+            buffer.flip();
+            return MemorySegment.ofByteBuffer(buffer);
+        }
+    }
+
+    /**
+     * Decodes entries of one block, restoring prefix-compressed keys into a reusable buffer.
+     */
+    private static final class BlockCursor {
+        private final MemorySegment block;
+        private long position;
+        private byte[] keyBuffer = new byte[64];
+        private int keyLength;
+        private long valueOffset;
+        private int valueLength;
+
+        BlockCursor(MemorySegment block) {
+            this.block = block;
+        }
+
+        boolean next() {
+            if (position >= block.byteSize()) {
+                return false;
+            }
+            int shared = getInt(block, position);
+            int unshared = getInt(block, position + Integer.BYTES);
+            valueLength = getInt(block, position + 2 * Integer.BYTES);
+            position += ENTRY_HEADER_SIZE;
+
+            keyLength = shared + unshared;
+            if (keyLength > keyBuffer.length) {
+                keyBuffer = Arrays.copyOf(keyBuffer, Math.max(keyLength, keyBuffer.length * 2));
+            }
+            MemorySegment.ofArray(keyBuffer).asSlice(shared, unshared).copyFrom(block.asSlice(position, unshared));
+            position += unshared;
+
+            valueOffset = position;
+            if (valueLength != SSTable.NULL_VALUE) {
+                position += valueLength;
+            }
+            return true;
+        }
+
+        /**
+         * Valid until the next call of {@link #next()}.
+         */
+        MemorySegment key() {
+            return MemorySegment.ofArray(keyBuffer).asSlice(0, keyLength);
+        }
+
+        byte[] keyBytes() {
+            return Arrays.copyOf(keyBuffer, keyLength);
+        }
+
+        MemorySegment value() {
+            if (valueLength == SSTable.NULL_VALUE) {
+                return null;
+            }
+            return block.asSlice(valueOffset, valueLength);
+        }
+    }
+
+    /**
+     * Accumulates entries of the current block in a buffer and writes finished blocks to the channel.
+     */
+    private static final class Writer {
+        private final FileChannel channel;
+        private final int blockSize;
+        private final Deflater deflater;
+        private ByteBuffer deflated;
+        private final List<MemorySegment> firstKeys = new ArrayList<>();
+        private final List<Long> blockOffsets = new ArrayList<>();
+        private final List<Integer> blockLengths = new ArrayList<>();
+        private ByteBuffer buffer;
+        private MemorySegment previousKey;
+        private long fileOffset;
+        private long entryCount;
+
+        /**
+         * Blocks are deflated if {@code deflater} is not null.
+         */
+        Writer(FileChannel channel, int blockSize, Deflater deflater) throws IOException {
+            this.channel = channel;
+            this.blockSize = blockSize;
+            this.deflater = deflater;
+            this.buffer = ByteBuffer.allocateDirect(Math.max(blockSize, HEADER_SIZE)).order(ByteOrder.nativeOrder());
+            buffer.putLong(MAGIC).putInt(VERSION).putInt(deflater == null ? CODEC_NONE : CODEC_DEFLATE);
+            writeBuffer();
+        }
+
+        void add(Entry<MemorySegment> entry) throws IOException {
+            MemorySegment key = entry.key();
+            long valueSize = entry.isTombstone() ? 0 : entry.value().byteSize();
+            long entrySize = ENTRY_HEADER_SIZE + key.byteSize() + valueSize;
+            if (buffer.position() > 0 && buffer.position() + entrySize > blockSize) {
+                finishBlock();
+            }
+            if (buffer.position() == 0) {
+                if (entrySize > buffer.capacity()) {
+                    buffer = ByteBuffer.allocateDirect(Math.toIntExact(entrySize)).order(ByteOrder.nativeOrder());
+                }
+                firstKeys.add(key);
+                previousKey = null;
+            }
+            int shared = 0;
+            if (previousKey != null) {
+                long mismatch = previousKey.mismatch(key);
+                shared = (int) (mismatch == -1 ? key.byteSize() : mismatch);
+            }
+            buffer.putInt(shared)
+                    .putInt((int) key.byteSize() - shared)
+                    .putInt(entry.isTombstone() ? SSTable.NULL_VALUE : (int) valueSize);
+            buffer.put(key.asSlice(shared).asByteBuffer());
+            if (!entry.isTombstone()) {
+                buffer.put(entry.value().asByteBuffer());
+            }
+            previousKey = key;
+            entryCount++;
+        }
+
+        void finish() throws IOException {
+            if (buffer.position() > 0) {
+                finishBlock();
+            }
+            long indexOffset = fileOffset;
+            for (int i = 0; i < firstKeys.size(); i++) {
+                MemorySegment key = firstKeys.get(i);
+                ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_HEADER_SIZE + (int) key.byteSize())
+                        .order(ByteOrder.nativeOrder());
+                entry.putLong(blockOffsets.get(i)).putInt(blockLengths.get(i)).putInt((int) key.byteSize());
+                entry.put(key.asByteBuffer());
+                entry.flip();
+                writeFully(entry);
+            }
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE).order(ByteOrder.nativeOrder());
+            footer.putLong(indexOffset).putLong(firstKeys.size()).putLong(entryCount).putLong(MAGIC);
+            footer.flip();
+            writeFully(footer);
+        }
+
+        private void finishBlock() throws IOException {
+            blockOffsets.add(fileOffset);
+            if (deflater == null) {
+                blockLengths.add(buffer.position());
+                writeBuffer();
+                return;
+            }
+            buffer.flip();
+            int length = buffer.remaining();
+            if (deflated == null || deflated.capacity() < length) {
+                deflated = ByteBuffer.allocateDirect(length + length / 8 + 64).order(ByteOrder.nativeOrder());
+            }
+            deflated.clear();
+            deflated.putInt(length);
+            deflater.reset();
+            deflater.setInput(buffer);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (!deflated.hasRemaining()) {
+                    deflated.flip();
+                    deflated = ByteBuffer.allocateDirect(deflated.capacity() * 2)
+                            .order(ByteOrder.nativeOrder())
+                            .put(deflated);
+                }
+                deflater.deflate(deflated);
+            }
+            deflated.flip();
+            blockLengths.add(deflated.remaining());
+            writeFully(deflated);
+            buffer.clear();
+        }
+
+        private void writeBuffer() throws IOException {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer source) throws IOException {
+            while (source.hasRemaining()) {
+                fileOffset += channel.write(source);
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+import java.nio.ByteOrder;
+
+/**
+ * Bloom filter over keys of one {@link SSTable}. It lives in the sidecar file with suffix
+ * {@link SSTable#BLOOM}: bit count (long), hash count (long) and then the bit words.
+ * Bits are set and tested directly in the mapped file, so the filter takes no heap.
+ */
+public final class BloomFilter {
+    private static final long HEADER_SIZE = 2L * Long.BYTES;
+    private static final long SEED = 0x5bd1e9955bd1e995L;
+    private static final long M = 0xc6a4a7935bd1e995L;
+    private static final int R = 47;
+    private static final double LN_2 = Math.log(2);
+
+    private final MemorySegment map;
+    private final long bitCount;
+    private final int hashCount;
+
+    private BloomFilter(MemorySegment map, long bitCount, int hashCount) {
+        this.map = map;
+        this.bitCount = bitCount;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Size of the file for a filter over {@code keys} keys with {@code bitsPerKey} bits per key.
+     */
+    public static long sizeInBytes(long keys, int bitsPerKey) {
+        return HEADER_SIZE + bitCount(keys, bitsPerKey) / Byte.SIZE;
+    }
+
+    /**
+     * Creates an empty filter in {@code map}, which must be zeroed and
+     * at least {@link #sizeInBytes(long, int)} long.
+     */
+    public static BloomFilter create(MemorySegment map, long keys, int bitsPerKey) {
+        long bitCount = bitCount(keys, bitsPerKey);
+        int hashCount = Math.max(1, (int) Math.round(bitsPerKey * LN_2));
+        MemoryAccess.setLongAtOffset(map, 0, bitCount);
+        MemoryAccess.setLongAtOffset(map, Long.BYTES, hashCount);
+        return new BloomFilter(map, bitCount, hashCount);
+    }
+
+    public static BloomFilter load(MemorySegment map) {
+        long bitCount = MemoryAccess.getLongAtOffset(map, 0);
+        int hashCount = (int) MemoryAccess.getLongAtOffset(map, Long.BYTES);
+        return new BloomFilter(map, bitCount, hashCount);
+    }
+
+    public void add(MemorySegment key) {
+        long hash = hash(key);
+        long delta = Long.rotateLeft(hash, 32);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = (hash & Long.MAX_VALUE) % bitCount;
+            long offset = HEADER_SIZE + (bit >>> 6) * Long.BYTES;
+            long word = MemoryAccess.getLongAtOffset(map, offset);
+            MemoryAccess.setLongAtOffset(map, offset, word | (1L << bit));
+            hash += delta;
+        }
+    }
+
+    /**
+     * Returns false only if the key was never added.
+     */
+    public boolean mightContain(MemorySegment key) {
+        long hash = hash(key);
+        long delta = Long.rotateLeft(hash, 32);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = (hash & Long.MAX_VALUE) % bitCount;
+            long word = MemoryAccess.getLongAtOffset(map, HEADER_SIZE + (bit >>> 6) * Long.BYTES);
+            if ((word & (1L << bit)) == 0) {
+                return false;
+            }
+            hash += delta;
+        }
+        return true;
+    }
+
+    private static long bitCount(long keys, int bitsPerKey) {
+        long bits = Math.max(Long.SIZE, keys * bitsPerKey);
+        return (bits + Long.SIZE - 1) / Long.SIZE * Long.SIZE;
+    }
+
+    /**
+     * MurmurHash64A over key bytes read in little-endian order, so filters don't depend on the platform.
+     */
+    static long hash(MemorySegment key) {
+        long size = key.byteSize();
+        long h = SEED ^ (size * M);
+        long offset = 0;
+        for (; offset + Long.BYTES <= size; offset += Long.BYTES) {
+            long k = MemoryAccess.getLongAtOffset(key, offset, ByteOrder.LITTLE_ENDIAN);
+            k *= M;
+            k ^= k >>> R;
+            k *= M;
+            h ^= k;
+            h *= M;
+        }
+        if (offset < size) {
+            long tail = 0;
+            for (long i = size - 1; i >= offset; i--) {
+                tail = (tail << Byte.SIZE) | (MemoryAccess.getByteAtOffset(key, i) & 0xFF);
+            }
+            h ^= tail;
+            h *= M;
+        }
+        h ^= h >>> R;
+        h *= M;
+        h ^= h >>> R;
+        return h;
+    }
+}
@@ -0,0 +1,52 @@
+package lsm.dao;
+
+import lsm.Config;
+
+import java.util.List;
+
+/**
+ * Chooses tables for the next compaction. It is called with the current tables of the storage,
+ * and the chosen ones are merged into new tables, which take the place of the oldest input.
+ */
+@FunctionalInterface
+public interface CompactionStrategy {
+
+    /**
+     * Chooses tables for background compaction.
+     *
+     * @param tables live tables from oldest to newest
+     * @return next compaction or null if nothing has to be compacted
+     */
+    CompactionStrategy.Task pick(List<SSTable> tables);
+
+    /**
+     * Compaction of all tables, which is requested by {@link LsmDao#compact()}.
+     */
+    default CompactionStrategy.Task major(List<SSTable> tables) {
+        return new Task(tables, tables.get(0).getLevel(), Long.MAX_VALUE);
+    }
+
+    static CompactionStrategy of(Config config) {
+        Config.Compaction compaction = config.compaction();
+        return switch (compaction.strategy()) {
+            case NONE -> tables -> null;
+            case SIZE_TIERED -> new SizeTieredCompaction(config.flushThresholdBytes(),
+                    compaction.minTables(), compaction.maxTables());
+            case LEVELED -> new LeveledCompaction(config.flushThresholdBytes(),
+                    compaction.minTables(), compaction.levelRatio());
+        };
+    }
+
+    /**
+     * Tables are ordered by level from the deepest one, so tables of the same level are adjacent
+     * and level 0 tables are the newest. Strategy has to choose inputs so that after this reordering
+     * a newer version of a key still goes after an older one.
+     *
+     * @param inputs tables to merge
+     * @param level level of the new tables
+     * @param maxTableBytes size after which output goes to the next table
+     */
+    record Task(List<SSTable> inputs, int level, long maxTableBytes) {
+        //empty
+    }
+}
@@ -3,10 +3,12 @@ package lsm.dao;
 import jdk.incubator.foreign.MemorySegment;
 import lsm.Entry;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 
 public final class CustomIterators {
     private CustomIterators() {
@@ -30,13 +32,15 @@ public final class CustomIterators {
         return mergeTwo(new PeekingIterator<>(first), new PeekingIterator<>(second));
     }
 
+    /**
+     * Merging any number of iterators in O(log N) per element.
+     *
+     * @param iterators sorted iterators, later ones have more priority on equal keys
+     * @return merged iterator without duplicate keys
+     */
     public static PeekingIterator<Entry<MemorySegment>> mergeList(
             List<Iterator<Entry<MemorySegment>>> iterators) {
-        return iterators
-                .stream()
-                .map(PeekingIterator::new)
-                .reduce(CustomIterators::mergeTwo)
-                .orElseThrow();
+        return new PeekingIterator<>(new MergeIterator(iterators));
     }
 
     /**
@@ -118,16 +122,89 @@ public final class CustomIterators {
             MemorySegment from, MemorySegment to, Storage fixedStorage) {
 
         List<SSTable> tables = fixedStorage.ssTables();
+        List<Storage.Memory> flushing = fixedStorage.flushing();
 
         Iterator<Entry<MemorySegment>> memory = fixedStorage.memory().get(from, to);
-        Iterator<Entry<MemorySegment>> readOnly = fixedStorage.readOnlyMemory().get(from, to);
-        Iterator<Entry<MemorySegment>> disc = Utils.tablesRange(from, to, tables);
+        if (tables.isEmpty() && flushing.isEmpty()) {
+            return new PeekingIterator<>(memory);
+        }
+        List<Iterator<Entry<MemorySegment>>> iterators = new ArrayList<>(tables.size() + flushing.size() + 1);
+        for (SSTable table : tables) {
+            if (table.overlaps(from, to)) {
+                iterators.add(table.range(from, to));
+            }
+        }
+        for (Storage.Memory sealed : flushing) {
+            iterators.add(sealed.get(from, to));
+        }
+        iterators.add(memory);
+        return mergeList(iterators);
+    }
+
+    /**
+     * Heap of sources ordered by their current key, on equal keys the source with greater index is on top.
+     * Top entry is returned, and the other sources with the same key are moved past it.
+     */
+    private static final class MergeIterator implements Iterator<Entry<MemorySegment>> {
+        private final PriorityQueue<Source> heap;
+
+        MergeIterator(List<Iterator<Entry<MemorySegment>>> iterators) {
+            heap = new PriorityQueue<>(Math.max(1, iterators.size()));
+            for (int i = 0; i < iterators.size(); i++) {
+                Iterator<Entry<MemorySegment>> iterator = iterators.get(i);
+                if (iterator.hasNext()) {
+                    heap.add(new Source(iterator, i));
+                }
+            }
+        }
 
-        PeekingIterator<Entry<MemorySegment>> merged = CustomIterators.getMergedTwo(readOnly, memory);
-        if (!tables.isEmpty()) {
-            merged = CustomIterators.getMergedTwo(disc, merged);
+        @Override
+        public boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        @Override
+        public Entry<MemorySegment> next() {
+            Source top = heap.poll();
+            if (top == null) {
+                throw new NoSuchElementException();
+            }
+            Entry<MemorySegment> result = top.current;
+            while (!heap.isEmpty()
+                    && Utils.compareMemorySegments(heap.peek().current.key(), result.key()) == 0) {
+                advance(heap.poll());
+            }
+            advance(top);
+            return result;
+        }
+
+        private void advance(Source source) {
+            if (source.iterator.hasNext()) {
+                source.current = source.iterator.next();
+                heap.add(source);
+            }
+        }
+    }
+
+    private static final class Source implements Comparable<Source> {
+        private final Iterator<Entry<MemorySegment>> iterator;
+        private final int priority;
+        private Entry<MemorySegment> current;
+
+        Source(Iterator<Entry<MemorySegment>> iterator, int priority) {
+            this.iterator = iterator;
+            this.priority = priority;
+            this.current = iterator.next();
+        }
+
+        @Override
+        public int compareTo(Source o) {
+            int compare = Utils.compareMemorySegments(current.key(), o.current.key());
+            if (compare != 0) {
+                return compare;
+            }
+            return Integer.compare(o.priority, priority);
         }
-        return merged;
     }
 
 }
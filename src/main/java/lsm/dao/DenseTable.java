@@ -0,0 +1,110 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+import java.nio.ByteOrder;
+
+/**
+ * Mapped files of a table in {@link lsm.Config.TableFormat#DENSE} format, entries are read by {@link Utils}.
+ * Version 1 has no header, its index starts with offset 0 of the first entry:
+ * <pre>
+ * index: offset of entry (long) * n
+ * entry: key length (long), key, value length (long, {@link SSTable#NULL_VALUE} for tombstone), value
+ * </pre>
+ * Version 2 has varint lengths and 4-byte offsets, unless the table is bigger than 4 GiB:
+ * <pre>
+ * index: magic (long), version (int), offset size (int), offset of entry (int or long) * n
+ * entry: key length (varint), key, {@link #TOMBSTONE} or {@link #VALUE} (byte), value length (varint), value
+ * </pre>
+ * Varint is unsigned LEB128: 7 bits in every byte from the lowest ones, high bit is set in all bytes but the last.
+ * <p>
+ * Version 3 has the entries of version 2 and {@link #prefix key prefix} before every offset, so binary search
+ * compares most keys in the index and reads the table file only for keys with equal prefix:
+ * <pre>
+ * index: magic (long), version (int), offset size (int), (key prefix (long), offset of entry (int or long)) * n
+ * </pre>
+ *
+ * @param offsets offsets of entries with their prefixes, without the header
+ */
+public record DenseTable(MemorySegment mapFile, MemorySegment offsets, int version, int offsetBytes) {
+    public static final long MAGIC = 0x4C534D5F444E5332L;
+    public static final int VERSION = 3;
+    public static final int PREFIX_VERSION = 3;
+    public static final int HEADER_SIZE = Long.BYTES + 2 * Integer.BYTES;
+    public static final byte VALUE = 0;
+    public static final byte TOMBSTONE = 1;
+
+    public static DenseTable open(MemorySegment mapFile, MemorySegment mapIndex) {
+        if (mapIndex.byteSize() < HEADER_SIZE || MemoryAccess.getLongAtOffset(mapIndex, 0) != MAGIC) {
+            return new DenseTable(mapFile, mapIndex, 1, Long.BYTES);
+        }
+        int version = MemoryAccess.getIntAtOffset(mapIndex, Long.BYTES);
+        int offsetBytes = MemoryAccess.getIntAtOffset(mapIndex, Long.BYTES + Integer.BYTES);
+        if (version < 2 || version > VERSION || (offsetBytes != Integer.BYTES && offsetBytes != Long.BYTES)) {
+            throw new IllegalStateException("Unknown dense table version " + version + " with offsets of "
+                    + offsetBytes + " bytes");
+        }
+        return new DenseTable(mapFile, mapIndex.asSlice(HEADER_SIZE), version, offsetBytes);
+    }
+
+    public boolean hasPrefixes() {
+        return version >= PREFIX_VERSION;
+    }
+
+    public long count() {
+        return offsets.byteSize() / indexEntryBytes(version, offsetBytes);
+    }
+
+    public long offset(long index) {
+        long position = index * indexEntryBytes(version, offsetBytes) + (hasPrefixes() ? Long.BYTES : 0);
+        if (offsetBytes == Integer.BYTES) {
+            return Integer.toUnsignedLong(MemoryAccess.getIntAtOffset(offsets, position));
+        }
+        return MemoryAccess.getLongAtOffset(offsets, position);
+    }
+
+    /**
+     * Must be called only if the table {@link #hasPrefixes()}.
+     */
+    public long prefix(long index) {
+        return MemoryAccess.getLongAtOffset(offsets, index * indexEntryBytes(version, offsetBytes));
+    }
+
+    public static int indexEntryBytes(int version, int offsetBytes) {
+        return version >= PREFIX_VERSION ? Long.BYTES + offsetBytes : offsetBytes;
+    }
+
+    /**
+     * First 8 bytes of the key as big-endian long with sign bits of bytes flipped, padded with zeros.
+     * Unsigned order of prefixes agrees with {@link Utils#compareMemorySegments}, which compares bytes as signed:
+     * keys with different prefixes are ordered as their prefixes, keys with equal ones have to be compared.
+     */
+    public static long prefix(MemorySegment key) {
+        long size = key.byteSize();
+        if (size >= Long.BYTES) {
+            return MemoryAccess.getLongAtOffset(key, 0, ByteOrder.BIG_ENDIAN) ^ 0x8080_8080_8080_8080L;
+        }
+        long prefix = 0;
+        for (int i = 0; i < size; i++) {
+            long b = (MemoryAccess.getByteAtOffset(key, i) ^ 0x80) & 0xFFL;
+            prefix |= b << (Long.SIZE - Byte.SIZE * (i + 1));
+        }
+        return prefix;
+    }
+
+    public static long getVarint(MemorySegment segment, long offset) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = MemoryAccess.getByteAtOffset(segment, offset++);
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    public static int varintSize(long value) {
+        return Math.max(1, (Long.SIZE - Long.numberOfLeadingZeros(value) + 6) / 7);
+    }
+}
@@ -0,0 +1,49 @@
+package lsm.dao;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with power of two buckets: bucket i counts durations up to
+ * {@link #upperBoundNanos(int) 2^(i + 10)} ns, starting from about a microsecond, and the last one counts the rest.
+ * Recording increments one bucket and the sum, it doesn't lock or allocate.
+ */
+public final class Histogram {
+    public static final int BUCKETS = 28;
+    private static final int MIN_SHIFT = 10;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        counts[bucket(nanos)].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * @param bucket from 0 to {@link #BUCKETS}, the last one has no upper bound
+     */
+    public long count(int bucket) {
+        return counts[bucket].sum();
+    }
+
+    public long sumNanos() {
+        return sumNanos.sum();
+    }
+
+    public static long upperBoundNanos(int bucket) {
+        return 1L << (bucket + MIN_SHIFT);
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos <= 1L << MIN_SHIFT) {
+            return 0;
+        }
+        return Math.min(BUCKETS, Long.SIZE - Long.numberOfLeadingZeros(nanos - 1) - MIN_SHIFT);
+    }
+}
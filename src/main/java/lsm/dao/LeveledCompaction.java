@@ -0,0 +1,138 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Level 0 consists of flushed tables, which may overlap. Every deeper level is a set of tables
+ * of about {@code tableBytes} with disjoint key ranges, so a key is searched in at most one table per level,
+ * and every level is {@code levelRatio} times bigger than the previous one.
+ *
+ * <p>The level with the highest score is compacted: for level 0 it is the number of tables
+ * against {@code level0Tables}, for the others it is size against the target size.
+ * Level 0 is merged into level 1 completely, a deeper level gives one table, which overlaps the least bytes
+ * of the next level. Only overlapping tables of the next level are rewritten.
+ */
+public final class LeveledCompaction implements CompactionStrategy {
+    private final long tableBytes;
+    private final int level0Tables;
+    private final int levelRatio;
+
+    public LeveledCompaction(long tableBytes, int level0Tables, int levelRatio) {
+        this.tableBytes = tableBytes;
+        this.level0Tables = Math.max(1, level0Tables);
+        this.levelRatio = Math.max(2, levelRatio);
+    }
+
+    @Override
+    public CompactionStrategy.Task pick(List<SSTable> tables) {
+        int maxLevel = 0;
+        for (SSTable table : tables) {
+            maxLevel = Math.max(maxLevel, table.getLevel());
+        }
+        long[] levelBytes = new long[maxLevel + 1];
+        int level0Count = 0;
+        for (SSTable table : tables) {
+            levelBytes[table.getLevel()] += table.sizeInBytes();
+            if (table.getLevel() == 0) {
+                level0Count++;
+            }
+        }
+
+        int bestLevel = -1;
+        double bestScore = 1;
+        if (level0Count >= level0Tables) {
+            bestLevel = 0;
+            bestScore = (double) level0Count / level0Tables;
+        }
+        for (int level = 1; level <= maxLevel; level++) {
+            double score = levelBytes[level] / targetBytes(level);
+            if (score > bestScore) {
+                bestLevel = level;
+                bestScore = score;
+            }
+        }
+        if (bestLevel == -1) {
+            return null;
+        }
+        if (bestLevel == 0) {
+            return compactLevel0(tables);
+        }
+        return compactTable(tables, bestLevel);
+    }
+
+    /**
+     * Everything goes to the deepest level, split into tables of the usual size.
+     */
+    @Override
+    public CompactionStrategy.Task major(List<SSTable> tables) {
+        return new Task(tables, Math.max(1, tables.get(0).getLevel()), tableBytes);
+    }
+
+    private double targetBytes(int level) {
+        return (double) tableBytes * level0Tables * Math.pow(levelRatio, level - 1);
+    }
+
+    private Task compactLevel0(List<SSTable> tables) {
+        List<SSTable> level0 = new ArrayList<>();
+        for (SSTable table : tables) {
+            if (table.getLevel() == 0) {
+                level0.add(table);
+            }
+        }
+        MemorySegment first = null;
+        MemorySegment last = null;
+        for (SSTable table : level0) {
+            if (table.firstKey() == null) {
+                continue;
+            }
+            if (first == null || Utils.compareMemorySegments(table.firstKey(), first) < 0) {
+                first = table.firstKey();
+            }
+            if (last == null || Utils.compareMemorySegments(table.lastKey(), last) > 0) {
+                last = table.lastKey();
+            }
+        }
+        List<SSTable> inputs = overlapping(tables, 1, first, last);
+        inputs.addAll(level0);
+        return new Task(inputs, 1, tableBytes);
+    }
+
+    private Task compactTable(List<SSTable> tables, int level) {
+        SSTable chosen = null;
+        long chosenOverlap = Long.MAX_VALUE;
+        for (SSTable table : tables) {
+            if (table.getLevel() != level) {
+                continue;
+            }
+            long overlap = 0;
+            for (SSTable next : overlapping(tables, level + 1, table.firstKey(), table.lastKey())) {
+                overlap += next.sizeInBytes();
+            }
+            if (overlap < chosenOverlap) {
+                chosen = table;
+                chosenOverlap = overlap;
+            }
+        }
+        List<SSTable> inputs = overlapping(tables, level + 1, chosen.firstKey(), chosen.lastKey());
+        inputs.add(chosen);
+        return new Task(inputs, level + 1, tableBytes);
+    }
+
+    private static List<SSTable> overlapping(List<SSTable> tables, int level, MemorySegment first, MemorySegment last) {
+        List<SSTable> result = new ArrayList<>();
+        if (first == null) {
+            return result;
+        }
+        for (SSTable table : tables) {
+            if (table.getLevel() == level && table.firstKey() != null
+                    && Utils.compareMemorySegments(table.firstKey(), last) <= 0
+                    && Utils.compareMemorySegments(first, table.lastKey()) <= 0) {
+                result.add(table);
+            }
+        }
+        return result;
+    }
+}
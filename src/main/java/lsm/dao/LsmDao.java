@@ -9,68 +9,179 @@ import org.slf4j.LoggerFactory;
 
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UncheckedIOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class LsmDao implements Dao<MemorySegment, Entry<MemorySegment>> {
     private final Config config;
     private long nextTableNum;
-    private volatile boolean isCompact;
     private volatile boolean isClosed;
-    private final ExecutorService flushExecutor
-            = Executors.newSingleThreadExecutor(r -> new Thread(r, "flushThread"));
+    private final ExecutorService flushExecutor;
     private final ExecutorService compactExecutor
             = Executors.newSingleThreadExecutor(r -> new Thread(r, "compactThread"));
     private volatile Storage storage;
-    private volatile List<SSTable> duringCompactionTables = new ArrayList<>();
+    private final WriteAheadLog wal;
+    private final BlockCache blockCache;
+    private final CompactionStrategy compactionStrategy;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final WriteStall writeStall;
+    private final FlushWriter flushWriter;
+    private final Metrics metrics = new Metrics();
+    private final Deque<Sealed> sealedQueue = new ArrayDeque<>(); //guarded by this
+    private IOException flushFailure; //guarded by this
+    private boolean logsKept; //guarded by this
 
-    private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private static final long MIN_ENTRY_SIZE = 2L * Long.BYTES;
+    private static final int SNAPSHOT_COPY_DIVISOR = 8;
+    private static final int BATCH_SPINS = 64;
+
+    private final ReentrantLock sealLock = new ReentrantLock();
+    private final ReentrantLock batchLock = new ReentrantLock();
+    private volatile long batchVersion; //odd while a batch is being put, written under batchLock
+    private final AtomicInteger openSnapshots = new AtomicInteger();
     public static final Logger logger = LoggerFactory.getLogger(LsmDao.class);
 
     /**
-     * Get all files from dir(config.basePath), remove all files to file with suffix "compacted".
-     * It's restricted, that amount of compacted files couldn't be more than 2.
+     * Opens tables listed in the {@link Manifest}, then replays write-ahead log left by previous run
+     * and flushes it to a new table.
      */
     public LsmDao(Config config) throws IOException {
+        this(config, null);
+    }
+
+    /**
+     * @param flushWriter writes flushed memory instead of {@link SSTable#writeTable}, to delay or fail flushes
+     *                    in tests, or null
+     */
+    LsmDao(Config config, FlushWriter flushWriter) throws IOException {
         this.config = config;
-        SSTable.Directory directory = SSTable.retrieveDir(config.basePath());
-        List<SSTable> fromDisc = directory.ssTables();
-        if (fromDisc.isEmpty()) {
-            this.nextTableNum = 0;
-            this.storage = new Storage(Storage.Memory.getNewMemory(config.flushThresholdBytes()),
-                    Storage.Memory.EMPTY_MEMORY, Collections.emptyList(), config);
-            return;
+        this.flushWriter = flushWriter == null ? this::writeTable : flushWriter;
+        this.blockCache = config.blockCacheBytes() > 0
+                ? new BlockCache(config.blockCacheBytes(), config.blockSize())
+                : null;
+        if (blockCache != null && config.tableFormat() != Config.TableFormat.BLOCK) {
+            logger.warn("Block cache of {} bytes is used only by BLOCK tables, new tables are {}",
+                    config.blockCacheBytes(), config.tableFormat());
+        }
+        this.compactionStrategy = CompactionStrategy.of(config);
+        this.writeStall = new WriteStall(config.writeStall());
+        this.flushExecutor = Executors.newFixedThreadPool(config.flushThreads(), r -> new Thread(r, "flushThread"));
+        List<SSTable> ssTables = openTables();
+        this.nextTableNum = ssTables.isEmpty() ? 0 : Utils.getLastTableNum(ssTables);
+        this.storage = new Storage(Storage.Memory.create(config), null,
+                List.of(), ssTables, config);
+        this.wal = new WriteAheadLog(config, recoverLog());
+        this.storage = new Storage(storage.memory(), wal.current(), storage.flushing(), storage.ssTables(), config);
+    }
+
+    /**
+     * Directory without manifest is from the time before it: tables are ordered by number,
+     * and the ones before the last file with suffix "compacted" are removed. Manifest is written for them.
+     * Files which are not in the manifest are removed.
+     */
+    private List<SSTable> openTables() throws IOException {
+        Path dir = config.basePath();
+        List<SSTable> ssTables;
+        if (Manifest.exists(dir)) {
+            ssTables = new ArrayList<>();
+            for (Manifest.Item item : Manifest.read(dir)) {
+                ssTables.add(SSTable.open(dir.resolve(item.table()), item.level(), blockCache));
+            }
+        } else {
+            SSTable.Directory directory = SSTable.retrieveDir(dir, blockCache);
+            List<SSTable> fromDisc = directory.ssTables();
+            ssTables = fromDisc;
+            if (directory.indexOfLastCompacted() != 0) {
+                ssTables = fromDisc.subList(directory.indexOfLastCompacted(), fromDisc.size());
+                Utils.deleteTablesToIndex(fromDisc, directory.indexOfLastCompacted());
+            }
+            Manifest.write(dir, ssTables);
+        }
+        Manifest.deleteUnlisted(dir, ssTables);
+        return ssTables;
+    }
+
+    /**
+     * Segments are deleted only after their entries are in a table, so a crash during recovery
+     * just repeats it.
+     *
+     * @return number for the next log segment
+     */
+    private long recoverLog() throws IOException {
+        List<Path> segments = WriteAheadLog.segments(config.basePath());
+        if (segments.isEmpty()) {
+            return 0;
+        }
+        Storage.Memory memory = storage.memory();
+        for (Path segment : segments) {
+            logger.info("Replaying {}", segment);
+            WriteAheadLog.replay(segment, entry -> memory.put(entry.key(), entry));
+        }
+        Sealed sealed;
+        synchronized (this) {
+            storage = storage.seal(null);
+            sealed = new Sealed(memory, null);
+            sealedQueue.add(sealed);
         }
-        List<SSTable> ssTables = fromDisc;
-        if (directory.indexOfLastCompacted() != 0) {
-            ssTables = fromDisc.subList(directory.indexOfLastCompacted(), fromDisc.size());
-            Utils.deleteTablesToIndex(fromDisc, directory.indexOfLastCompacted());
+        flushSealed(sealed);
+        await(sealed.installed);
+        for (Path segment : segments) {
+            Files.delete(segment);
         }
-        this.nextTableNum = Utils.getLastTableNum(ssTables);
-        this.storage = new Storage(Storage.Memory.getNewMemory(config.flushThresholdBytes()),
-                Storage.Memory.EMPTY_MEMORY, ssTables, config);
+        return WriteAheadLog.segmentNum(segments.get(segments.size() - 1)) + 1;
     }
 
     @Override
     public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to) {
         closeCheck();
+        long start = System.nanoTime();
         Storage fixedStorage = this.storage;
         PeekingIterator<Entry<MemorySegment>> merged = CustomIterators.getMergedIterator(from, to, fixedStorage);
-        return CustomIterators.skipTombstones(merged);
+        return metrics.ranged(CustomIterators.skipTombstones(merged), start);
+    }
+
+    /**
+     * Same as {@link #get(MemorySegment, MemorySegment)}, but tombstones are returned too,
+     * for callers which skip them in portions rather than in one call of {@code hasNext}.
+     */
+    public Iterator<Entry<MemorySegment>> getWithTombstones(MemorySegment from, MemorySegment to) {
+        closeCheck();
+        long start = System.nanoTime();
+        return metrics.ranged(CustomIterators.getMergedIterator(from, to, this.storage), start);
     }
 
+    /**
+     * Merges all tables, which exist at the moment, in background.
+     * A single table is rewritten only if it may have tombstones to drop.
+     */
     @Override
     public void compact() throws IOException {
-        if (isCompact) {
-            return;
-        }
         compactExecutor.execute(() -> {
             try {
-                performCompact();
+                CompactionStrategy.Task task;
+                synchronized (this) {
+                    List<SSTable> tables = this.storage.ssTables();
+                    if (tables.isEmpty() || tables.size() == 1 && tables.get(0).metadata().tombstones() == 0) {
+                        logger.info("Reject compact because it's redundant");
+                        return;
+                    }
+                    task = compactionStrategy.major(tables);
+                }
+                performCompact(task);
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
@@ -78,156 +189,672 @@ public class LsmDao implements Dao<MemorySegment, Entry<MemorySegment>> {
     }
 
     /**
-     * Compact will be blocked until latest flush is done.
+     * Waits until {@link #compact()} calls made before are done and background compaction has no more work
+     * with tables of the flushes completed before: it is scheduled before a flush completes.
+     * For tests and tools which need the shape of the tree to settle.
      */
-    private void performCompact() throws IOException {
-        Path compactedPath;
-        List<SSTable> fixed;
-        synchronized (flushExecutor) {
-            fixed = this.storage.ssTables();
-            closeCheck();
-            if (fixed.isEmpty() || (fixed.size() == 1 && fixed.get(0).isCompacted())) {
-                logger.info("Reject compact because it's redundant");
-                return;
+    public void awaitCompaction() throws IOException {
+        closeCheck();
+        await(compactExecutor.submit(() -> { }));
+    }
+
+    /**
+     * Starts background compaction, if it isn't started yet. It runs while the strategy finds work.
+     */
+    private void scheduleCompaction() {
+        if (config.compaction().strategy() == Config.Compaction.Strategy.NONE
+                || compactExecutor.isShutdown()
+                || !compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            compactExecutor.execute(this::compactInBackground);
+        } catch (RejectedExecutionException e) {
+            compactionScheduled.set(false);
+        }
+    }
+
+    private void compactInBackground() {
+        compactionScheduled.set(false);
+        try {
+            while (!compactExecutor.isShutdown()) {
+                CompactionStrategy.Task task;
+                synchronized (this) {
+                    task = compactionStrategy.pick(this.storage.ssTables());
+                }
+                if (task == null) {
+                    return;
+                }
+                performCompact(task);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Merges inputs into new tables, which take the place of the oldest input.
+     * Inputs are released only after the outputs are forced and listed in the manifest.
+     * Tombstones are dropped if no older table may contain their keys.
+     * Only flushes change tables meanwhile, and they add newer tables to the end.
+     */
+    private void performCompact(CompactionStrategy.Task task) throws IOException {
+        List<SSTable> inputs;
+        boolean dropTombstones;
+        synchronized (this) {
+            List<SSTable> tables = this.storage.ssTables();
+            Set<SSTable> taskInputs = new HashSet<>(task.inputs());
+            inputs = tables.stream().filter(taskInputs::contains).toList();
+            dropTombstones = hasNoOlderOverlapping(tables, inputs);
+        }
+        logger.info("Compacting {} tables into level {}", inputs.size(), task.level());
+
+        long start = System.nanoTime();
+        long expectedKeys = 0;
+        long readBytes = 0;
+        for (SSTable input : inputs) {
+            expectedKeys += input.entryCount();
+            long tombstones = input.metadata().tombstones();
+            if (dropTombstones && tombstones != TableMetadata.UNKNOWN) {
+                expectedKeys -= tombstones;
             }
-            duringCompactionTables = new ArrayList<>();
-            duringCompactionTables.add(null);//for compacted table in future
-            compactedPath = nextCompactedTable();
-            isCompact = true;
+            readBytes += input.sizeInBytes();
+        }
+        expectedKeys = Math.min(expectedKeys, task.maxTableBytes() / MIN_ENTRY_SIZE + 1);
+        Iterator<Entry<MemorySegment>> values = compactionInput(inputs, dropTombstones);
+        List<SSTable> outputs = new ArrayList<>();
+        while (values.hasNext()) {
+            outputs.add(SSTable.writeTable(
+                    nextOrdinaryTable(),
+                    Utils.limitSize(values, task.maxTableBytes()),
+                    expectedKeys,
+                    task.level(),
+                    config,
+                    blockCache
+            ));
         }
-        SSTable.Sizes sizes = Utils.getSizes(Utils.tablesFilteredFullRange(fixed));
-        Iterator<Entry<MemorySegment>> forWrite = Utils.tablesFilteredFullRange(fixed);
-        SSTable compacted = SSTable.writeTable(compactedPath, forWrite, sizes.tableSize(), sizes.indexSize());
 
         synchronized (this) { //sync between concurrent flush and compact
-            duringCompactionTables.set(0, compacted);
-            isCompact = false;
-            storage = storage.updateSSTables(duringCompactionTables);
+            Set<SSTable> merged = new HashSet<>(inputs);
+            List<SSTable> tables = this.storage.ssTables();
+            List<SSTable> newTables = new ArrayList<>(tables.size() - inputs.size() + outputs.size());
+            for (SSTable table : tables) {
+                if (table == inputs.get(0)) {
+                    newTables.addAll(outputs);
+                }
+                if (!merged.contains(table)) {
+                    newTables.add(table);
+                }
+            }
+            newTables.sort(Comparator.comparingInt(SSTable::getLevel).reversed());
+            Manifest.write(config.basePath(), newTables);
+            storage = storage.updateSSTables(newTables);
+        }
+        long writtenBytes = 0;
+        for (SSTable output : outputs) {
+            writtenBytes += output.sizeInBytes();
+        }
+        metrics.compacted(start, readBytes, writtenBytes);
+        for (SSTable input : inputs) {
+            input.release();
         }
-        Utils.deleteTablesToIndex(fixed, fixed.size());
     }
 
+    private static boolean hasNoOlderOverlapping(List<SSTable> tables, List<SSTable> inputs) {
+        int firstInput = tables.indexOf(inputs.get(0));
+        for (int i = 0; i < firstInput; i++) {
+            for (SSTable input : inputs) {
+                if (tables.get(i).overlaps(input)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static Iterator<Entry<MemorySegment>> compactionInput(List<SSTable> inputs, boolean dropTombstones) {
+        if (dropTombstones) {
+            return Utils.tablesFilteredFullRange(inputs);
+        }
+        return Utils.tablesRange(null, null, inputs);
+    }
+
+    /**
+     * Entry is written to the log before it goes to memory, both holding the monitor of the log segment,
+     * so that memory gets writes to the same key in the order replay restores them.
+     * The record is encoded before that, and the sync with disk is awaited after the writer exits memory,
+     * so that concurrent upserts could share it.
+     * Before that the writer may be delayed or blocked by {@link WriteStall}, if flush can't keep up.
+     */
     @Override
     public void upsert(Entry<MemorySegment> entry) {
+        long start = System.nanoTime();
+        writeStall.beforeWrite(this::getStorage);
+        ByteBuffer record = WriteAheadLog.encode(List.of(entry));
         boolean oversize;
-        rwLock.readLock().lock();
+        Storage writeStorage = enterMemory();
+        WriteAheadLog.Segment segment = writeStorage.log();
+        long logPosition;
         try {
-            Storage localStorage = this.storage;
-            if (localStorage.memory().isOversize().get() && localStorage.isFlushing()) { //if user's flush now running
-                throw new IllegalStateException("So many upserts");
+            synchronized (segment) {
+                logPosition = segment.append(record);
+                oversize = writeStorage.memory().put(entry.key(), entry);
             }
-            oversize = localStorage.memory().put(entry.key(), entry);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         } finally {
-            rwLock.readLock().unlock();
+            writeStorage.memory().exit();
+        }
+        try {
+            wal.awaitDurable(segment, logPosition);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
         if (oversize) {
-            asyncFlush();
+            sealIfFull();
         }
+        metrics.upserted(start, Utils.sizeOfEntry(entry));
     }
 
-    private void asyncFlush() {
-        flushExecutor.execute(() -> {
+    /**
+     * Entries are written to the log as one record, so the batch is replayed entirely or not at all.
+     * It is put into one memory, which isn't flushed until the writer exits it, and inside
+     * {@link #batchVersion} updates, so point gets don't see a part of it.
+     * Like a single upsert, it holds the monitor of the log segment from the append to the end of the put.
+     */
+    @Override
+    public void upsert(Collection<Entry<MemorySegment>> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        writeStall.beforeWrite(this::getStorage);
+        ByteBuffer record = WriteAheadLog.encode(entries);
+        boolean oversize;
+        Storage writeStorage = enterMemory();
+        WriteAheadLog.Segment segment = writeStorage.log();
+        long logPosition;
+        try {
+            batchLock.lock();
             try {
-                synchronized (flushExecutor) {
-                    logger.info("Start program flush");
-                    processFlush();
-                    logger.info("Program flush is finished");
+                synchronized (segment) {
+                    logPosition = segment.append(record);
+                    batchVersion++;
+                    try {
+                        oversize = writeStorage.memory().putAll(entries);
+                    } finally {
+                        batchVersion++;
+                    }
                 }
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
+            } finally {
+                batchLock.unlock();
             }
-        });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            writeStorage.memory().exit();
+        }
+        try {
+            wal.awaitDurable(segment, logPosition);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (oversize) {
+            sealIfFull();
+        }
+        long bytes = 0;
+        for (Entry<MemorySegment> entry : entries) {
+            bytes += Utils.sizeOfEntry(entry);
+        }
+        metrics.upserted(start, bytes);
     }
 
     /**
-     * Only one flush per time, this flush may be blocked until it could be performed.
+     * Returns storage whose memory the writer has {@link Storage.Memory#enter() entered}, it must exit it
+     * after the put. If the memory is sealed in between, the new one is already in storage,
+     * so a retry waits at most for the volatile read to see it.
+     */
+    private Storage enterMemory() {
+        while (true) {
+            Storage writeStorage = this.storage;
+            if (writeStorage.memory().enter()) {
+                return writeStorage;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Seals oversize memory, if there is room for one more table waiting for flush.
+     * Otherwise it is sealed when the oldest one is flushed.
+     */
+    private void sealIfFull() {
+        sealLock.lock();
+        try {
+            Storage localStorage = this.storage;
+            if (isClosed
+                    || !localStorage.memory().isOversize().get()
+                    || localStorage.flushing().size() >= config.writeStall().maxImmutableTables()) {
+                return;
+            }
+            seal();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            sealLock.unlock();
+        }
+    }
+
+    /**
+     * Must be called under {@link #sealLock}. Writers don't take it: new memory with its log segment
+     * is published first, and then the old memory is sealed, so writers which still entered it are
+     * awaited by its flush.
+     *
+     * @return future which is completed when the table of the memory is added to storage
+     */
+    private CompletableFuture<Void> seal() throws IOException {
+        return seal(false).installed;
+    }
+
+    /**
+     * @param pin whether to keep storage as it was before sealing in {@link Sealed#pinned} with its tables retained
+     */
+    private Sealed seal(boolean pin) throws IOException {
+        WriteAheadLog.Segment sealedLog = wal.rotate();
+        Sealed sealed;
+        synchronized (this) {
+            Storage before = storage;
+            storage = before.seal(wal.current());
+            sealed = new Sealed(before.memory(), sealedLog);
+            sealedQueue.add(sealed);
+            if (pin) {
+                for (SSTable table : before.ssTables()) {
+                    table.retain();
+                }
+                sealed.pinned = new Storage(before.memory(), null, before.flushing(), before.ssTables(), config);
+            }
+        }
+        sealed.memory.seal();
+        flushExecutor.execute(() -> flushSealed(sealed));
+        return sealed;
+    }
+
+    /**
+     * Returns a view of memory and tables of the moment. Writers which still entered sealed memory are awaited,
+     * so the snapshot contains every write completed before the call and none started after it.
+     * <p>
+     * Memory up to {@link #SNAPSHOT_COPY_DIVISOR}-th of the flush threshold, or any memory while
+     * {@link Config.WriteStall#maxImmutableTables()} wait for flush, is copied to heap, so frequent snapshots
+     * don't make tiny tables. Bigger memory is sealed like {@link #flush()} without waiting for it,
+     * and only then the caller may be delayed by {@link WriteStall} like a writer. It is never blocked or failed
+     * by it: there is room for the sealed memory, and the copy adds no work for flush.
+     */
+    @Override
+    public Snapshot snapshot() throws IOException {
+        if (sealsForSnapshot(this.storage)) {
+            writeStall.beforeSeal(this.storage);
+        }
+        Storage pinned;
+        sealLock.lock();
+        try {
+            closeCheck();
+            pinned = sealsForSnapshot(this.storage) ? seal(true).pinned : pinCopy();
+            openSnapshots.incrementAndGet();
+        } finally {
+            sealLock.unlock();
+        }
+        pinned.memory().awaitWriters();
+        for (Storage.Memory memory : pinned.flushing()) {
+            memory.awaitWriters();
+        }
+        return new Snapshot(pinned, openSnapshots::decrementAndGet);
+    }
+
+    private boolean sealsForSnapshot(Storage current) {
+        return current.memory().size() > config.flushThresholdBytes() / SNAPSHOT_COPY_DIVISOR
+                && current.flushing().size() < config.writeStall().maxImmutableTables();
+    }
+
+    /**
+     * Must be called under {@link #sealLock}, so memory receiving writes stays the same.
+     * Writers put into it holding the monitor of its log segment, so they wait for the copy to finish,
+     * and it has every write acknowledged before, batches included.
+     *
+     * @return storage with the copy in place of memory and its tables retained
+     */
+    private Storage pinCopy() {
+        Storage current;
+        synchronized (this) {
+            current = this.storage;
+            for (SSTable table : current.ssTables()) {
+                table.retain();
+            }
+        }
+        Storage.Memory copy;
+        synchronized (current.log()) {
+            copy = current.memory().copy();
+        }
+        return new Storage(copy, null, current.flushing(), current.ssTables(), config);
+    }
+
+    /**
+     * Seals memory regardless of {@link Config.WriteStall#maxImmutableTables()} and waits until it
+     * and all memory sealed before it are flushed.
      */
     @Override
     public void flush() throws IOException {
         logger.info("User want to flush");
-        synchronized (flushExecutor) {
+        CompletableFuture<Void> flushed;
+        sealLock.lock();
+        try {
             closeCheck();
-            logger.info("User's flush is started");
-            processFlush();
-            logger.info("User's flush is finished");
+            flushed = storage.memory().isEmpty() ? lastSealed() : seal();
+        } finally {
+            sealLock.unlock();
         }
+        await(flushed);
+        logger.info("User's flush is finished");
+    }
+
+    private synchronized CompletableFuture<Void> lastSealed() {
+        Sealed last = sealedQueue.peekLast();
+        return last == null ? CompletableFuture.completedFuture(null) : last.installed;
     }
 
-    private void processFlush() throws IOException {
-        rwLock.writeLock().lock();
+    private static void await(Future<?> future) throws IOException {
         try {
-            storage = storage.beforeFlush();
-        } finally {
-            rwLock.writeLock().unlock();
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for flush");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException(e.getCause());
         }
-        performFlush();
-        storage = storage.afterFlush();
     }
 
     /**
-     * We flush only readOnlyTable.
+     * Memory tables are written concurrently, but their tables are added to storage in order of sealing:
+     * the flush which completes the oldest run of written tables installs all of them at once.
+     * Log segment is closed when the last writer of the memory exits,
+     * and deleted only when the table is forced to disk and listed in the manifest.
      */
-    private void performFlush() throws IOException {
-        Storage.Memory readOnlyMemTable = storage.readOnlyMemory();
-        if (readOnlyMemTable.isEmpty()) {
+    private void flushSealed(Sealed sealed) {
+        logger.info("Start flush");
+        List<Sealed> installed;
+        try {
+            sealed.memory.awaitWriters();
+            if (sealed.log != null) {
+                sealed.log.close();
+            }
+            long start = System.nanoTime();
+            sealed.table = writeMemory(sealed.memory);
+            metrics.flushed(start, sealed.table == null ? 0 : sealed.table.sizeInBytes());
+            installed = installWritten(sealed);
+        } catch (IOException e) {
+            failFlushes(e);
             return;
+        } catch (UncheckedIOException e) {
+            failFlushes(e.getCause());
+            return;
+        }
+        if (!installed.isEmpty()) {
+            scheduleCompaction();
+        }
+        for (Sealed done : installed) {
+            done.installed.complete(null);
+        }
+        logger.info("Flush is finished, {} tables installed", installed.size());
+        if (!installed.isEmpty()) {
+            writeStall.flushed();
+            sealIfFull();
         }
-        SSTable.Sizes sizes = Utils.getSizes(readOnlyMemTable.values().iterator());
-        SSTable table = SSTable.writeTable(
-                nextOrdinaryTable(),
-                readOnlyMemTable.values().iterator(),
-                sizes.tableSize(),
-                sizes.indexSize()
+    }
+
+    private SSTable writeMemory(Storage.Memory memory) throws IOException {
+        if (memory.isEmpty()) {
+            return null;
+        }
+        return flushWriter.write(nextOrdinaryTable(), memory);
+    }
+
+    private SSTable writeTable(Path table, Storage.Memory memory) throws IOException {
+        return SSTable.writeTable(
+                table,
+                memory.get(null, null),
+                memory.count(),
+                0,
+                config,
+                blockCache
         );
-        synchronized (this) { //sync between concurrent flush and compact
-            if (isCompact) {
-                duringCompactionTables.add(table);
+    }
+
+    /**
+     * Sync between concurrent flushes and compaction.
+     *
+     * @return sealed memory whose tables were added to storage, oldest first
+     */
+    private synchronized List<Sealed> installWritten(Sealed sealed) throws IOException {
+        sealed.written = true;
+        if (flushFailure != null) {
+            sealed.installed.completeExceptionally(flushFailure);
+            return List.of();
+        }
+        List<Sealed> ready = new ArrayList<>();
+        for (Sealed queued : sealedQueue) {
+            if (!queued.written) {
+                break;
+            }
+            ready.add(queued);
+        }
+        if (ready.isEmpty()) {
+            return ready;
+        }
+        List<SSTable> ssTables = this.storage.ssTables();
+        List<SSTable> newTables = new ArrayList<>(ssTables.size() + ready.size());
+        newTables.addAll(ssTables);
+        for (Sealed done : ready) {
+            if (done.table != null) {
+                newTables.add(done.table);
             }
-            List<SSTable> ssTables = this.storage.ssTables();
-            ArrayList<SSTable> newTables = new ArrayList<>(ssTables.size() + 1);
-            newTables.addAll(ssTables);
-            newTables.add(table);
-            storage = storage.updateSSTables(newTables);
         }
+        if (newTables.size() > ssTables.size()) {
+            Manifest.write(config.basePath(), newTables);
+        }
+        Storage newStorage = storage.updateSSTables(newTables);
+        for (Sealed done : ready) {
+            newStorage = newStorage.afterFlush(done.memory);
+            sealedQueue.poll();
+        }
+        storage = newStorage;
+        deleteLogs(ready);
+        return ready;
     }
 
+    /**
+     * Deletes log segments of installed tables, oldest first. Replay of a segment left behind
+     * would put its old values over newer tables, so after a failed delete the later segments
+     * are kept too: replaying all of them in order ends with the newest values.
+     */
+    private void deleteLogs(List<Sealed> installed) {
+        for (Sealed done : installed) {
+            if (done.log == null || logsKept) {
+                continue;
+            }
+            try {
+                done.log.delete();
+            } catch (IOException e) {
+                logger.error("Can't delete log segment, keeping it and the later ones until restart", e);
+                logsKept = true;
+            }
+        }
+    }
+
+    /**
+     * Tables can't be added out of order, so memory sealed after a failed flush is never flushed.
+     * It stays readable and in the log, and is recovered by the next open.
+     */
+    private synchronized void failFlushes(IOException e) {
+        logger.error("Flush failed", e);
+        flushFailure = e;
+        for (Sealed sealed : sealedQueue) {
+            sealed.installed.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Fails if a {@link Snapshot} is still open: its tables would be closed under it.
+     */
     @Override
     public void close() throws IOException {
-        Utils.shutdownExecutor(flushExecutor);
-        Utils.shutdownExecutor(compactExecutor);
-        synchronized (flushExecutor) {
+        CompletableFuture<Void> flushed;
+        sealLock.lock();
+        try {
             if (isClosed) {
                 logger.info("Trying to close already closed storage");
                 return;
             }
+            int snapshots = openSnapshots.get();
+            if (snapshots > 0) {
+                throw new IllegalStateException("Can't close storage with " + snapshots + " open snapshots");
+            }
             isClosed = true;
             logger.info("Closing storage");
-            processFlush();
+            flushed = storage.memory().isEmpty() ? lastSealed() : seal();
+        } finally {
+            sealLock.unlock();
+        }
+        Utils.shutdownExecutor(flushExecutor);
+        Utils.shutdownExecutor(compactExecutor);
+        try {
+            await(flushed);
+        } finally {
+            wal.close();
             for (SSTable table : this.storage.ssTables()) {
                 table.close();
             }
+            if (blockCache != null) {
+                blockCache.close();
+            }
         }
     }
 
+    /**
+     * Looks the key up in memory, then in memory waiting for flush and in tables from newest to oldest,
+     * and stops at the first match, tombstones included.
+     * Tables whose bloom filter rejects the key are not searched at all.
+     */
     @Override
     public Entry<MemorySegment> get(MemorySegment key) {
-        Iterator<Entry<MemorySegment>> singleIterator = get(key, null);
-        if (!singleIterator.hasNext()) {
-            return null;
+        closeCheck();
+        long start = System.nanoTime();
+        Storage fixedStorage = this.storage;
+        Entry<MemorySegment> entry = getFromMemory(fixedStorage, key);
+        if (entry == null) {
+            entry = getFromTables(fixedStorage.ssTables(), key);
         }
-        Entry<MemorySegment> desired = singleIterator.next();
-        if (Utils.compareMemorySegments(desired.key(), key) != 0) {
+        metrics.got(start);
+        if (entry == null || entry.isTombstone()) {
             return null;
         }
-        return desired;
+        return entry;
     }
 
-    private Path nextOrdinaryTable() {
-        return nextTable(String.valueOf(nextTableNum++));
+    /**
+     * Like {@link #get(MemorySegment)} for every key, but all of them are read from one storage
+     * and memory of all of them is read at once, so the result doesn't contain a part of a batch.
+     */
+    @Override
+    public List<Entry<MemorySegment>> getAll(List<MemorySegment> keys) {
+        closeCheck();
+        long start = System.nanoTime();
+        Storage fixedStorage = this.storage;
+        List<Entry<MemorySegment>> entries = new ArrayList<>(keys.size());
+        for (int attempt = 0; ; attempt++) {
+            long version = batchVersion;
+            if ((version & 1) == 0) {
+                for (MemorySegment key : keys) {
+                    entries.add(getFromMemoryUnchecked(fixedStorage, key));
+                }
+                VarHandle.acquireFence();
+                if (batchVersion == version) {
+                    break;
+                }
+                entries.clear();
+            }
+            awaitBatch(attempt);
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            Entry<MemorySegment> entry = entries.get(i);
+            if (entry == null) {
+                entry = getFromTables(fixedStorage.ssTables(), keys.get(i));
+            }
+            entries.set(i, entry == null || entry.isTombstone() ? null : entry);
+        }
+        metrics.got(start);
+        return entries;
     }
 
-    private Path nextCompactedTable() {
-        return nextTable(nextTableNum++ + SSTable.COMPACTED);
+    /**
+     * Seqlock read: repeated while a batch is being put, which may happen only in memory.
+     */
+    private Entry<MemorySegment> getFromMemory(Storage fixedStorage, MemorySegment key) {
+        for (int attempt = 0; ; attempt++) {
+            long version = batchVersion;
+            if ((version & 1) == 0) {
+                Entry<MemorySegment> entry = getFromMemoryUnchecked(fixedStorage, key);
+                VarHandle.acquireFence();
+                if (batchVersion == version) {
+                    return entry;
+                }
+            }
+            awaitBatch(attempt);
+        }
+    }
+
+    /**
+     * Small batches are put while the reader spins a few times. A bigger one is awaited on
+     * {@link #batchLock}, which its writer holds until the put is over, so readers don't burn CPU
+     * for the whole put.
+     */
+    private void awaitBatch(int attempt) {
+        if (attempt < BATCH_SPINS) {
+            Thread.onSpinWait();
+            return;
+        }
+        batchLock.lock();
+        batchLock.unlock();
+    }
+
+    static Entry<MemorySegment> getFromMemoryUnchecked(Storage fixedStorage, MemorySegment key) {
+        Entry<MemorySegment> entry = fixedStorage.memory().get(key);
+        List<Storage.Memory> flushing = fixedStorage.flushing();
+        for (int i = flushing.size() - 1; entry == null && i >= 0; i--) {
+            entry = flushing.get(i).get(key);
+        }
+        return entry;
+    }
+
+    static Entry<MemorySegment> getFromTables(List<SSTable> tables, MemorySegment key) {
+        for (int i = tables.size() - 1; i >= 0; i--) {
+            SSTable table = tables.get(i);
+            if (table.mightContain(key)) {
+                Entry<MemorySegment> entry = table.get(key);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    private synchronized Path nextOrdinaryTable() {
+        return nextTable(String.valueOf(nextTableNum++));
     }
 
     private Path nextTable(String name) {
@@ -244,4 +871,44 @@ public class LsmDao implements Dao<MemorySegment, Entry<MemorySegment>> {
         return storage;
     }
 
+    /**
+     * Memory waiting for flush, fields are guarded by the dao.
+     */
+    /**
+     * Writes flushed memory to a new table.
+     */
+    @FunctionalInterface
+    interface FlushWriter {
+        SSTable write(Path table, Storage.Memory memory) throws IOException;
+    }
+
+    private static final class Sealed {
+        final Storage.Memory memory;
+        final WriteAheadLog.Segment log;
+        final CompletableFuture<Void> installed = new CompletableFuture<>();
+        boolean written;
+        SSTable table;
+        Storage pinned;
+
+        Sealed(Storage.Memory memory, WriteAheadLog.Segment log) {
+            this.memory = memory;
+            this.log = log;
+        }
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public WriteStall.Stats getWriteStallStats() {
+        return writeStall.stats();
+    }
+
+    /**
+     * Returns cache of table blocks or null if {@link Config#blockCacheBytes()} is 0.
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
 }
@@ -0,0 +1,133 @@
+package lsm.dao;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * List of live tables from oldest to newest with their levels, one line per table: file name and level.
+ * It is replaced atomically on every flush and compaction, so a table exists for readers only after
+ * it is listed here. Files which are not listed are leftovers of interrupted flush or compaction:
+ * entries of an unlisted flush are still in the write-ahead log, inputs of an unlisted compaction are still listed.
+ */
+public final class Manifest {
+    public static final String NAME = "MANIFEST";
+
+    private Manifest() {
+
+    }
+
+    public record Item(String table, int level) {
+        //empty
+    }
+
+    public static boolean exists(Path dir) {
+        return Files.exists(dir.resolve(NAME));
+    }
+
+    public static boolean isManifest(Path path) {
+        return path.getFileName().toString().startsWith(NAME);
+    }
+
+    public static List<Item> read(Path dir) throws IOException {
+        List<Item> items = new ArrayList<>();
+        for (String line : Files.readAllLines(dir.resolve(NAME), StandardCharsets.UTF_8)) {
+            if (line.isBlank()) {
+                continue;
+            }
+            String[] parts = line.split(" ");
+            if (parts.length != 2) {
+                throw new IllegalStateException("Broken manifest line: " + line);
+            }
+            items.add(new Item(parts[0], Integer.parseInt(parts[1])));
+        }
+        return items;
+    }
+
+    /**
+     * Writes new version to a temporary file, forces it and moves it over the old one,
+     * then forces the directory, so the new version survives a crash of the machine.
+     */
+    public static void write(Path dir, List<SSTable> tables) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (SSTable table : tables) {
+            builder.append(table.getTableName().getFileName()).append(' ').append(table.getLevel()).append('\n');
+        }
+        Path temp = dir.resolve(NAME + SSTable.TEMP);
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Utils.rename(temp, dir.resolve(NAME));
+        Utils.forceDirectory(dir);
+    }
+
+    /**
+     * Deletes table files (with index, bloom filter, metadata and temporary ones) which are not in {@code tables}.
+     * Only names of files written by the dao are considered, other files in the directory are left alone.
+     */
+    public static void deleteUnlisted(Path dir, List<SSTable> tables) throws IOException {
+        Set<String> listed = new HashSet<>();
+        for (SSTable table : tables) {
+            listed.add(table.getTableName().getFileName().toString());
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (!isDaoFile(name) || Files.isDirectory(file)) {
+                    continue;
+                }
+                if (name.endsWith(SSTable.TEMP) || !listed.contains(tableName(name))) {
+                    LsmDao.logger.info("Deleting unlisted file {}", file);
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true for {@code <number>[_compacted][_i|_bloom|_meta]} and their temporary files,
+     * and for the temporary file of the manifest.
+     */
+    private static boolean isDaoFile(String fileName) {
+        if (!fileName.endsWith(SSTable.TEMP)) {
+            return isTableFile(fileName);
+        }
+        String name = Utils.removeSuffix(fileName, SSTable.TEMP);
+        return name.equals(NAME) || isTableFile(name);
+    }
+
+    private static boolean isTableFile(String fileName) {
+        String name = tableName(fileName);
+        if (name.endsWith(SSTable.COMPACTED)) {
+            name = Utils.removeSuffix(name, SSTable.COMPACTED);
+        }
+        return !name.isEmpty() && name.chars().allMatch(c -> c >= '0' && c <= '9');
+    }
+
+    private static String tableName(String fileName) {
+        if (fileName.endsWith(SSTable.INDEX)) {
+            return Utils.removeSuffix(fileName, SSTable.INDEX);
+        }
+        if (fileName.endsWith(SSTable.BLOOM)) {
+            return Utils.removeSuffix(fileName, SSTable.BLOOM);
+        }
+        if (fileName.endsWith(SSTable.META)) {
+            return Utils.removeSuffix(fileName, SSTable.META);
+        }
+        return fileName;
+    }
+}
@@ -0,0 +1,114 @@
+package lsm.dao;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of {@link LsmDao} since it was opened. Every call of an operation is one record, so a batch
+ * upsert is one upsert and a multi-get is one get. A range get is measured from the call until its iterator
+ * is exhausted, so it includes the time the caller spends between entries. Ranges which are abandoned
+ * before the end are not recorded.
+ * <p>
+ * Written bytes are sizes of tables on disk, user bytes are sizes of upserted entries,
+ * write amplification is their ratio. State of tables and memory is in {@link LsmDao#getStorage()}.
+ */
+public final class Metrics {
+    private final Histogram upsert = new Histogram();
+    private final Histogram get = new Histogram();
+    private final Histogram range = new Histogram();
+    private final Histogram flush = new Histogram();
+    private final Histogram compaction = new Histogram();
+
+    private final LongAdder userBytes = new LongAdder();
+    private final LongAdder flushBytes = new LongAdder();
+    private final LongAdder compactionReadBytes = new LongAdder();
+    private final LongAdder compactionWrittenBytes = new LongAdder();
+
+    void upserted(long startNanos, long bytes) {
+        upsert.record(System.nanoTime() - startNanos);
+        userBytes.add(bytes);
+    }
+
+    void got(long startNanos) {
+        get.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns view of the range, which records its time when {@code hasNext} returns false for the first time.
+     */
+    <T> Iterator<T> ranged(Iterator<T> iterator, long startNanos) {
+        return new Iterator<>() {
+            private boolean recorded;
+
+            @Override
+            public boolean hasNext() {
+                boolean hasNext = iterator.hasNext();
+                if (!hasNext && !recorded) {
+                    recorded = true;
+                    range.record(System.nanoTime() - startNanos);
+                }
+                return hasNext;
+            }
+
+            @Override
+            public T next() {
+                return iterator.next();
+            }
+        };
+    }
+
+    void flushed(long startNanos, long bytes) {
+        flush.record(System.nanoTime() - startNanos);
+        flushBytes.add(bytes);
+    }
+
+    void compacted(long startNanos, long readBytes, long writtenBytes) {
+        compaction.record(System.nanoTime() - startNanos);
+        compactionReadBytes.add(readBytes);
+        compactionWrittenBytes.add(writtenBytes);
+    }
+
+    public Histogram upsert() {
+        return upsert;
+    }
+
+    public Histogram get() {
+        return get;
+    }
+
+    public Histogram range() {
+        return range;
+    }
+
+    public Histogram flush() {
+        return flush;
+    }
+
+    public Histogram compaction() {
+        return compaction;
+    }
+
+    public long userBytes() {
+        return userBytes.sum();
+    }
+
+    public long flushBytes() {
+        return flushBytes.sum();
+    }
+
+    public long compactionReadBytes() {
+        return compactionReadBytes.sum();
+    }
+
+    public long compactionWrittenBytes() {
+        return compactionWrittenBytes.sum();
+    }
+
+    /**
+     * @return bytes written to tables per byte upserted, 0 before the first upsert
+     */
+    public double writeAmplification() {
+        long user = userBytes();
+        return user == 0 ? 0 : (double) (flushBytes() + compactionWrittenBytes()) / user;
+    }
+}
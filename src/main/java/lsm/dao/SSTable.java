@@ -3,17 +3,22 @@ package lsm.dao;
 import jdk.incubator.foreign.MemoryAccess;
 import jdk.incubator.foreign.MemorySegment;
 import jdk.incubator.foreign.ResourceScope;
+import lsm.Config;
 import lsm.Entry;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -22,11 +27,24 @@ public final class SSTable implements Closeable {
     public static final String TEMP = "_tmp";
     public static final String INDEX = "_i";
     public static final String COMPACTED = "_compacted";
+    public static final String BLOOM = "_bloom";
+    public static final String META = "_meta";
+    static final long MAX_INT_OFFSET = 0xFFFF_FFFFL;
     private final MemorySegment mapFile;
     private final MemorySegment mapIndex;
+    private final DenseTable denseTable;
+    private final BlockTable blockTable;
+    private final BloomFilter bloomFilter;
     private final Path tableName;
     private final Path indexName;
+    private final Path bloomName;
+    private final Path metaName;
+    private final int level;
+    private final TableMetadata metadata;
     private final ResourceScope sharedScope;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private static final AtomicLong nextId = new AtomicLong();
 
     private static final Cleaner cleaner = Cleaner.create(r -> {
         Thread cleanerThread = new Thread(r, "Cleaner thread");
@@ -42,15 +60,78 @@ public final class SSTable implements Closeable {
         return tableName;
     }
 
-    private SSTable(Path tableName, Path indexName, long tableSize, long indexSize) throws IOException {
+    public Path getBloomName() {
+        return bloomName;
+    }
+
+    public Path getMetaName() {
+        return metaName;
+    }
+
+    /**
+     * Level of the table for {@link lsm.Config.Compaction.Strategy#LEVELED}, 0 for flushed tables.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Table with {@link #INDEX} file is in dense format: entries in the table file and their offsets in the index,
+     * of any {@link DenseTable} version. Table without it is a {@link BlockTable}.
+     * Tables written without a bloom filter (or before filters existed) have no sidecar file
+     * and are always consulted. Tables written before {@link TableMetadata} get it from the table.
+     */
+    private SSTable(Path tableName, Path indexName, Path bloomName, Path metaName, int level, BlockCache cache)
+            throws IOException {
         sharedScope = ResourceScope.newSharedScope(cleaner);
-        mapFile = Utils.map(tableName, tableSize, FileChannel.MapMode.READ_ONLY, sharedScope);
+        mapFile = Utils.map(tableName, Files.size(tableName), FileChannel.MapMode.READ_ONLY, sharedScope);
         this.tableName = tableName;
-        mapIndex = Utils.map(indexName, indexSize, FileChannel.MapMode.READ_ONLY, sharedScope);
+        if (Files.exists(indexName)) {
+            mapIndex = Utils.map(indexName, Files.size(indexName), FileChannel.MapMode.READ_ONLY, sharedScope);
+            denseTable = DenseTable.open(mapFile, mapIndex);
+            blockTable = null;
+        } else {
+            mapIndex = null;
+            denseTable = null;
+            blockTable = BlockTable.open(mapFile, nextId.getAndIncrement(), cache);
+        }
         this.indexName = indexName;
+        this.bloomName = bloomName;
+        this.metaName = metaName;
+        this.level = level;
+        if (Files.exists(bloomName)) {
+            MemorySegment mapBloom = Utils.map(bloomName, Files.size(bloomName),
+                    FileChannel.MapMode.READ_ONLY, sharedScope);
+            bloomFilter = BloomFilter.load(mapBloom);
+        } else {
+            bloomFilter = null;
+        }
+        if (Files.exists(metaName)) {
+            metadata = TableMetadata.read(metaName);
+        } else {
+            long entries = blockTable != null ? blockTable.entryCount() : denseTable.count();
+            metadata = new TableMetadata(readFirstKey(), readLastKey(), entries,
+                    TableMetadata.UNKNOWN, TableMetadata.UNKNOWN, TableMetadata.UNKNOWN);
+        }
+    }
+
+    /**
+     * Opens existing table with its index and bloom filter.
+     *
+     * @param cache cache shared by the tables, may be null
+     */
+    public static SSTable open(Path table, int level, BlockCache cache) throws IOException {
+        return new SSTable(table, Utils.withSuffix(table, INDEX), Utils.withSuffix(table, BLOOM),
+                Utils.withSuffix(table, META), level, cache);
     }
 
-    public static Directory retrieveDir(Path dir) throws IOException {
+    /**
+     * Opens all tables of {@code dir} without {@link Manifest}, ordering them by number.
+     * Tables before the last {@link #COMPACTED} one are already merged into it.
+     *
+     * @param cache cache shared by the tables, may be null
+     */
+    public static Directory retrieveDir(Path dir, BlockCache cache) throws IOException {
         try (Stream<Path> files = Files.list(dir)) {
             Set<Path> compactedTables = new HashSet<>();
             List<Path> paths = sortPathsAndFindCompacted(dir, files, compactedTables);
@@ -59,7 +140,7 @@ public final class SSTable implements Closeable {
 
             List<SSTable> ssTables = paths
                     .stream()
-                    .map(SSTable::mapToTable)
+                    .map(path -> mapToTable(path, cache))
                     .toList();
             return new Directory(ssTables, indexOfLastCompacted);
         }
@@ -69,7 +150,8 @@ public final class SSTable implements Closeable {
         return files
                 .filter(path -> {
                     String s = path.toString();
-                    return !(s.endsWith(INDEX) || s.endsWith(TEMP));
+                    return !(s.endsWith(INDEX) || s.endsWith(TEMP) || s.endsWith(BLOOM) || s.endsWith(META)
+                            || s.endsWith(WriteAheadLog.SUFFIX) || Manifest.isManifest(path));
                 })
                 .mapToInt(path -> processFileName(compactedTables, path))
                 .sorted()
@@ -91,9 +173,6 @@ public final class SSTable implements Closeable {
         if (compactedTables.isEmpty()) {
             return 0;
         }
-        if (compactedTables.size() > 2) {
-            throw new IllegalStateException("compactedTables: " + compactedTables.size());
-        }
         for (int i = 0; i < paths.size(); i++) {
             Path path = paths.get(i);
             if (compactedTables.contains(path)) {
@@ -104,52 +183,107 @@ public final class SSTable implements Closeable {
         return lastCompactedIndex;
     }
 
-    private static SSTable mapToTable(Path path) {
+    private static SSTable mapToTable(Path path, BlockCache cache) {
         try {
-            Path index = Utils.withSuffix(path, INDEX);
-            return new SSTable(path, index, Files.size(path), Files.size(index));
+            return open(path, 0, cache);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
+    /**
+     * Writes table in {@link Config#tableFormat()} with its {@link TableMetadata} and bloom filter,
+     * if {@link Config#bloomBitsPerKey()} is positive. Values are iterated once and written through buffers, so the size is not needed in advance.
+     * All files are forced before they are renamed, and the directory after it, so a table listed in the
+     * {@link Manifest} after a crash of the machine has all of its files in full.
+     *
+     * @param expectedKeys upper bound of the number of entries, bloom filter is sized by it
+     * @param level level of the table in {@link Manifest}
+     */
     public static SSTable writeTable(Path table,
                                      Iterator<Entry<MemorySegment>> values,
-                                     long tableSize,
-                                     long indexSize) throws IOException {
+                                     long expectedKeys,
+                                     int level,
+                                     Config config,
+                                     BlockCache cache) throws IOException {
         Path tableTemp = Utils.withSuffix(table, TEMP);
 
         Path index = table.resolveSibling(table + INDEX);
         Path indexTemp = Utils.withSuffix(index, TEMP);
 
+        Path bloom = Utils.withSuffix(table, BLOOM);
+        Path bloomTemp = Utils.withSuffix(bloom, TEMP);
+
+        Path meta = Utils.withSuffix(table, META);
+        Path metaTemp = Utils.withSuffix(meta, TEMP);
+
+        boolean dense = config.tableFormat() == Config.TableFormat.DENSE;
+        int bloomBitsPerKey = config.bloomBitsPerKey();
         newFile(tableTemp);
-        newFile(indexTemp);
+        if (dense) {
+            newFile(indexTemp);
+        }
+        if (bloomBitsPerKey > 0) {
+            newFile(bloomTemp);
+        }
 
         try (ResourceScope writingScope = ResourceScope.newSharedScope()) {
-            MemorySegment fileMap = Utils.map(tableTemp, tableSize, FileChannel.MapMode.READ_WRITE, writingScope);
-            MemorySegment indexMap = Utils.map(indexTemp, indexSize, FileChannel.MapMode.READ_WRITE, writingScope);
-
-            long indexOffset = 0;
-            long fileOffset = 0;
+            BloomFilter bloomFilter = null;
+            if (bloomBitsPerKey > 0) {
+                MemorySegment bloomMap = Utils.map(bloomTemp, BloomFilter.sizeInBytes(expectedKeys, bloomBitsPerKey),
+                        FileChannel.MapMode.READ_WRITE, writingScope);
+                bloomFilter = BloomFilter.create(bloomMap, expectedKeys, bloomBitsPerKey);
+            }
+            TableMetadata.Collector collector = new TableMetadata.Collector(values);
+            if (dense) {
+                writeDense(tableTemp, indexTemp, collector, bloomFilter, DenseTable.VERSION, MAX_INT_OFFSET);
+            } else {
+                BlockTable.write(tableTemp, collector, config.blockSize(), config.compression(), bloomFilter);
+            }
+            collector.metadata().write(metaTemp);
+            Utils.force(metaTemp);
+            if (bloomFilter != null) {
+                Utils.force(bloomTemp);
+            }
+            if (dense) {
+                Utils.force(indexTemp);
+            }
+            Utils.force(tableTemp);
+            Utils.rename(metaTemp, meta);
+            if (bloomFilter != null) {
+                Utils.rename(bloomTemp, bloom);
+            }
+            if (dense) {
+                Utils.rename(indexTemp, index);
+            }
+            Utils.rename(tableTemp, table);
+            Utils.forceDirectory(table.getParent());
+        }
+        return new SSTable(table, index, bloom, meta, level, cache);
+    }
 
+    /**
+     * @param version {@link DenseTable#VERSION} or an older one starting from 2, to compare them
+     * @param maxIntOffset offsets up to this one are written in 4 bytes, see {@link DenseWriter}
+     */
+    static void writeDense(Path table,
+                           Path index,
+                           Iterator<Entry<MemorySegment>> values,
+                           BloomFilter bloomFilter,
+                           int version,
+                           long maxIntOffset) throws IOException {
+        try (FileChannel tableChannel = FileChannel.open(table, StandardOpenOption.WRITE);
+             FileChannel indexChannel = FileChannel.open(index, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            DenseWriter writer = new DenseWriter(tableChannel, indexChannel, version, maxIntOffset);
             while (values.hasNext()) {
                 Entry<MemorySegment> entry = values.next();
-                MemoryAccess.setLongAtOffset(indexMap, indexOffset, fileOffset);
-                indexOffset += Long.BYTES;
-
-                fileOffset += Utils.writeSegment(entry.key(), fileMap, fileOffset);
-
-                if (entry.value() == null) {
-                    MemoryAccess.setLongAtOffset(fileMap, fileOffset, NULL_VALUE);
-                    fileOffset += Long.BYTES;
-                    continue;
+                if (bloomFilter != null) {
+                    bloomFilter.add(entry.key());
                 }
-                fileOffset += Utils.writeSegment(entry.value(), fileMap, fileOffset);
+                writer.add(entry);
             }
-            Utils.rename(indexTemp, index);
-            Utils.rename(tableTemp, table);
+            writer.finish();
         }
-        return new SSTable(table, index, tableSize, indexSize);
     }
 
     private static void newFile(Path tableTemp) throws IOException {
@@ -160,10 +294,13 @@ public final class SSTable implements Closeable {
     }
 
     public Iterator<Entry<MemorySegment>> range(MemorySegment from, MemorySegment to) {
+        if (blockTable != null) {
+            return blockTable.range(from, to);
+        }
         long li = 0;
-        long ri = mapIndex.byteSize() / Long.BYTES;
+        long ri = denseTable.count();
         if (from != null) {
-            li = Utils.binarySearch(from, mapFile, mapIndex);
+            li = Utils.binarySearch(from, denseTable);
             if (li == -1) {
                 li = 0;
             }
@@ -173,7 +310,7 @@ public final class SSTable implements Closeable {
         }
 
         if (to != null) {
-            ri = Utils.binarySearch(to, mapFile, mapIndex);
+            ri = Utils.binarySearch(to, denseTable);
             if (ri == -1) {
                 return Collections.emptyIterator();
             }
@@ -194,28 +331,118 @@ public final class SSTable implements Closeable {
                 if (!hasNext()) {
                     throw new NoSuchElementException();
                 }
-                Entry<MemorySegment> res = Utils.getByIndex(mapFile, mapIndex, pos);
+                Entry<MemorySegment> res = Utils.getByIndex(denseTable, pos);
                 pos++;
                 return res;
             }
         };
     }
 
-    @Override
-    public void close() throws IOException {
-        sharedScope.close();
+    /**
+     * Returns entry with exactly this key (tombstones included) or null.
+     */
+    public Entry<MemorySegment> get(MemorySegment key) {
+        if (blockTable != null) {
+            return blockTable.get(key);
+        }
+        long index = Utils.findIndex(key, denseTable);
+        if (index == -1) {
+            return null;
+        }
+        return Utils.getByIndex(denseTable, index);
     }
 
-    public boolean isCompacted() {
-        return tableName.toString().endsWith(COMPACTED);
+    /**
+     * Smallest key of the table or null if it is empty.
+     */
+    public MemorySegment firstKey() {
+        return metadata.firstKey();
     }
 
     /**
-     * record Sizes contains tableSize-size of SSTable,
-     * indexSize-size of indexTable.
+     * Largest key of the table or null if it is empty.
      */
-    public record Sizes(long tableSize, long indexSize) {
-        //empty
+    public MemorySegment lastKey() {
+        return metadata.lastKey();
+    }
+
+    public TableMetadata metadata() {
+        return metadata;
+    }
+
+    private MemorySegment readFirstKey() {
+        if (blockTable != null) {
+            return blockTable.firstKey();
+        }
+        return denseTable.count() == 0 ? null : Utils.getByIndex(denseTable, 0).key();
+    }
+
+    private MemorySegment readLastKey() {
+        if (blockTable != null) {
+            return blockTable.lastKey();
+        }
+        long count = denseTable.count();
+        return count == 0 ? null : Utils.getByIndex(denseTable, count - 1).key();
+    }
+
+    /**
+     * Returns true if key ranges of the tables intersect, empty tables intersect nothing.
+     */
+    public boolean overlaps(SSTable other) {
+        if (metadata.isEmpty() || other.metadata.isEmpty()) {
+            return false;
+        }
+        return Utils.compareMemorySegments(firstKey(), other.lastKey()) <= 0
+                && Utils.compareMemorySegments(other.firstKey(), lastKey()) <= 0;
+    }
+
+    /**
+     * Returns false if the table has no keys in [{@code from}, {@code to}), so its range would be empty.
+     */
+    public boolean overlaps(MemorySegment from, MemorySegment to) {
+        return metadata.overlaps(from, to);
+    }
+
+    public long entryCount() {
+        return metadata.entries();
+    }
+
+    /**
+     * Size of the table with its index on disk.
+     */
+    public long sizeInBytes() {
+        return mapFile.byteSize() + (mapIndex == null ? 0 : mapIndex.byteSize());
+    }
+
+    /**
+     * Returns false if the table certainly doesn't contain {@code key}.
+     */
+    public boolean mightContain(MemorySegment key) {
+        return metadata.covers(key) && (bloomFilter == null || bloomFilter.mightContain(key));
+    }
+
+    /**
+     * Table is held by the storage of the dao and by every {@link Snapshot} taken while it was there.
+     * Must be called under the lock of the dao, while the table is still in its storage.
+     */
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Files of the table are deleted when its last holder releases it: the dao releases tables replaced
+     * by compaction, and snapshots release theirs on close. The mapping is freed by the cleaner,
+     * so iterators opened before stay readable.
+     */
+    void release() throws IOException {
+        if (references.decrementAndGet() == 0) {
+            Utils.deleteTablesToIndex(List.of(this), 1);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        sharedScope.close();
     }
 
     public record Directory(List<SSTable> ssTables, int indexOfLastCompacted) {
@@ -226,4 +453,180 @@ public final class SSTable implements Closeable {
         return Integer.parseInt(path.getFileName().toString());
     }
 
+    /**
+     * Appends entries to the table file and their offsets with key prefixes to the index file
+     * through direct buffers. Everything goes through the buffer: channels don't accept buffers of mapped segments
+     * with shared scope.
+     * <p>
+     * Size of the table isn't known in advance, so offsets are written in 4 bytes until one doesn't fit.
+     * Then the index is widened in place from the end, where every offset moves only forward,
+     * and the rest of offsets are written in 8 bytes.
+     */
+    private static final class DenseWriter {
+        private static final int BUFFER_SIZE = 64 * 1024;
+        private static final int VARINT_MAX_SIZE = 10;
+        private static final long OFFSET_SIZE_POSITION = Long.BYTES + Integer.BYTES;
+
+        private final FileChannel tableChannel;
+        private final FileChannel indexChannel;
+        private final int version;
+        private final long maxIntOffset;
+        private final ByteBuffer tableBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+        private final ByteBuffer indexBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+        private long fileOffset;
+        private long count;
+        private int offsetBytes = Integer.BYTES;
+
+        DenseWriter(FileChannel tableChannel, FileChannel indexChannel, int version, long maxIntOffset) {
+            if (version < 2 || version > DenseTable.VERSION) {
+                throw new IllegalArgumentException("Can't write dense table version " + version);
+            }
+            this.tableChannel = tableChannel;
+            this.indexChannel = indexChannel;
+            this.version = version;
+            this.maxIntOffset = maxIntOffset;
+            indexBuffer.putLong(DenseTable.MAGIC).putInt(version).putInt(offsetBytes);
+        }
+
+        void add(Entry<MemorySegment> entry) throws IOException {
+            if (offsetBytes == Integer.BYTES && fileOffset > maxIntOffset) {
+                widenIndex();
+            }
+            if (version >= DenseTable.PREFIX_VERSION) {
+                putLong(indexBuffer, indexChannel, DenseTable.prefix(entry.key()));
+            }
+            if (offsetBytes == Integer.BYTES) {
+                putInt(indexBuffer, indexChannel, (int) fileOffset);
+            } else {
+                putLong(indexBuffer, indexChannel, fileOffset);
+            }
+            count++;
+            putSegment(entry.key());
+            if (entry.isTombstone()) {
+                putByte(DenseTable.TOMBSTONE);
+            } else {
+                putByte(DenseTable.VALUE);
+                putSegment(entry.value());
+            }
+        }
+
+        void finish() throws IOException {
+            writeBuffer(tableBuffer, tableChannel);
+            writeBuffer(indexBuffer, indexChannel);
+        }
+
+        private void putSegment(MemorySegment segment) throws IOException {
+            long length = segment.byteSize();
+            putVarint(length);
+            long written = 0;
+            while (written < length) {
+                if (!tableBuffer.hasRemaining()) {
+                    writeBuffer(tableBuffer, tableChannel);
+                }
+                long chunk = Math.min(length - written, tableBuffer.remaining());
+                tableBuffer.put(segment.asSlice(written, chunk).asByteBuffer());
+                written += chunk;
+            }
+            fileOffset += length;
+        }
+
+        private void putVarint(long value) throws IOException {
+            if (tableBuffer.remaining() < VARINT_MAX_SIZE) {
+                writeBuffer(tableBuffer, tableChannel);
+            }
+            long rest = value;
+            while ((rest & ~0x7FL) != 0) {
+                tableBuffer.put((byte) (rest | 0x80));
+                rest >>>= 7;
+            }
+            tableBuffer.put((byte) rest);
+            fileOffset += DenseTable.varintSize(value);
+        }
+
+        private void putByte(byte value) throws IOException {
+            if (!tableBuffer.hasRemaining()) {
+                writeBuffer(tableBuffer, tableChannel);
+            }
+            tableBuffer.put(value);
+            fileOffset++;
+        }
+
+        /**
+         * Rewrites 4-byte offsets as 8-byte ones by chunks from the end of the index, prefixes are copied as is.
+         */
+        private void widenIndex() throws IOException {
+            writeBuffer(indexBuffer, indexChannel);
+            boolean prefixes = version >= DenseTable.PREFIX_VERSION;
+            int narrowBytes = DenseTable.indexEntryBytes(version, Integer.BYTES);
+            int wideBytes = DenseTable.indexEntryBytes(version, Long.BYTES);
+            int chunkEntries = BUFFER_SIZE / wideBytes;
+            ByteBuffer narrow = ByteBuffer.allocateDirect(chunkEntries * narrowBytes).order(ByteOrder.nativeOrder());
+            long end = count;
+            while (end > 0) {
+                long start = Math.max(0, end - chunkEntries);
+                narrow.clear().limit((int) (end - start) * narrowBytes);
+                readFully(narrow, indexChannel, DenseTable.HEADER_SIZE + start * narrowBytes);
+                narrow.flip();
+                while (narrow.hasRemaining()) {
+                    if (prefixes) {
+                        indexBuffer.putLong(narrow.getLong());
+                    }
+                    indexBuffer.putLong(Integer.toUnsignedLong(narrow.getInt()));
+                }
+                indexBuffer.flip();
+                writeFully(indexBuffer, indexChannel, DenseTable.HEADER_SIZE + start * wideBytes);
+                indexBuffer.clear();
+                end = start;
+            }
+            offsetBytes = Long.BYTES;
+            indexBuffer.putInt(offsetBytes).flip();
+            writeFully(indexBuffer, indexChannel, OFFSET_SIZE_POSITION);
+            indexBuffer.clear();
+            indexChannel.position(DenseTable.HEADER_SIZE + count * wideBytes);
+        }
+
+        private static void putInt(ByteBuffer buffer, FileChannel channel, int value) throws IOException {
+            if (buffer.remaining() < Integer.BYTES) {
+                writeBuffer(buffer, channel);
+            }
+            buffer.putInt(value);
+        }
+
+        private static void putLong(ByteBuffer buffer, FileChannel channel, long value) throws IOException {
+            if (buffer.remaining() < Long.BYTES) {
+                writeBuffer(buffer, channel);
+            }
+            buffer.putLong(value);
+        }
+
+        private static void writeBuffer(ByteBuffer buffer, FileChannel channel) throws IOException {
+            buffer.flip();
+            writeFully(buffer, channel);
+            buffer.clear();
+        }
+
+        private static void writeFully(ByteBuffer source, FileChannel channel) throws IOException {
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        }
+
+        private static void writeFully(ByteBuffer source, FileChannel channel, long position) throws IOException {
+            long at = position;
+            while (source.hasRemaining()) {
+                at += channel.write(source, at);
+            }
+        }
+
+        private static void readFully(ByteBuffer target, FileChannel channel, long position) throws IOException {
+            long at = position;
+            while (target.hasRemaining()) {
+                int read = channel.read(target, at);
+                if (read < 0) {
+                    throw new IOException("Index is shorter than " + position);
+                }
+                at += read;
+            }
+        }
+    }
 }
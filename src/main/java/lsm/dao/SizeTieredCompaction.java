@@ -0,0 +1,70 @@
+package lsm.dao;
+
+import java.util.List;
+
+/**
+ * Merges a run of adjacent tables of similar size into one table. Merged tables are about
+ * {@code minTables} times bigger, so the number of tables grows as a logarithm of data size.
+ * Only adjacent tables are merged: the new table takes their place, and a table in between
+ * would be reordered against some of them.
+ */
+public final class SizeTieredCompaction implements CompactionStrategy {
+    private static final double BUCKET_LOW = 0.5;
+    private static final double BUCKET_HIGH = 1.5;
+
+    private final long minTableBytes;
+    private final int minTables;
+    private final int maxTables;
+
+    /**
+     * Tables smaller than {@code minTableBytes} are considered to be of this size, so small tables
+     * (flushed ones or mostly deleted) are merged together.
+     */
+    public SizeTieredCompaction(long minTableBytes, int minTables, int maxTables) {
+        this.minTableBytes = minTableBytes;
+        this.minTables = Math.max(2, minTables);
+        this.maxTables = Math.max(this.minTables, maxTables);
+    }
+
+    /**
+     * Splits tables into runs, where every table is within bucket bounds of the run's average size,
+     * and chooses the longest run, the one of smaller tables on tie.
+     */
+    @Override
+    public CompactionStrategy.Task pick(List<SSTable> tables) {
+        int bestStart = -1;
+        int bestCount = 0;
+        double bestAverage = 0;
+        int start = 0;
+        while (start < tables.size()) {
+            double total = size(tables.get(start));
+            int end = start + 1;
+            while (end < tables.size() && end - start < maxTables) {
+                double average = total / (end - start);
+                double size = size(tables.get(end));
+                if (size < average * BUCKET_LOW || size > average * BUCKET_HIGH) {
+                    break;
+                }
+                total += size;
+                end++;
+            }
+            int count = end - start;
+            double average = total / count;
+            if (count >= minTables && (count > bestCount || (count == bestCount && average < bestAverage))) {
+                bestStart = start;
+                bestCount = count;
+                bestAverage = average;
+            }
+            start = end;
+        }
+        if (bestStart == -1) {
+            return null;
+        }
+        List<SSTable> inputs = List.copyOf(tables.subList(bestStart, bestStart + bestCount));
+        return new Task(inputs, inputs.get(0).getLevel(), Long.MAX_VALUE);
+    }
+
+    private double size(SSTable table) {
+        return Math.max(table.sizeInBytes(), minTableBytes);
+    }
+}
@@ -0,0 +1,78 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import lsm.Dao;
+import lsm.Entry;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Read-only view of {@link LsmDao} at the moment of {@link LsmDao#snapshot()}: memory sealed or copied by it
+ * and tables of that moment. None of them changes, so repeated reads and long scans give the same result
+ * however the dao is written, flushed or compacted meanwhile.
+ * Tables replaced by compaction stay on disk until every snapshot holding them is closed.
+ * The dao refuses to close while it has open snapshots.
+ */
+public final class Snapshot implements Dao<MemorySegment, Entry<MemorySegment>> {
+    private final Storage storage;
+    private final Runnable onClose;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * @param storage sealed memory in place of {@link Storage#memory()}, tables retained for the snapshot
+     * @param onClose called once, after tables are released
+     */
+    Snapshot(Storage storage, Runnable onClose) {
+        this.storage = storage;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to) {
+        closeCheck();
+        return CustomIterators.skipTombstones(CustomIterators.getMergedIterator(from, to, storage));
+    }
+
+    @Override
+    public Entry<MemorySegment> get(MemorySegment key) {
+        closeCheck();
+        Entry<MemorySegment> entry = LsmDao.getFromMemoryUnchecked(storage, key);
+        if (entry == null) {
+            entry = LsmDao.getFromTables(storage.ssTables(), key);
+        }
+        if (entry == null || entry.isTombstone()) {
+            return null;
+        }
+        return entry;
+    }
+
+    @Override
+    public void upsert(Entry<MemorySegment> entry) {
+        throw new UnsupportedOperationException("Snapshot is read-only");
+    }
+
+    /**
+     * Releases tables of the snapshot, the ones compacted since then are deleted by the last holder.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            for (SSTable table : storage.ssTables()) {
+                table.release();
+            }
+        } finally {
+            onClose.run();
+        }
+    }
+
+    private void closeCheck() {
+        if (closed.get()) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+    }
+}
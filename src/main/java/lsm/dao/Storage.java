@@ -4,86 +4,271 @@ import jdk.incubator.foreign.MemorySegment;
 import lsm.Config;
 import lsm.Entry;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
-public record Storage(Memory memory, Memory readOnlyMemory, List<SSTable> ssTables, Config config) {
+/**
+ * Snapshot of the dao state. Every full memory table is sealed and waits in {@link #flushing()} for its table,
+ * while writes go to a new one. Writers take memory and its log from the same snapshot, so an entry is always
+ * logged to the segment which is deleted after the flush of its memory.
+ *
+ * @param memory table receiving writes
+ * @param log segment of the write-ahead log receiving writes of {@code memory}, null while the log is recovered
+ * @param flushing sealed tables from oldest to newest, they are flushed in this order
+ * @param ssTables tables from oldest to newest
+ */
+public record Storage(Memory memory, WriteAheadLog.Segment log, List<Memory> flushing, List<SSTable> ssTables,
+                      Config config) {
 
-    public Storage beforeFlush() {
-        if (readOnlyMemory != Memory.EMPTY_MEMORY) {
-            throw new IllegalStateException("Already flushing");
-        }
-        return new Storage(Memory.getNewMemory(config.flushThresholdBytes()),
-                this.memory,
+    /**
+     * @param newLog segment for writes of the new memory
+     */
+    public Storage seal(WriteAheadLog.Segment newLog) {
+        List<Memory> newFlushing = new ArrayList<>(flushing.size() + 1);
+        newFlushing.addAll(flushing);
+        newFlushing.add(memory);
+        return new Storage(Memory.create(config),
+                newLog,
+                Collections.unmodifiableList(newFlushing),
                 this.ssTables,
                 config);
     }
 
-    public Storage afterFlush() {
-        if (readOnlyMemory == Memory.EMPTY_MEMORY) {
-            throw new IllegalStateException("Wasn't flushing");
+    public Storage afterFlush(Memory flushed) {
+        if (flushing.isEmpty() || flushing.get(0) != flushed) {
+            throw new IllegalStateException("Flushed memory isn't the oldest one");
         }
-        return new Storage(this.memory, Memory.EMPTY_MEMORY, this.ssTables, config);
+        return new Storage(this.memory, this.log, flushing.subList(1, flushing.size()), this.ssTables, config);
     }
 
     public Storage updateSSTables(List<SSTable> newTables) {
-        return new Storage(this.memory, this.readOnlyMemory, newTables, config);
+        return new Storage(this.memory, this.log, this.flushing, newTables, config);
     }
 
     public boolean isFlushing() {
-        return readOnlyMemory != Memory.EMPTY_MEMORY;
+        return !flushing.isEmpty();
     }
 
-    public static class Memory {
+    /**
+     * Memory table, its size is counted by implementation and may differ from the sum of entry sizes.
+     * <p>
+     * Writers and size are counted in stripes chosen by thread, every stripe on its own cache lines,
+     * so concurrent writers of a big machine don't contend on one counter.
+     * A stripe publishes its size to the total in portions of {@link #publishBytes}, so the limit is checked
+     * against the total, which lags behind by less than a portion per stripe.
+     */
+    public abstract static class Memory {
+        private static final int STRIPES = Integer.highestOneBit(
+                Math.min(255, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        private static final int STRIPE_LONGS = 16; //128 bytes, adjacent cache lines are prefetched in pairs
+        private static final int WRITERS = 0;
+        private static final int PENDING_SIZE = 1;
+        private static final long MAX_PUBLISH_BYTES = 64 * 1024;
+        private static final long MIN_PARK_NANOS = 1_000;
+        private static final long MAX_PARK_NANOS = 1_000_000;
+
         private final long sizeLimit;
-        private final ConcurrentNavigableMap<MemorySegment, Entry<MemorySegment>> delegate;
+        private final long publishBytes;
+        private final AtomicLongArray stripes = new AtomicLongArray(STRIPES * STRIPE_LONGS);
         private final AtomicLong size = new AtomicLong();
+        private final LongAdder count = new LongAdder();
         private final AtomicBoolean oversize = new AtomicBoolean();
+        private volatile boolean sealed;
 
-        public static final Memory EMPTY_MEMORY = getNewMemory(-1);
-
-        private Memory(ConcurrentNavigableMap<MemorySegment, Entry<MemorySegment>> delegate, long sizeThreshold) {
-            this.sizeLimit = sizeThreshold;
-            this.delegate = delegate;
+        Memory(long sizeLimit) {
+            this.sizeLimit = sizeLimit;
+            this.publishBytes = Math.max(1, Math.min(MAX_PUBLISH_BYTES, sizeLimit / (16L * STRIPES)));
         }
 
-        public static Memory getNewMemory(long sizeThreshold) {
-            return new Memory(new ConcurrentSkipListMap<>(Utils::compareMemorySegments), sizeThreshold);
+        public static Memory create(Config config) {
+            return switch (config.memTable()) {
+                case HEAP -> new HeapMemory(config.flushThresholdBytes());
+                case ARENA -> new ArenaMemory(config.flushThresholdBytes());
+            };
         }
 
-        public boolean put(MemorySegment key, Entry<MemorySegment> value) {
-            if (sizeLimit == -1) {
-                throw new UnsupportedOperationException("ReadOnly memory");
+        /**
+         * @return true if memory became oversize by this put, it happens once per memory
+         */
+        public abstract boolean put(MemorySegment key, Entry<MemorySegment> value);
+
+        /**
+         * Puts entries in order and accounts their size at once.
+         *
+         * @return true if memory became oversize by these puts
+         */
+        public abstract boolean putAll(Collection<Entry<MemorySegment>> entries);
+
+        boolean grow(long delta, long newKeys) {
+            if (newKeys != 0) {
+                count.add(newKeys);
             }
-            Entry<MemorySegment> previous = delegate.put(key, value);
-            long delta = Utils.sizeOfEntry(value);
-            if (previous != null) {
-                delta -= Utils.sizeOfEntry(previous);
+            int pendingSize = stripe() + PENDING_SIZE;
+            if (stripes.addAndGet(pendingSize, delta) < publishBytes) {
+                return false;
             }
-            long newSize = size.addAndGet(delta);
+            long newSize = size.addAndGet(stripes.getAndSet(pendingSize, 0));
             if (newSize > sizeLimit) {
                 return !oversize.getAndSet(true);
             }
             return false;
         }
 
+        /**
+         * Bytes taken by entries as counted by implementation.
+         */
+        public long size() {
+            long total = size.get();
+            for (int i = 0; i < STRIPES; i++) {
+                total += stripes.get(i * STRIPE_LONGS + PENDING_SIZE);
+            }
+            return total;
+        }
+
+        /**
+         * Registers writer of the current thread until {@link #exit()}, unless memory is already {@link #seal sealed}.
+         * Writer increments its stripe and then checks the flag, while sealing sets the flag and then
+         * checks stripes, so either the writer sees the flag or {@link #awaitWriters()} sees the writer.
+         *
+         * @return false if memory is sealed, the writer has to take the new one from storage
+         */
+        public boolean enter() {
+            int writers = stripe() + WRITERS;
+            stripes.getAndIncrement(writers);
+            if (sealed) {
+                stripes.getAndDecrement(writers);
+                return false;
+            }
+            return true;
+        }
+
+        public void exit() {
+            stripes.getAndDecrement(stripe() + WRITERS);
+        }
+
+        /**
+         * Makes {@link #enter()} fail from now on. New memory has to be in storage before that.
+         */
+        public void seal() {
+            sealed = true;
+        }
+
+        /**
+         * Waits until writers which entered before {@link #seal()} exit, they are in the middle of a put,
+         * which may include a sync of the log. The thread parks between checks, from {@link #MIN_PARK_NANOS}
+         * doubling up to {@link #MAX_PARK_NANOS}, so a long put doesn't keep a core busy.
+         */
+        public void awaitWriters() {
+            long parkNanos = MIN_PARK_NANOS;
+            for (int i = 0; i < STRIPES; i++) {
+                while (stripes.get(i * STRIPE_LONGS + WRITERS) != 0) {
+                    LockSupport.parkNanos(parkNanos);
+                    parkNanos = Math.min(2 * parkNanos, MAX_PARK_NANOS);
+                }
+            }
+        }
+
+        private static int stripe() {
+            return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_LONGS;
+        }
+
         public AtomicBoolean isOversize() {
             return oversize;
         }
 
+        /**
+         * Number of keys, unlike {@link ConcurrentNavigableMap#size()} it is not counted by traversal.
+         */
+        public long count() {
+            return count.sum();
+        }
+
+        public abstract boolean isEmpty();
+
+        public abstract Entry<MemorySegment> get(MemorySegment key);
+
+        /**
+         * @param from inclusive lower bound or null
+         * @param to exclusive upper bound or null
+         */
+        public abstract Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to);
+
+        /**
+         * Returns sealed memory on heap with entries of this one, which is not changed by later writes.
+         * Entries are shared rather than copied: slices of {@link ArenaMemory} keep its chunks alive.
+         */
+        public Memory copy() {
+            HeapMemory copy = new HeapMemory(Long.MAX_VALUE);
+            Iterator<Entry<MemorySegment>> entries = get(null, null);
+            while (entries.hasNext()) {
+                Entry<MemorySegment> entry = entries.next();
+                copy.put(entry.key(), entry);
+            }
+            copy.seal();
+            return copy;
+        }
+    }
+
+    /**
+     * Entries are kept as given in a skip list on heap.
+     */
+    private static final class HeapMemory extends Memory {
+        private final ConcurrentNavigableMap<MemorySegment, Entry<MemorySegment>> delegate
+                = new ConcurrentSkipListMap<>(Utils::compareMemorySegments);
+
+        private HeapMemory(long sizeLimit) {
+            super(sizeLimit);
+        }
+
+        @Override
+        public boolean put(MemorySegment key, Entry<MemorySegment> value) {
+            Entry<MemorySegment> previous = delegate.put(key, value);
+            return grow(delta(value, previous), previous == null ? 1 : 0);
+        }
+
+        @Override
+        public boolean putAll(Collection<Entry<MemorySegment>> entries) {
+            long delta = 0;
+            long newKeys = 0;
+            for (Entry<MemorySegment> entry : entries) {
+                Entry<MemorySegment> previous = delegate.put(entry.key(), entry);
+                delta += delta(entry, previous);
+                if (previous == null) {
+                    newKeys++;
+                }
+            }
+            return grow(delta, newKeys);
+        }
+
+        private static long delta(Entry<MemorySegment> value, Entry<MemorySegment> previous) {
+            long delta = Utils.sizeOfEntry(value);
+            if (previous != null) {
+                delta -= Utils.sizeOfEntry(previous);
+            }
+            return delta;
+        }
+
+        @Override
         public boolean isEmpty() {
             return delegate.isEmpty();
         }
 
-        public Collection<Entry<MemorySegment>> values() {
-            return delegate.values();
+        @Override
+        public Entry<MemorySegment> get(MemorySegment key) {
+            return delegate.get(key);
         }
 
+        @Override
         public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to) {
             if (from == null && to == null) {
                 return delegate.values().iterator();
@@ -91,7 +276,7 @@ public record Storage(Memory memory, Memory readOnlyMemory, List<SSTable> ssTabl
             return subMap(from, to).values().iterator();
         }
 
-        public ConcurrentNavigableMap<MemorySegment, Entry<MemorySegment>> subMap(
+        private ConcurrentNavigableMap<MemorySegment, Entry<MemorySegment>> subMap(
                 MemorySegment from,
                 MemorySegment to) {
             if (from == null) {
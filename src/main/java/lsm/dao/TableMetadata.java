@@ -0,0 +1,158 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import lsm.Entry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/**
+ * Summary of one {@link SSTable}, it lives in the sidecar file with suffix {@link SSTable#META}
+ * and is read on open, so reads skip tables by key range and compaction decides without touching the table:
+ * <pre>
+ * magic (long), version (int), first key length (int, -1 for empty table), last key length (int),
+ * entry count (long), tombstone count (long), key bytes (long), value bytes (long), first key, last key
+ * </pre>
+ * Tables written before metadata have no such file: keys and entry count are read from the table,
+ * other counters are {@link #UNKNOWN}.
+ *
+ * @param firstKey smallest key or null if the table is empty
+ * @param lastKey largest key or null if the table is empty
+ * @param keyBytes total size of keys
+ * @param valueBytes total size of values, tombstones have none
+ */
+public record TableMetadata(MemorySegment firstKey,
+                            MemorySegment lastKey,
+                            long entries,
+                            long tombstones,
+                            long keyBytes,
+                            long valueBytes) {
+    public static final long UNKNOWN = -1;
+    public static final long MAGIC = 0x4C534D5F4D455441L;
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = Long.BYTES + 3 * Integer.BYTES + 4 * Long.BYTES;
+
+    public boolean isEmpty() {
+        return firstKey == null;
+    }
+
+    /**
+     * Returns false if {@code key} is out of the key range of the table.
+     */
+    public boolean covers(MemorySegment key) {
+        return !isEmpty()
+                && Utils.compareMemorySegments(firstKey, key) <= 0
+                && Utils.compareMemorySegments(key, lastKey) <= 0;
+    }
+
+    /**
+     * Returns false if no key of the table is in [{@code from}, {@code to}), null bound is unbounded.
+     */
+    public boolean overlaps(MemorySegment from, MemorySegment to) {
+        return !isEmpty()
+                && (from == null || Utils.compareMemorySegments(lastKey, from) >= 0)
+                && (to == null || Utils.compareMemorySegments(firstKey, to) < 0);
+    }
+
+    public static TableMetadata read(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.nativeOrder());
+        if (buffer.remaining() < HEADER_SIZE || buffer.getLong() != MAGIC) {
+            throw new IllegalStateException("Not a table metadata: " + path);
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IllegalStateException("Unsupported table metadata version: " + version);
+        }
+        int firstKeyLength = buffer.getInt();
+        int lastKeyLength = buffer.getInt();
+        long entries = buffer.getLong();
+        long tombstones = buffer.getLong();
+        long keyBytes = buffer.getLong();
+        long valueBytes = buffer.getLong();
+        MemorySegment firstKey = getKey(buffer, firstKeyLength);
+        MemorySegment lastKey = getKey(buffer, lastKeyLength);
+        return new TableMetadata(firstKey, lastKey, entries, tombstones, keyBytes, valueBytes);
+    }
+
+    public void write(Path path) throws IOException {
+        int firstKeyLength = isEmpty() ? -1 : (int) firstKey.byteSize();
+        int lastKeyLength = isEmpty() ? -1 : (int) lastKey.byteSize();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + Math.max(0, firstKeyLength) + Math.max(0, lastKeyLength))
+                .order(ByteOrder.nativeOrder());
+        buffer.putLong(MAGIC).putInt(VERSION).putInt(firstKeyLength).putInt(lastKeyLength)
+                .putLong(entries).putLong(tombstones).putLong(keyBytes).putLong(valueBytes);
+        if (!isEmpty()) {
+            buffer.put(firstKey.asByteBuffer()).put(lastKey.asByteBuffer());
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private static MemorySegment getKey(ByteBuffer buffer, int length) {
+        if (length < 0) {
+            return null;
+        }
+        byte[] key = new byte[length];
+        buffer.get(key);
+        return MemorySegment.ofArray(key);
+    }
+
+    /**
+     * Passes entries to the table writer and counts them. Keys of the first and the last entry
+     * are copied to heap only in {@link #metadata()}, so they must stay readable until the table is written.
+     */
+    static final class Collector implements Iterator<Entry<MemorySegment>> {
+        private final Iterator<Entry<MemorySegment>> delegate;
+        private MemorySegment firstKey;
+        private MemorySegment lastKey;
+        private long entries;
+        private long tombstones;
+        private long keyBytes;
+        private long valueBytes;
+
+        Collector(Iterator<Entry<MemorySegment>> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return delegate.hasNext();
+        }
+
+        @Override
+        public Entry<MemorySegment> next() {
+            Entry<MemorySegment> entry = delegate.next();
+            if (firstKey == null) {
+                firstKey = entry.key();
+            }
+            lastKey = entry.key();
+            entries++;
+            keyBytes += lastKey.byteSize();
+            if (entry.isTombstone()) {
+                tombstones++;
+            } else {
+                valueBytes += entry.value().byteSize();
+            }
+            return entry;
+        }
+
+        TableMetadata metadata() {
+            if (firstKey == null) {
+                return new TableMetadata(null, null, 0, 0, 0, 0);
+            }
+            return new TableMetadata(MemorySegment.ofArray(firstKey.toByteArray()),
+                    MemorySegment.ofArray(lastKey.toByteArray()), entries, tombstones, keyBytes, valueBytes);
+        }
+    }
+}
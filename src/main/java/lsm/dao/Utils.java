@@ -12,9 +12,11 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -45,16 +47,14 @@ public final class Utils {
         return Byte.compare(b1, b2);
     }
 
-    public static long binarySearch(MemorySegment key,
-                                    MemorySegment mapFile,
-                                    MemorySegment mapIndex) {
+    public static long binarySearch(MemorySegment key, DenseTable table) {
+        long prefix = table.hasPrefixes() ? DenseTable.prefix(key) : 0;
         long l = 0;
-        long rightBound = mapIndex.byteSize() / Long.BYTES;
+        long rightBound = table.count();
         long r = rightBound - 1;
         while (l <= r) {
             long middle = (l + r) >>> 1;
-            Entry<MemorySegment> middleEntry = getByIndex(mapFile, mapIndex, middle);
-            int res = compareMemorySegments(middleEntry.key(), key);
+            int res = compareKeyByIndex(table, middle, key, prefix);
             if (res == 0) {
                 return middle;
             } else if (res < 0) {
@@ -69,21 +69,94 @@ public final class Utils {
         return l;
     }
 
-    public static Entry<MemorySegment> getByIndex(MemorySegment mapFile, MemorySegment mapIndex, long index) {
-        long offset = getLength(mapIndex, index * Long.BYTES);
+    /**
+     * Exact-match search.
+     *
+     * @return index of {@code key} in table or -1 if it is absent
+     */
+    public static long findIndex(MemorySegment key, DenseTable table) {
+        long prefix = table.hasPrefixes() ? DenseTable.prefix(key) : 0;
+        long l = 0;
+        long r = table.count() - 1;
+        while (l <= r) {
+            long middle = (l + r) >>> 1;
+            int res = compareKeyByIndex(table, middle, key, prefix);
+            if (res == 0) {
+                return middle;
+            } else if (res < 0) {
+                l = middle + 1;
+            } else {
+                r = middle - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares key of entry with given index to {@code key} without materializing the entry.
+     */
+    public static int compareKeyByIndex(DenseTable table, long index, MemorySegment key) {
+        long prefix = table.hasPrefixes() ? DenseTable.prefix(key) : 0;
+        return compareKeyByIndex(table, index, key, prefix);
+    }
+
+    /**
+     * Same as {@link #compareKeyByIndex(DenseTable, long, MemorySegment)} with {@link DenseTable#prefix} of
+     * {@code key} computed once per search, the table file is read only if prefixes are equal.
+     */
+    private static int compareKeyByIndex(DenseTable table, long index, MemorySegment key, long prefix) {
+        if (table.hasPrefixes()) {
+            int res = Long.compareUnsigned(table.prefix(index), prefix);
+            if (res != 0) {
+                return res;
+            }
+        }
+        return compareMemorySegments(keyByIndex(table, index), key);
+    }
+
+    private static MemorySegment keyByIndex(DenseTable table, long index) {
+        MemorySegment mapFile = table.mapFile();
+        long offset = table.offset(index);
+        if (table.version() == 1) {
+            return mapFile.asSlice(offset + Long.BYTES, getLength(mapFile, offset));
+        }
+        long keyLength = DenseTable.getVarint(mapFile, offset);
+        return mapFile.asSlice(offset + DenseTable.varintSize(keyLength), keyLength);
+    }
+
+    /**
+     * Decodes entry of either version of {@link DenseTable}.
+     */
+    public static Entry<MemorySegment> getByIndex(DenseTable table, long index) {
+        MemorySegment mapFile = table.mapFile();
+        long offset = table.offset(index);
+        if (table.version() == 1) {
+            long keyLength = getLength(mapFile, offset);
+            offset += Long.BYTES;
+            MemorySegment key = mapFile.asSlice(offset, keyLength);
 
-        long keyLength = getLength(mapFile, offset);
-        offset += Long.BYTES;
+            offset += keyLength;
+            long valueLength = getLength(mapFile, offset);
+            MemorySegment value;
+            if (valueLength == SSTable.NULL_VALUE) {
+                value = null;
+            } else {
+                value = mapFile.asSlice(offset + Long.BYTES, valueLength);
+            }
+            return new BaseEntry<>(key, value);
+        }
+
+        long keyLength = DenseTable.getVarint(mapFile, offset);
+        offset += DenseTable.varintSize(keyLength);
         MemorySegment key = mapFile.asSlice(offset, keyLength);
 
         offset += keyLength;
-        long valueLength = getLength(mapFile, offset);
-        MemorySegment value;
-        if (valueLength == SSTable.NULL_VALUE) {
-            value = null;
-        } else {
-            value = mapFile.asSlice(offset + Long.BYTES, valueLength);
+        if (MemoryAccess.getByteAtOffset(mapFile, offset) == DenseTable.TOMBSTONE) {
+            return new BaseEntry<>(key, null);
         }
+        offset++;
+        long valueLength = DenseTable.getVarint(mapFile, offset);
+        MemorySegment value = mapFile.asSlice(offset + DenseTable.varintSize(valueLength), valueLength);
         return new BaseEntry<>(key, value);
     }
 
@@ -91,15 +164,6 @@ public final class Utils {
         return MemoryAccess.getLongAtOffset(mapFile, offset);
     }
 
-    public static long writeSegment(MemorySegment segment, MemorySegment fileMap, long fileOffset) {
-        long length = segment.byteSize();
-        MemoryAccess.setLongAtOffset(fileMap, fileOffset, length);
-
-        fileMap.asSlice(fileOffset + Long.BYTES).copyFrom(segment);
-
-        return Long.BYTES + length;
-    }
-
     public static MemorySegment map(Path table,
                                     long length,
                                     FileChannel.MapMode mapMode,
@@ -111,6 +175,24 @@ public final class Utils {
         Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
     }
 
+    /**
+     * Forces content of the file to disk, including pages written through a mapping.
+     */
+    public static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Forces the directory, so files created, renamed or deleted in it stay so after a crash of the machine.
+     */
+    public static void forceDirectory(Path dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
     public static Path withSuffix(Path path, String suffix) {
         return path.resolveSibling(path.getFileName() + suffix);
     }
@@ -120,17 +202,34 @@ public final class Utils {
             SSTable table = tableList.get(i);
             Files.deleteIfExists(table.getTableName());
             Files.deleteIfExists(table.getIndexName());
+            Files.deleteIfExists(table.getBloomName());
+            Files.deleteIfExists(table.getMetaName());
         }
     }
 
-    public static SSTable.Sizes getSizes(Iterator<Entry<MemorySegment>> values) {
-        long tableSize = 0;
-        long count = 0;
-        while (values.hasNext()) {
-            tableSize += sizeOfEntry(values.next());
-            count++;
-        }
-        return new SSTable.Sizes(tableSize, count * Long.BYTES);
+    /**
+     * Returns view of {@code iterator}, which ends after entries of {@code maxBytes} in total.
+     * The entry which reaches the limit is still returned, and the next one is left in {@code iterator}.
+     */
+    public static Iterator<Entry<MemorySegment>> limitSize(Iterator<Entry<MemorySegment>> iterator, long maxBytes) {
+        return new Iterator<>() {
+            long size;
+
+            @Override
+            public boolean hasNext() {
+                return size < maxBytes && iterator.hasNext();
+            }
+
+            @Override
+            public Entry<MemorySegment> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Entry<MemorySegment> entry = iterator.next();
+                size += sizeOfEntry(entry);
+                return entry;
+            }
+        };
     }
 
     public static String removeSuffix(String source, String suffix) {
@@ -141,17 +240,26 @@ public final class Utils {
             MemorySegment from, MemorySegment to, List<SSTable> tables) {
         List<Iterator<Entry<MemorySegment>>> iterators = new ArrayList<>(tables.size());
         for (SSTable table : tables) {
-            iterators.add(table.range(from, to));
+            if (table.overlaps(from, to)) {
+                iterators.add(table.range(from, to));
+            }
         }
         return CustomIterators.merge(iterators);
     }
 
+    /**
+     * Returns number following the greatest table number, tables are not ordered by number after compaction.
+     */
     public static long getLastTableNum(List<SSTable> ssTables) {
-        String lastTable = ssTables.get(ssTables.size() - 1).getTableName().getFileName().toString();
-        if (lastTable.endsWith(SSTable.COMPACTED)) {
-            lastTable = Utils.removeSuffix(lastTable, SSTable.COMPACTED);
+        long last = -1;
+        for (SSTable table : ssTables) {
+            String name = table.getTableName().getFileName().toString();
+            if (name.endsWith(SSTable.COMPACTED)) {
+                name = Utils.removeSuffix(name, SSTable.COMPACTED);
+            }
+            last = Math.max(last, Long.parseLong(name));
         }
-        return Long.parseLong(lastTable) + 1;
+        return last + 1;
     }
 
     public static Iterator<Entry<MemorySegment>> tablesFilteredFullRange(List<SSTable> fixed) {
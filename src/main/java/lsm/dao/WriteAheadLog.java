@@ -0,0 +1,339 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import lsm.BaseEntry;
+import lsm.Config;
+import lsm.Entry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of upserts, one {@link Segment} per memory table.
+ * The segment is rotated when its memory table is sealed for flush
+ * and deleted once the table has been written.
+ *
+ * <p>Record layout: payload length (int), CRC32 of payload (int), payload.
+ * Payload is entry count (int) and then for each entry key length (int), key,
+ * value length (int, {@link SSTable#NULL_VALUE} for tombstone) and value.
+ * Replay stops at the first torn or corrupted record.
+ */
+public final class WriteAheadLog implements Closeable {
+    public static final String SUFFIX = "_wal";
+    private static final int RECORD_HEADER = 2 * Integer.BYTES;
+
+    private final Path dir;
+    private final Config.SyncPolicy syncPolicy;
+    private final ScheduledExecutorService syncExecutor;
+    private long nextSegmentNum;
+    private volatile Segment current;
+
+    public WriteAheadLog(Config config, long nextSegmentNum) throws IOException {
+        this.dir = config.basePath();
+        this.syncPolicy = config.walSyncPolicy();
+        this.nextSegmentNum = nextSegmentNum;
+        this.current = new Segment(nextSegment());
+        if (syncPolicy == Config.SyncPolicy.PERIODIC) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "walSyncThread");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = config.walSyncIntervalMillis();
+            syncExecutor.scheduleWithFixedDelay(this::syncCurrent, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            syncExecutor = null;
+        }
+    }
+
+    /**
+     * Returns segment which receives writes of the active memory table.
+     * Writers take it from {@link Storage#log()} together with the memory table, not from here.
+     */
+    public Segment current() {
+        return current;
+    }
+
+    /**
+     * Starts new segment for the new memory table. The sealed one may still receive appends of writers
+     * which entered the sealed memory, so it is closed by the flush after them.
+     *
+     * @return sealed segment, which has to be closed and deleted after flush
+     */
+    public Segment rotate() throws IOException {
+        Segment sealed = current;
+        current = new Segment(nextSegment());
+        return sealed;
+    }
+
+    /**
+     * With {@link Config.SyncPolicy#EVERY_WRITE} waits until {@code segment} is on disk
+     * up to {@code position}, other policies leave it to the periodic sync or to the OS.
+     */
+    public void awaitDurable(Segment segment, long position) throws IOException {
+        if (syncPolicy == Config.SyncPolicy.EVERY_WRITE) {
+            segment.sync(position);
+        }
+    }
+
+    /**
+     * Closes the current segment and removes it if nothing was written there.
+     */
+    @Override
+    public void close() throws IOException {
+        if (syncExecutor != null) {
+            Utils.shutdownExecutor(syncExecutor);
+        }
+        Segment segment = current;
+        segment.close();
+        if (segment.writtenPosition == 0) {
+            segment.delete();
+        }
+    }
+
+    private void syncCurrent() {
+        try {
+            Segment segment = current;
+            segment.sync(segment.writtenPosition);
+        } catch (IOException e) {
+            LsmDao.logger.error("Can't sync write-ahead log", e);
+        }
+    }
+
+    private Path nextSegment() {
+        return dir.resolve(nextSegmentNum++ + SUFFIX);
+    }
+
+    /**
+     * Existing segments ordered from oldest to newest.
+     */
+    public static List<Path> segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files
+                    .filter(path -> path.toString().endsWith(SUFFIX))
+                    .sorted((p1, p2) -> Long.compare(segmentNum(p1), segmentNum(p2)))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    public static long segmentNum(Path segment) {
+        return Long.parseLong(Utils.removeSuffix(segment.getFileName().toString(), SUFFIX));
+    }
+
+    /**
+     * Passes every entry of segment to {@code consumer} in write order.
+     */
+    public static void replay(Path segment, Consumer<Entry<MemorySegment>> consumer) throws IOException {
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            MemorySegment map = Utils.map(segment, Files.size(segment), FileChannel.MapMode.READ_ONLY, scope);
+            long offset = 0;
+            CRC32 crc = new CRC32();
+            while (offset + RECORD_HEADER <= map.byteSize()) {
+                int length = getInt(map, offset);
+                int checksum = getInt(map, offset + Integer.BYTES);
+                long payloadOffset = offset + RECORD_HEADER;
+                if (length <= 0 || payloadOffset + length > map.byteSize()) {
+                    LsmDao.logger.warn("Torn record at {} in {}", offset, segment);
+                    return;
+                }
+                MemorySegment payload = map.asSlice(payloadOffset, length);
+                crc.reset();
+                crc.update(payload.asByteBuffer());
+                if ((int) crc.getValue() != checksum) {
+                    LsmDao.logger.warn("Corrupted record at {} in {}", offset, segment);
+                    return;
+                }
+                readPayload(payload, consumer);
+                offset = payloadOffset + length;
+            }
+        }
+    }
+
+    private static void readPayload(MemorySegment payload, Consumer<Entry<MemorySegment>> consumer) {
+        int count = getInt(payload, 0);
+        long offset = Integer.BYTES;
+        for (int i = 0; i < count; i++) {
+            int keyLength = getInt(payload, offset);
+            offset += Integer.BYTES;
+            MemorySegment key = copy(payload.asSlice(offset, keyLength));
+            offset += keyLength;
+            int valueLength = getInt(payload, offset);
+            offset += Integer.BYTES;
+            MemorySegment value = null;
+            if (valueLength != SSTable.NULL_VALUE) {
+                value = copy(payload.asSlice(offset, valueLength));
+                offset += valueLength;
+            }
+            consumer.accept(new BaseEntry<>(key, value));
+        }
+    }
+
+    private static int getInt(MemorySegment segment, long offset) {
+        return MemoryAccess.getIntAtOffset(segment, offset, ByteOrder.BIG_ENDIAN);
+    }
+
+    private static MemorySegment copy(MemorySegment segment) {
+        return MemorySegment.ofArray(segment.toByteArray());
+    }
+
+    /**
+     * Encodes entries as one record for {@link Segment#append(ByteBuffer)}.
+     */
+    static ByteBuffer encode(Collection<Entry<MemorySegment>> entries) {
+        long payloadSize = Integer.BYTES;
+        for (Entry<MemorySegment> entry : entries) {
+            payloadSize += 2L * Integer.BYTES + entry.key().byteSize();
+            if (!entry.isTombstone()) {
+                payloadSize += entry.value().byteSize();
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(RECORD_HEADER + payloadSize));
+        buffer.position(RECORD_HEADER);
+        buffer.putInt(entries.size());
+        for (Entry<MemorySegment> entry : entries) {
+            buffer.putInt((int) entry.key().byteSize());
+            buffer.put(entry.key().asByteBuffer());
+            if (entry.isTombstone()) {
+                buffer.putInt(SSTable.NULL_VALUE);
+            } else {
+                buffer.putInt((int) entry.value().byteSize());
+                buffer.put(entry.value().asByteBuffer());
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), RECORD_HEADER, (int) payloadSize);
+        buffer.putInt(0, (int) payloadSize);
+        buffer.putInt(Integer.BYTES, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * One log file. Writers append records concurrently, and syncs are grouped:
+     * one writer forces the file for everything written so far while the others wait for it.
+     */
+    public static final class Segment implements Closeable {
+        private final Path path;
+        private final FileChannel channel;
+        private final Object syncMonitor = new Object();
+        private volatile long writtenPosition;
+        private long syncedPosition;
+        private boolean syncing;
+        private boolean closed;
+
+        private Segment(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Appends entries as one record.
+         *
+         * @return position after the record, to be passed to {@link WriteAheadLog#awaitDurable}
+         */
+        public long append(Collection<Entry<MemorySegment>> entries) throws IOException {
+            return append(encode(entries));
+        }
+
+        /**
+         * Appends an {@link WriteAheadLog#encode encoded} record holding the monitor of the segment.
+         * A writer holding it too around the append and the put into memory keeps memory in the order
+         * of the log, which is the order replay restores.
+         *
+         * @return position after the record, to be passed to {@link WriteAheadLog#awaitDurable}
+         */
+        long append(ByteBuffer record) throws IOException {
+            synchronized (this) {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                long position = writtenPosition + record.limit();
+                writtenPosition = position;
+                return position;
+            }
+        }
+
+        /**
+         * Returns when everything up to {@code position} is forced to disk.
+         */
+        public void sync(long position) throws IOException {
+            while (true) {
+                long target;
+                synchronized (syncMonitor) {
+                    while (syncing && syncedPosition < position) {
+                        waitSync();
+                    }
+                    if (syncedPosition >= position || closed) {
+                        return;
+                    }
+                    syncing = true;
+                    target = writtenPosition;
+                }
+                boolean forced = false;
+                try {
+                    channel.force(false);
+                    forced = true;
+                } finally {
+                    synchronized (syncMonitor) {
+                        syncing = false;
+                        if (forced) {
+                            syncedPosition = Math.max(syncedPosition, target);
+                        }
+                        syncMonitor.notifyAll();
+                    }
+                }
+            }
+        }
+
+        private void waitSync() throws InterruptedIOException {
+            try {
+                syncMonitor.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for log sync");
+            }
+        }
+
+        /**
+         * Forces the rest of the segment, so that waiting writers are released, and closes it.
+         */
+        @Override
+        public void close() throws IOException {
+            synchronized (syncMonitor) {
+                while (syncing) {
+                    waitSync();
+                }
+                if (closed) {
+                    return;
+                }
+                channel.force(false);
+                syncedPosition = writtenPosition;
+                closed = true;
+                syncMonitor.notifyAll();
+            }
+            channel.close();
+        }
+
+        public void delete() throws IOException {
+            Files.deleteIfExists(path);
+        }
+    }
+}
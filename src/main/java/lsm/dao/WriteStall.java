@@ -0,0 +1,110 @@
+package lsm.dao;
+
+import lsm.Config;
+import lsm.WriteStallException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Backpressure for writers, see {@link Config.WriteStall}. Writers check the storage before every write:
+ * they are delayed while many memory tables wait for flush and blocked while there is no room for one more.
+ * Blocked writers are woken up by {@link #flushed()}.
+ */
+public final class WriteStall {
+    private final Config.WriteStall config;
+    private final Object monitor = new Object();
+
+    private final LongAdder slowdowns = new LongAdder();
+    private final LongAdder slowdownNanos = new LongAdder();
+    private final LongAdder stops = new LongAdder();
+    private final LongAdder stopNanos = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    public WriteStall(Config.WriteStall config) {
+        this.config = config;
+    }
+
+    /**
+     * Delays or blocks the writer according to the current storage.
+     *
+     * @throws WriteStallException if no memory table is flushed for {@link Config.WriteStall#timeoutMillis()}
+     */
+    public void beforeWrite(Supplier<Storage> storage) {
+        Storage current = storage.get();
+        if (isStopped(current)) {
+            awaitFlush(storage);
+        } else {
+            slowDown(current);
+        }
+    }
+
+    /**
+     * Delays, but never blocks, a caller which seals memory only while there is room for one more
+     * memory table, so it can't be stopped anyway.
+     */
+    public void beforeSeal(Storage storage) {
+        slowDown(storage);
+    }
+
+    private void slowDown(Storage storage) {
+        if (storage.flushing().size() >= config.slowdownImmutableTables()) {
+            long start = System.nanoTime();
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(config.slowdownMicros()));
+            slowdowns.increment();
+            slowdownNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Must be called after the storage is updated, so that the woken up writers see it.
+     */
+    public void flushed() {
+        synchronized (monitor) {
+            monitor.notifyAll();
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(slowdowns.sum(), slowdownNanos.sum(), stops.sum(), stopNanos.sum(), timeouts.sum());
+    }
+
+    private boolean isStopped(Storage storage) {
+        return storage.memory().isOversize().get()
+                && storage.flushing().size() >= config.maxImmutableTables();
+    }
+
+    private void awaitFlush(Supplier<Storage> storage) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(config.timeoutMillis());
+        stops.increment();
+        try {
+            synchronized (monitor) {
+                while (isStopped(storage.get())) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        timeouts.increment();
+                        throw new WriteStallException("Writes are stopped for " + config.timeoutMillis()
+                                + " ms, flush can't keep up");
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(monitor, left);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WriteStallException("Interrupted while writes are stopped", e);
+        } finally {
+            stopNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Counters since start: writes which were delayed and total delay,
+     * writes which were blocked, total time blocked, and blocked writes which failed by timeout.
+     */
+    public record Stats(long slowdowns, long slowdownNanos, long stops, long stopNanos, long timeouts) {
+        //empty
+    }
+}
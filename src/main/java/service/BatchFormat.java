@@ -0,0 +1,108 @@
+package service;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import lsm.BaseEntry;
+import lsm.Entry;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bodies of {@code /v0/batch} requests, all lengths are big-endian ints.
+ * <pre>
+ * upserts: (key length, key, value length or -1 for delete, value) * n
+ * keys:    (key length, key) * n
+ * values:  (value length or -1 if absent, value) * n, in order of keys
+ * </pre>
+ * Keys and values of requests are slices of the body, nothing is copied.
+ */
+final class BatchFormat {
+    static final int ABSENT = -1;
+
+    private BatchFormat() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if body is malformed
+     */
+    static List<Entry<MemorySegment>> decodeUpserts(byte[] body) {
+        List<Entry<MemorySegment>> entries = new ArrayList<>();
+        if (body == null) {
+            return entries;
+        }
+        MemorySegment segment = MemorySegment.ofArray(body);
+        long offset = 0;
+        while (offset < segment.byteSize()) {
+            MemorySegment key = slice(segment, offset);
+            offset += Integer.BYTES + key.byteSize();
+            int valueLength = getInt(segment, offset);
+            MemorySegment value = null;
+            if (valueLength == ABSENT) {
+                offset += Integer.BYTES;
+            } else {
+                value = slice(segment, offset);
+                offset += Integer.BYTES + value.byteSize();
+            }
+            entries.add(new BaseEntry<>(key, value));
+        }
+        return entries;
+    }
+
+    /**
+     * @throws IllegalArgumentException if body is malformed
+     */
+    static List<MemorySegment> decodeKeys(byte[] body) {
+        List<MemorySegment> keys = new ArrayList<>();
+        if (body == null) {
+            return keys;
+        }
+        MemorySegment segment = MemorySegment.ofArray(body);
+        long offset = 0;
+        while (offset < segment.byteSize()) {
+            MemorySegment key = slice(segment, offset);
+            offset += Integer.BYTES + key.byteSize();
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    static byte[] encodeValues(List<Entry<MemorySegment>> entries) {
+        long size = 0;
+        for (Entry<MemorySegment> entry : entries) {
+            size += Integer.BYTES + (entry == null ? 0 : entry.value().byteSize());
+        }
+        byte[] body = new byte[Math.toIntExact(size)];
+        MemorySegment segment = MemorySegment.ofArray(body);
+        long offset = 0;
+        for (Entry<MemorySegment> entry : entries) {
+            if (entry == null) {
+                MemoryAccess.setIntAtOffset(segment, offset, ByteOrder.BIG_ENDIAN, ABSENT);
+                offset += Integer.BYTES;
+                continue;
+            }
+            MemorySegment value = entry.value();
+            MemoryAccess.setIntAtOffset(segment, offset, ByteOrder.BIG_ENDIAN, (int) value.byteSize());
+            offset += Integer.BYTES;
+            segment.asSlice(offset, value.byteSize()).copyFrom(value);
+            offset += value.byteSize();
+        }
+        return body;
+    }
+
+    private static MemorySegment slice(MemorySegment segment, long offset) {
+        int length = getInt(segment, offset);
+        if (length < 0 || offset + Integer.BYTES + length > segment.byteSize()) {
+            throw new IllegalArgumentException("Malformed batch at " + offset);
+        }
+        return segment.asSlice(offset + Integer.BYTES, length);
+    }
+
+    private static int getInt(MemorySegment segment, long offset) {
+        if (offset + Integer.BYTES > segment.byteSize()) {
+            throw new IllegalArgumentException("Malformed batch at " + offset);
+        }
+        return MemoryAccess.getIntAtOffset(segment, offset, ByteOrder.BIG_ENDIAN);
+    }
+}
@@ -0,0 +1,315 @@
+package service;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import lsm.Entry;
+import one.nio.net.Session;
+import one.nio.net.Socket;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+/**
+ * Body of chunked response with one chunk per entry: key length, key, value length, value,
+ * the lengths are big-endian ints like in {@link BatchFormat}. Tombstones are skipped. The body is
+ * a sequence of entries even if a client joins the chunks, and keys and values may contain any bytes.
+ * Buffers are filled by tasks of the request executor, the selector thread only writes buffers which are
+ * already filled, so it never reads storage. At most {@link #BUFFERS} buffers of the range are in memory:
+ * the next one is filled while the previous one is written, and a filled buffer re-arms the write.
+ * A task stops after {@link #MAX_SKIPPED} tombstones and continues in a new one, so a long run of them
+ * doesn't hold a worker. Every task waits for a worker at most {@code timeoutNanos} like a request,
+ * else the response is cut by closing the session: it is too late to answer 503.
+ * Keys and values are copied from their segments straight to the native buffers, which are passed to the socket.
+ */
+final class ChunkedEntries extends Session.QueueItem {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BUFFERS = 2;
+    private static final int MAX_SKIPPED = 4096;
+    private static final MemorySegment CRLF = ascii("\r\n");
+    private static final MemorySegment LAST_CHUNK = ascii("0\r\n\r\n");
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final Iterator<Entry<MemorySegment>> entries;
+    private final StreamingSession session;
+    private final Executor executor;
+    private final long timeoutNanos;
+    private final ResourceScope scope = ResourceScope.newSharedScope();
+    private final Deque<Buffer> free = new ArrayDeque<>(BUFFERS); //guarded by this
+    private final Deque<Buffer> filled = new ArrayDeque<>(BUFFERS); //guarded by this
+    private Buffer writing; //guarded by this
+    private boolean filling; //guarded by this
+    private long fillScheduled; //guarded by this
+    private boolean lastFilled; //guarded by this
+    private boolean released; //guarded by this
+    private boolean raw = true;
+
+    // State of filling, used by one task at a time
+    private Buffer current;
+    private final byte[] header = new byte[2 * Long.BYTES + 2];
+    private final byte[] keyLength = new byte[Integer.BYTES];
+    private final byte[] valueLength = new byte[Integer.BYTES];
+    private final MemorySegment[] parts = new MemorySegment[6];
+    private int partCount;
+    private int part;
+    private long partOffset;
+    private boolean lastQueued;
+
+    /**
+     * @param executor runs fills, it may run them in the calling thread
+     * @param timeoutNanos longest wait of a fill for a worker, 0 for no limit
+     */
+    ChunkedEntries(Iterator<Entry<MemorySegment>> entries, StreamingSession session, Executor executor,
+                   long timeoutNanos) {
+        this.entries = entries;
+        this.session = session;
+        this.executor = executor;
+        this.timeoutNanos = timeoutNanos;
+        for (int i = 0; i < BUFFERS; i++) {
+            free.add(new Buffer(MemorySegment.allocateNative(BUFFER_SIZE, scope)));
+        }
+    }
+
+    /**
+     * Starts filling, must be called after the body is queued to the session.
+     */
+    void start() {
+        if (startFill()) {
+            executor.execute(this::fill);
+        }
+    }
+
+    @Override
+    public synchronized int remaining() {
+        if (writing != null) {
+            return (int) (writing.limit - writing.position);
+        }
+        if (!filled.isEmpty()) {
+            return (int) filled.peek().limit;
+        }
+        return lastFilled ? 0 : 1;
+    }
+
+    /**
+     * Returns true if there is nothing to write until a fill completes and re-arms the write.
+     */
+    synchronized boolean isWaiting() {
+        return writing == null && filled.isEmpty() && !lastFilled;
+    }
+
+    @Override
+    public int write(Socket socket) throws IOException {
+        Buffer buffer;
+        synchronized (this) {
+            if (writing == null) {
+                writing = filled.poll();
+            }
+            buffer = writing;
+        }
+        if (buffer == null) {
+            return 0;
+        }
+        int count = (int) (buffer.limit - buffer.position);
+        int written;
+        if (raw) {
+            try {
+                written = socket.writeRaw(buffer.segment.address().toRawLongValue() + buffer.position, count, 0);
+            } catch (UnsupportedOperationException e) {
+                raw = false;
+                return write(socket);
+            }
+        } else {
+            written = socket.write(buffer.segment.asSlice(buffer.position, count).toByteArray(), 0, count, 0);
+        }
+        buffer.position += written;
+        if (buffer.position == buffer.limit) {
+            boolean fill;
+            synchronized (this) {
+                writing = null;
+                buffer.position = 0;
+                buffer.limit = 0;
+                free.add(buffer);
+                fill = startFill();
+            }
+            if (fill) {
+                executor.execute(this::fill);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Buffers are freed here, unless a fill is running: then by the fill when it sees the body released.
+     */
+    @Override
+    public synchronized void release() {
+        released = true;
+        if (!filling) {
+            scope.close();
+        }
+    }
+
+    /**
+     * Executor is called outside of the lock: it may run the fill right away.
+     *
+     * @return true if the caller has to run a fill
+     */
+    private synchronized boolean startFill() {
+        if (filling || released || lastFilled || (current == null && free.isEmpty())) {
+            return false;
+        }
+        filling = true;
+        fillScheduled = System.nanoTime();
+        return true;
+    }
+
+    private void fill() {
+        Buffer buffer;
+        synchronized (this) {
+            if (released) {
+                filling = false;
+                scope.close();
+                return;
+            }
+            if (timeoutNanos > 0 && System.nanoTime() - fillScheduled > timeoutNanos) {
+                filling = false;
+                buffer = null;
+            } else {
+                buffer = current == null ? free.poll() : current;
+            }
+        }
+        if (buffer == null) {
+            session.close();
+            return;
+        }
+        boolean more;
+        try {
+            more = fill(buffer);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                filling = false;
+            }
+            session.close();
+            return;
+        }
+        boolean fill;
+        synchronized (this) {
+            filling = false;
+            if (released) {
+                scope.close();
+                return;
+            }
+            if (buffer.limit > 0) {
+                current = null;
+                filled.add(buffer);
+                lastFilled = !more;
+            } else {
+                current = buffer;
+            }
+            fill = startFill();
+        }
+        if (fill) {
+            executor.execute(this::fill);
+        }
+        session.resumeWrite();
+    }
+
+    /**
+     * Fills the buffer until it is full, the range ends or {@link #MAX_SKIPPED} tombstones are skipped.
+     *
+     * @return false if the last chunk is in the buffer
+     */
+    private boolean fill(Buffer buffer) {
+        int skipped = 0;
+        while (buffer.limit < BUFFER_SIZE) {
+            if (part == partCount) {
+                if (lastQueued) {
+                    return false;
+                }
+                if (skipped == MAX_SKIPPED) {
+                    return true;
+                }
+                if (!nextChunk()) {
+                    skipped++;
+                    continue;
+                }
+            }
+            MemorySegment source = parts[part];
+            long count = Math.min(BUFFER_SIZE - buffer.limit, source.byteSize() - partOffset);
+            buffer.segment.asSlice(buffer.limit, count).copyFrom(source.asSlice(partOffset, count));
+            buffer.limit += count;
+            partOffset += count;
+            if (partOffset == source.byteSize()) {
+                part++;
+                partOffset = 0;
+            }
+        }
+        return !lastQueued || part < partCount;
+    }
+
+    /**
+     * @return false if the entry is a tombstone and no chunk was queued
+     */
+    private boolean nextChunk() {
+        part = 0;
+        partOffset = 0;
+        partCount = 0;
+        if (!entries.hasNext()) {
+            parts[0] = LAST_CHUNK;
+            partCount = 1;
+            lastQueued = true;
+            return true;
+        }
+        Entry<MemorySegment> entry = entries.next();
+        if (entry.isTombstone()) {
+            return false;
+        }
+        long size = 2L * Integer.BYTES + entry.key().byteSize() + entry.value().byteSize();
+        parts[0] = chunkHeader(size);
+        parts[1] = length(keyLength, entry.key());
+        parts[2] = entry.key();
+        parts[3] = length(valueLength, entry.value());
+        parts[4] = entry.value();
+        parts[5] = CRLF;
+        partCount = 6;
+        return true;
+    }
+
+    private static MemorySegment length(byte[] target, MemorySegment data) {
+        MemorySegment length = MemorySegment.ofArray(target);
+        MemoryAccess.setIntAtOffset(length, 0, ByteOrder.BIG_ENDIAN, (int) data.byteSize());
+        return length;
+    }
+
+    private MemorySegment chunkHeader(long size) {
+        int length = 0;
+        for (int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(size)) & -4; shift >= 0; shift -= 4) {
+            header[length++] = HEX[(int) (size >>> shift) & 0xF];
+        }
+        header[length] = '\r';
+        header[length + 1] = '\n';
+        return MemorySegment.ofArray(header).asSlice(0, length + 2L);
+    }
+
+    private static MemorySegment ascii(String s) {
+        return MemorySegment.ofArray(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Bytes [position; limit) are to be written.
+     */
+    private static final class Buffer {
+        final MemorySegment segment;
+        long position;
+        long limit;
+
+        Buffer(MemorySegment segment) {
+            this.segment = segment;
+        }
+    }
+}
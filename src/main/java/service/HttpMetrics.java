@@ -0,0 +1,45 @@
+package service;
+
+import one.nio.http.Response;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Responses sent by the service, counted by status code. Adders of all codes are created in advance,
+ * so counting doesn't allocate.
+ */
+final class HttpMetrics {
+    static final int MIN_STATUS = 100;
+    static final int MAX_STATUS = 599;
+
+    private final LongAdder[] responses = new LongAdder[MAX_STATUS - MIN_STATUS + 1];
+    private final LongAdder shed = new LongAdder();
+
+    HttpMetrics() {
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = new LongAdder();
+        }
+    }
+
+    void responded(Response response) {
+        int status = response.getStatus();
+        if (status >= MIN_STATUS && status <= MAX_STATUS) {
+            responses[status - MIN_STATUS].increment();
+        }
+    }
+
+    /**
+     * Request was answered with 503 without being handled, because of full queue or deadline.
+     */
+    void shed() {
+        shed.increment();
+    }
+
+    long responses(int status) {
+        return responses[status - MIN_STATUS].sum();
+    }
+
+    long shedRequests() {
+        return shed.sum();
+    }
+}
@@ -0,0 +1,146 @@
+package service;
+
+import jdk.incubator.foreign.MemorySegment;
+import lsm.Dao;
+import lsm.Entry;
+import lsm.dao.BlockCache;
+import lsm.dao.Histogram;
+import lsm.dao.LsmDao;
+import lsm.dao.Metrics;
+import lsm.dao.SSTable;
+import lsm.dao.Storage;
+import lsm.dao.WriteStall;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Metrics of the service and its dao in Prometheus text format. Durations are in seconds, sizes in bytes.
+ * Everything is read when the page is built, nothing is computed on the paths that record metrics.
+ */
+final class MetricsPage {
+    static final String CONTENT_TYPE = "Content-Type: text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final StringBuilder text = new StringBuilder(8 * 1024);
+
+    private MetricsPage() {
+    }
+
+    static byte[] render(HttpMetrics http, Dao<MemorySegment, Entry<MemorySegment>> dao) {
+        MetricsPage page = new MetricsPage();
+        page.http(http);
+        if (dao instanceof LsmDao lsmDao) {
+            page.engine(lsmDao);
+        }
+        return page.text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void http(HttpMetrics http) {
+        header("http_responses_total", "counter", "Responses by status code");
+        for (int status = HttpMetrics.MIN_STATUS; status <= HttpMetrics.MAX_STATUS; status++) {
+            long count = http.responses(status);
+            if (count != 0) {
+                text.append("http_responses_total{code=\"").append(status).append("\"} ").append(count).append('\n');
+            }
+        }
+        counter("http_shed_requests_total", "Requests answered with 503 without handling, queue was full "
+                + "or deadline passed", http.shedRequests());
+    }
+
+    private void engine(LsmDao dao) {
+        Metrics metrics = dao.getMetrics();
+        histogram("lsm_upsert_seconds", "Upserts and batch upserts, including write stalls", metrics.upsert());
+        histogram("lsm_get_seconds", "Point gets and multi-gets", metrics.get());
+        histogram("lsm_range_seconds", "Range gets until the iterator is exhausted", metrics.range());
+        histogram("lsm_flush_seconds", "Writes of memory tables to disk", metrics.flush());
+        histogram("lsm_compaction_seconds", "Compactions", metrics.compaction());
+
+        counter("lsm_user_bytes_total", "Size of upserted entries", metrics.userBytes());
+        counter("lsm_flush_bytes_total", "Size of tables written by flushes", metrics.flushBytes());
+        counter("lsm_compaction_read_bytes_total", "Size of tables merged by compactions",
+                metrics.compactionReadBytes());
+        counter("lsm_compaction_written_bytes_total", "Size of tables written by compactions",
+                metrics.compactionWrittenBytes());
+        gauge("lsm_write_amplification", "Bytes written to tables per byte upserted",
+                metrics.writeAmplification());
+
+        Storage storage = dao.getStorage();
+        long tablesBytes = 0;
+        for (SSTable table : storage.ssTables()) {
+            tablesBytes += table.sizeInBytes();
+        }
+        long flushingBytes = 0;
+        for (Storage.Memory memory : storage.flushing()) {
+            flushingBytes += memory.size();
+        }
+        gauge("lsm_sstables", "Tables on disk", storage.ssTables().size());
+        gauge("lsm_sstables_bytes", "Size of tables on disk", tablesBytes);
+        gauge("lsm_memtable_bytes", "Size of the memory table receiving writes", storage.memory().size());
+        gauge("lsm_memtable_keys", "Keys in the memory table receiving writes", storage.memory().count());
+        gauge("lsm_immutable_memtables", "Memory tables waiting for flush", storage.flushing().size());
+        gauge("lsm_immutable_memtables_bytes", "Size of memory tables waiting for flush", flushingBytes);
+
+        WriteStall.Stats stall = dao.getWriteStallStats();
+        counter("lsm_write_stall_slowdowns_total", "Writes delayed by write stall", stall.slowdowns());
+        counter("lsm_write_stall_slowdown_seconds_total", "Total delay of writes",
+                stall.slowdownNanos() / NANOS_PER_SECOND);
+        counter("lsm_write_stall_stops_total", "Writes blocked until a flush", stall.stops());
+        counter("lsm_write_stall_stop_seconds_total", "Total time writes were blocked",
+                stall.stopNanos() / NANOS_PER_SECOND);
+        counter("lsm_write_stall_timeouts_total", "Blocked writes failed by timeout", stall.timeouts());
+
+        BlockCache cache = dao.getBlockCache();
+        if (cache != null) {
+            BlockCache.Stats stats = cache.stats();
+            counter("lsm_block_cache_hits_total", "Block cache hits", stats.hits());
+            counter("lsm_block_cache_misses_total", "Block cache misses", stats.misses());
+            counter("lsm_block_cache_evictions_total", "Blocks evicted from cache", stats.evictions());
+            gauge("lsm_block_cache_blocks", "Blocks in cache", stats.cachedBlocks());
+            gauge("lsm_block_cache_capacity_blocks", "Capacity of cache in blocks", stats.capacityBlocks());
+        }
+    }
+
+    /**
+     * Buckets of Prometheus histogram are cumulative, the last one is +Inf.
+     */
+    private void histogram(String name, String help, Histogram histogram) {
+        header(name, "histogram", help);
+        long cumulative = 0;
+        for (int bucket = 0; bucket < Histogram.BUCKETS; bucket++) {
+            cumulative += histogram.count(bucket);
+            text.append(name).append("_bucket{le=\"")
+                    .append(Histogram.upperBoundNanos(bucket) / NANOS_PER_SECOND)
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += histogram.count(Histogram.BUCKETS);
+        text.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        text.append(name).append("_sum ").append(histogram.sumNanos() / NANOS_PER_SECOND).append('\n');
+        text.append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+    private void counter(String name, String help, long value) {
+        header(name, "counter", help);
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private void counter(String name, String help, double value) {
+        header(name, "counter", help);
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private void gauge(String name, String help, long value) {
+        header(name, "gauge", help);
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private void gauge(String name, String help, double value) {
+        header(name, "gauge", help);
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private void header(String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
@@ -4,24 +4,114 @@ import jdk.incubator.foreign.MemorySegment;
 import lsm.BaseEntry;
 import lsm.Dao;
 import lsm.Entry;
+import lsm.WriteStallException;
+import lsm.dao.LsmDao;
 import one.nio.http.*;
+import one.nio.net.Socket;
 import one.nio.server.AcceptorConfig;
+import one.nio.server.RejectedSessionException;
 import one.nio.util.Utf8;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class MyService extends HttpServer implements Service {
+    private static final int RETRY_AFTER_SECONDS = 1;
+
     private final Dao<MemorySegment, Entry<MemorySegment>> dao;
-    private final ExecutorService service = Executors.newFixedThreadPool(4);
+    private final RequestExecutor executor;
+    private final long requestTimeoutNanos;
+    private final HttpMetrics metrics = new HttpMetrics();
+    private final ThreadLocal<Long> requestDeadline = new ThreadLocal<>();
+    private final Set<StreamingSession> sessions = ConcurrentHashMap.newKeySet();
 
     public MyService(int port, Dao<MemorySegment, Entry<MemorySegment>> dao) throws IOException {
-        super(from(port));
+        this(new ServiceConfig(port), dao);
+    }
+
+    public MyService(ServiceConfig config, Dao<MemorySegment, Entry<MemorySegment>> dao) throws IOException {
+        super(from(config));
         this.dao = dao;
+        this.executor = RequestExecutor.create(config);
+        this.requestTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.requestTimeoutMillis());
+    }
+
+    /**
+     * Request is handed off to the executor, so selector keeps serving other sessions while it reads disk.
+     * If the executor is full or the request waited in its queue past the timeout, the client gets 503
+     * and should retry: the answer would likely be late for it anyway.
+     * <p>
+     * The timeout is a queue deadline: it is checked before the request is handled and again right before
+     * the dao is called, but a dao call which has started is not interrupted. Every fill of a streamed body
+     * waits for a worker no longer than the timeout too, see {@link ChunkedEntries}.
+     */
+    @Override
+    public void handleRequest(Request request, HttpSession session) throws IOException {
+        if (executor == null) {
+            super.handleRequest(request, session);
+            return;
+        }
+        long deadline = System.nanoTime() + requestTimeoutNanos;
+        try {
+            executor.execute(() -> handleQueued(request, session, deadline));
+        } catch (RejectedExecutionException e) {
+            metrics.shed();
+            session.sendResponse(retryLater());
+        }
+    }
+
+    private void handleQueued(Request request, HttpSession session, long deadline) {
+        requestDeadline.set(deadline);
+        try {
+            if (expired()) {
+                session.sendResponse(retryLater());
+                return;
+            }
+            super.handleRequest(request, session);
+        } catch (Exception e) {
+            try {
+                session.sendError(Response.INTERNAL_ERROR, e.getMessage());
+            } catch (IOException ignored) {
+                // Session is closed, nobody to answer
+            }
+        } finally {
+            requestDeadline.remove();
+        }
+    }
+
+    /**
+     * Returns true if the request of this thread is past its deadline, it is counted as shed then.
+     * Requests handled by selectors have no deadline.
+     */
+    private boolean expired() {
+        Long deadline = requestDeadline.get();
+        if (deadline == null || System.nanoTime() - deadline <= 0) {
+            return false;
+        }
+        metrics.shed();
+        return true;
+    }
+
+    /**
+     * Stops selectors, waits for requests and fills of bodies running on the executor, then closes the sessions,
+     * which releases bodies queued there. After that the dao is not used, and it may be closed.
+     */
+    @Override
+    public synchronized void stop() {
+        super.stop();
+        if (executor != null) {
+            executor.shutdown();
+        }
+        for (StreamingSession session : List.copyOf(sessions)) {
+            session.close();
+        }
     }
 
     @Path("/v0/status")
@@ -29,6 +119,28 @@ public class MyService extends HttpServer implements Service {
         return Response.ok("");
     }
 
+    /**
+     * Metrics of the service and the dao in Prometheus text format, see {@link MetricsPage}.
+     */
+    @Path("/v0/metrics")
+    @RequestMethod(Request.METHOD_GET)
+    public Response metrics() {
+        Response response = new Response(Response.OK, MetricsPage.render(metrics, dao));
+        response.addHeader(MetricsPage.CONTENT_TYPE);
+        return response;
+    }
+
+    /**
+     * Tables of the dao with their metadata in JSON, see {@link StatsPage}.
+     */
+    @Path("/v0/stats")
+    @RequestMethod(Request.METHOD_GET)
+    public Response stats() {
+        Response response = new Response(Response.OK, StatsPage.render(dao));
+        response.addHeader(StatsPage.CONTENT_TYPE);
+        return response;
+    }
+
     @Override
     public void handleDefault(Request request, HttpSession session) throws IOException {
         Response response = new Response(Response.BAD_REQUEST, Response.EMPTY);
@@ -50,33 +162,138 @@ public class MyService extends HttpServer implements Service {
         };
     }
 
+    /**
+     * Entries with keys in [start; end) as chunked response, see {@link ChunkedEntries}.
+     * Without end the range is open. Tombstones of {@link LsmDao} are skipped by the body in portions.
+     */
+    @Path("/v0/entities")
+    @RequestMethod(Request.METHOD_GET)
+    public Response entities(
+            @Param(value = "start", required = true) String start,
+            @Param("end") String end) throws IOException {
+        if (start.isEmpty() || (end != null && end.isEmpty())) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        MemorySegment from = MemorySegment.ofArray(Utf8.toBytes(start));
+        MemorySegment to = end == null ? null : MemorySegment.ofArray(Utf8.toBytes(end));
+        if (expired()) {
+            return retryLater();
+        }
+        Iterator<Entry<MemorySegment>> entries = dao instanceof LsmDao lsmDao
+                ? lsmDao.getWithTombstones(from, to)
+                : dao.get(from, to);
+        return new StreamingSession.EntriesResponse(entries);
+    }
+
+    @Override
+    public HttpSession createSession(Socket socket) throws RejectedSessionException {
+        if (executor == null) {
+            return new StreamingSession(socket, this, metrics, Runnable::run, 0, sessions);
+        }
+        return new StreamingSession(socket, this, metrics, executor::executeContinuation, requestTimeoutNanos,
+                sessions);
+    }
+
+    /**
+     * Upserts and deletes of {@link BatchFormat} body, applied as one batch.
+     */
+    @Path("/v0/batch")
+    @RequestMethod(Request.METHOD_PUT)
+    public Response batch(Request request) {
+        List<Entry<MemorySegment>> entries;
+        try {
+            entries = BatchFormat.decodeUpserts(request.getBody());
+        } catch (IllegalArgumentException e) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        if (expired()) {
+            return retryLater();
+        }
+        try {
+            dao.upsert(entries);
+        } catch (WriteStallException e) {
+            return retryLater();
+        }
+        return new Response(Response.CREATED, Response.EMPTY);
+    }
+
+    /**
+     * Values of {@link BatchFormat} keys in one response, POST is used because the keys are in body.
+     */
+    @Path("/v0/batch/get")
+    @RequestMethod(Request.METHOD_POST)
+    public Response batchGet(Request request) throws IOException {
+        List<MemorySegment> keys;
+        try {
+            keys = BatchFormat.decodeKeys(request.getBody());
+        } catch (IllegalArgumentException e) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        if (expired()) {
+            return retryLater();
+        }
+        return new Response(Response.OK, BatchFormat.encodeValues(dao.getAll(keys)));
+    }
+
     private Response put(String id, byte[] body) {
-        dao.upsert(new BaseEntry<>(MemorySegment.ofArray(Utf8.toBytes(id)), MemorySegment.ofArray(body)));
+        if (expired()) {
+            return retryLater();
+        }
+        try {
+            dao.upsert(new BaseEntry<>(MemorySegment.ofArray(Utf8.toBytes(id)), MemorySegment.ofArray(body)));
+        } catch (WriteStallException e) {
+            return retryLater();
+        }
         return new Response(Response.CREATED, Response.EMPTY);
     }
 
     private Response delete(String id) {
-        dao.upsert(new BaseEntry<>(MemorySegment.ofArray(Utf8.toBytes(id)), null));
+        if (expired()) {
+            return retryLater();
+        }
+        try {
+            dao.upsert(new BaseEntry<>(MemorySegment.ofArray(Utf8.toBytes(id)), null));
+        } catch (WriteStallException e) {
+            return retryLater();
+        }
         return new Response(Response.ACCEPTED, Response.EMPTY);
     }
 
+    /**
+     * Request was rejected because flush or workers can't keep up, client should repeat it after a pause.
+     */
+    private static Response retryLater() {
+        Response response = new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY);
+        response.addHeader("Retry-After: " + RETRY_AFTER_SECONDS);
+        return response;
+    }
+
+    /**
+     * Value is written to the socket from its segment, usually a slice of a mapped table, see {@link SegmentBody}.
+     */
     private Response get(String id) throws IOException {
+        if (expired()) {
+            return retryLater();
+        }
         MemorySegment key = MemorySegment.ofArray(Utf8.toBytes(id));
         Entry<MemorySegment> entry = dao.get(key);
 
         return (entry != null)
-                ? new Response(Response.OK, entry.value().toByteArray())
+                ? new StreamingSession.SegmentResponse(entry.value())
                 : new Response(Response.NOT_FOUND, Response.EMPTY);
     }
 
-    private static HttpServerConfig from(int port) {
+    /**
+     * Server's own workers are off: requests are handled by {@link RequestExecutor} or by selectors.
+     */
+    private static HttpServerConfig from(ServiceConfig serviceConfig) {
         HttpServerConfig config = new HttpServerConfig();
         AcceptorConfig ac = new AcceptorConfig();
-        ac.port = port;
+        ac.port = serviceConfig.port();
         ac.reusePort = true;
         config.acceptors = new AcceptorConfig[]{ac};
-        config.minWorkers = 4;
-        config.maxWorkers = 4;
+        config.selectors = serviceConfig.selectors();
+        config.keepAlive = serviceConfig.keepAliveSeconds();
         return config;
     }
 
@@ -0,0 +1,130 @@
+package service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded executor of requests: a task is rejected instead of queued once workers and queue are full.
+ * Virtual threads have no queue of their own, so the same bound is kept by a semaphore.
+ */
+final class RequestExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(RequestExecutor.class);
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+
+    private RequestExecutor(ExecutorService executor, Semaphore permits) {
+        this.executor = executor;
+        this.permits = permits;
+    }
+
+    /**
+     * @return null for {@link ServiceConfig.Execution#SELECTOR}
+     */
+    static RequestExecutor create(ServiceConfig config) {
+        if (config.workers() <= 0 || config.queueSize() < 0) {
+            throw new IllegalArgumentException("Workers must be positive, queue size not negative");
+        }
+        return switch (config.execution()) {
+            case SELECTOR -> null;
+            case POOL -> pool(config);
+            case VIRTUAL -> {
+                ExecutorService virtual = virtualThreads();
+                if (virtual == null) {
+                    LOG.warn("Virtual threads aren't available in this runtime, using pool of {} workers",
+                            config.workers());
+                    yield pool(config);
+                }
+                yield new RequestExecutor(virtual, new Semaphore(config.workers() + config.queueSize()));
+            }
+        };
+    }
+
+    /**
+     * @throws RejectedExecutionException if there are too many requests already
+     */
+    void execute(Runnable task) {
+        if (permits == null) {
+            executor.execute(task);
+            return;
+        }
+        if (!permits.tryAcquire()) {
+            throw new RejectedExecutionException("Too many requests");
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a task which continues an accepted request, such as a fill of a streamed body.
+     * It isn't limited by the queue, so the response is never dropped half-way:
+     * if the pool is full, the task runs in the calling thread.
+     */
+    void executeContinuation(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static RequestExecutor pool(ServiceConfig config) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threads = runnable -> {
+            Thread thread = new Thread(runnable, "requestWorker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ExecutorService executor = new ThreadPoolExecutor(config.workers(), config.workers(),
+                0, TimeUnit.MILLISECONDS,
+                config.queueSize() == 0
+                        ? new SynchronousQueue<>()
+                        : new ArrayBlockingQueue<>(config.queueSize()),
+                threads, new ThreadPoolExecutor.AbortPolicy());
+        return new RequestExecutor(executor, null);
+    }
+
+    /**
+     * Looked up by name, because the build targets a runtime without virtual threads.
+     */
+    private static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
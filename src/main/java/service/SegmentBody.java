@@ -0,0 +1,56 @@
+package service;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import one.nio.net.Session;
+import one.nio.net.Socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Response body written straight from the segment: native and mapped segments by address,
+ * heap ones from their array. Scope of the segment is acquired until the body is written or the session
+ * is closed, so a table can't be unmapped under the socket.
+ */
+final class SegmentBody extends Session.QueueItem {
+    private static final int COPY_SIZE = 64 * 1024;
+
+    private final MemorySegment segment;
+    private final ResourceScope.Handle handle;
+    private long position;
+
+    SegmentBody(MemorySegment segment) {
+        this.segment = segment;
+        this.handle = segment.scope().acquire();
+    }
+
+    @Override
+    public int remaining() {
+        return (int) Math.min(Integer.MAX_VALUE, segment.byteSize() - position);
+    }
+
+    @Override
+    public int write(Socket socket) throws IOException {
+        int count = remaining();
+        int written;
+        if (segment.isNative()) {
+            try {
+                written = socket.writeRaw(segment.address().toRawLongValue() + position, count, 0);
+            } catch (UnsupportedOperationException e) {
+                count = Math.min(count, COPY_SIZE);
+                written = socket.write(segment.asSlice(position, count).toByteArray(), 0, count, 0);
+            }
+        } else {
+            ByteBuffer buffer = segment.asByteBuffer();
+            written = socket.write(buffer.array(), buffer.arrayOffset() + (int) position, count, 0);
+        }
+        position += written;
+        return written;
+    }
+
+    @Override
+    public void release() {
+        segment.scope().release(handle);
+    }
+}
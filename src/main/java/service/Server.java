@@ -1,7 +1,6 @@
 package service;
 
 import jdk.incubator.foreign.MemorySegment;
-import lsm.Config;
 import lsm.DAOFactory;
 import lsm.Dao;
 import lsm.Entry;
@@ -17,8 +16,6 @@ import java.nio.file.Path;
  * @author Vadim Tsesko
  */
 public final class Server {
-    private static final int PORT = 8080;
-
     private static final Logger LOG = LoggerFactory.getLogger(Server.class);
 
     private Server() {
@@ -26,26 +23,40 @@ public final class Server {
     }
 
     /**
-     * Starts single node cluster at HTTP port 8080 and
-     * temporary data storage if storage path not supplied.
+     * Starts single node cluster with {@link Settings} from command line, environment and properties file,
+     * by default at HTTP port 8080 and temporary data storage if storage path not supplied.
      */
     public static void main(String[] args) throws IOException {
+        Settings settings = Settings.load(args, System.getenv());
+        LOG.info("Settings {}", settings);
+        settings.checkHeap(Runtime.getRuntime().maxMemory());
+
         // Temporary storage in the file system
         final Path data;
-        if (args.length > 0) {
-            data = Path.of(args[0]);
+        if (settings.dataPath() != null) {
+            data = settings.dataPath();
         } else {
             data = FileUtils.createTempDirectory();
         }
         LOG.info("Storing data at {}", data);
 
-        // Start the storage
-        Dao<MemorySegment, Entry<MemorySegment>> dao = DAOFactory.create(new Config(data, 4 * 1024));
-        final Service storage =
-                ServiceFactory.create(
-                        PORT,
-                        dao);
-        storage.start();
+        // Start the storage, it is closed if the service can't start
+        Dao<MemorySegment, Entry<MemorySegment>> dao = DAOFactory.create(settings.daoConfig(data));
+        final Service storage;
+        try {
+            storage = ServiceFactory.create(
+                    settings.serviceConfig(),
+                    dao);
+            storage.start();
+        } catch (IOException | RuntimeException e) {
+            try {
+                dao.close();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw e;
+        }
+        // The service releases everything of the dao before the dao is closed, see Service#stop
         Runtime.getRuntime().addShutdownHook(
                 new Thread(() -> {
                     storage.stop();
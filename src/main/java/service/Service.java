@@ -33,6 +33,8 @@ public interface Service {
 
     /**
      * Stop listening and free all the resources.
+     * Returns when no request uses the DAO and no response holds its data, so the DAO may be closed then,
+     * and not before.
      *
      * <p>May be called only once and after {@link #start()}.
      */
@@ -0,0 +1,60 @@
+package service;
+
+/**
+ * Settings of {@link MyService}.
+ *
+ * @param port HTTP port
+ * @param selectors number of selector threads, 0 for one per core
+ * @param execution where requests are handled
+ * @param workers number of threads handling requests, for {@link Execution#VIRTUAL} it is the number of
+ *                requests handled at once
+ * @param queueSize number of requests waiting for a worker, the rest are answered with 503
+ * @param requestTimeoutMillis requests waiting in queue longer are answered with 503 without being handled,
+ *                             it is checked before handling and before the dao is called
+ * @param keepAliveSeconds idle sessions are closed after this time, 0 for the server default
+ * @param maxHeapBytes service refuses to start with bigger heap, 0 disables the check
+ */
+public record ServiceConfig(
+        int port,
+        int selectors,
+        Execution execution,
+        int workers,
+        int queueSize,
+        long requestTimeoutMillis,
+        int keepAliveSeconds,
+        long maxHeapBytes) {
+
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 1000;
+    public static final long DEFAULT_MAX_HEAP_BYTES = 256 * 1024L * 1024;
+
+    public ServiceConfig(int port) {
+        this(port, 0, Execution.POOL, Runtime.getRuntime().availableProcessors(),
+                DEFAULT_QUEUE_SIZE, DEFAULT_REQUEST_TIMEOUT_MILLIS, 0, DEFAULT_MAX_HEAP_BYTES);
+    }
+
+    public ServiceConfig withExecution(Execution execution, int workers) {
+        return new ServiceConfig(port, selectors, execution, workers, queueSize, requestTimeoutMillis,
+                keepAliveSeconds, maxHeapBytes);
+    }
+
+    public ServiceConfig withQueue(int queueSize, long requestTimeoutMillis) {
+        return new ServiceConfig(port, selectors, execution, workers, queueSize, requestTimeoutMillis,
+                keepAliveSeconds, maxHeapBytes);
+    }
+
+    public enum Execution {
+        /**
+         * Requests are handled by selector threads, a slow request delays all sessions of its selector.
+         */
+        SELECTOR,
+        /**
+         * Requests are handled by a fixed pool of workers.
+         */
+        POOL,
+        /**
+         * Every request is handled by a new virtual thread, where the runtime has them, else as {@link #POOL}.
+         */
+        VIRTUAL
+    }
+}
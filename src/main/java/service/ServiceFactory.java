@@ -13,8 +13,6 @@ import java.util.Objects;
  * @author Vadim Tsesko
  */
 public final class ServiceFactory {
-    private static final long MAX_HEAP = 256 * 1024L * 1024;
-
     private ServiceFactory() {
         // Not supposed to be instantiated
     }
@@ -29,16 +27,29 @@ public final class ServiceFactory {
     public static Service create(
             final int port,
             final Dao<MemorySegment, Entry<MemorySegment>> dao) throws IOException {
-        if (Runtime.getRuntime().maxMemory() > MAX_HEAP) {
+        return create(new ServiceConfig(port), dao);
+    }
+
+    /**
+     * Construct a storage instance.
+     *
+     * @param config HTTP port and how requests are handled
+     * @param dao    DAO to store the data
+     * @return a storage instance
+     */
+    public static Service create(
+            final ServiceConfig config,
+            final Dao<MemorySegment, Entry<MemorySegment>> dao) throws IOException {
+        if (config.maxHeapBytes() > 0 && Runtime.getRuntime().maxMemory() > config.maxHeapBytes()) {
             throw new IllegalStateException("The heap is too big. Consider setting Xmx.");
         }
 
-        if (port <= 0 || 1 << 16 <= port) {
+        if (config.port() <= 0 || 1 << 16 <= config.port()) {
             throw new IllegalArgumentException("Port out of range");
         }
 
         Objects.requireNonNull(dao);
 
-        return new MyService(port, dao);
+        return new MyService(config, dao);
     }
 }
@@ -0,0 +1,258 @@
+package service;
+
+import lsm.Config;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Settings of the server from several sources, every next one overrides keys of the previous:
+ * <ol>
+ * <li>defaults, see {@link #keys()}</li>
+ * <li>properties file given by {@code --config=<path>} or {@code LSM_CONFIG}</li>
+ * <li>environment: {@code LSM_} and key in upper snake case, {@code http.queueSize} is {@code LSM_HTTP_QUEUE_SIZE},
+ * {@code lsm.memTable} is {@code LSM_MEM_TABLE}</li>
+ * <li>command line: {@code --http.queueSize=64}, an argument without {@code --} is {@code lsm.path}</li>
+ * </ol>
+ * Unknown keys are rejected, so a typo doesn't silently leave the default. Sizes are in bytes
+ * and may end with k, m or g.
+ */
+public final class Settings {
+    private static final String ENV_PREFIX = "LSM_";
+    private static final String CONFIG = "config";
+    private static final String PATH = "lsm.path";
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("http.port", "8080");
+        DEFAULTS.put("http.selectors", "0");
+        DEFAULTS.put("http.execution", ServiceConfig.Execution.POOL.name());
+        DEFAULTS.put("http.workers", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        DEFAULTS.put("http.queueSize", String.valueOf(ServiceConfig.DEFAULT_QUEUE_SIZE));
+        DEFAULTS.put("http.requestTimeoutMillis", String.valueOf(ServiceConfig.DEFAULT_REQUEST_TIMEOUT_MILLIS));
+        DEFAULTS.put("http.keepAliveSeconds", "0");
+
+        DEFAULTS.put(PATH, "");
+        DEFAULTS.put("lsm.flushThresholdBytes", "4m");
+        DEFAULTS.put("lsm.memTable", Config.MemTable.HEAP.name());
+        DEFAULTS.put("lsm.flushThreads", String.valueOf(Config.DEFAULT_FLUSH_THREADS));
+        DEFAULTS.put("lsm.maxImmutableTables", String.valueOf(Config.WriteStall.DEFAULT.maxImmutableTables()));
+        DEFAULTS.put("lsm.slowdownImmutableTables",
+                String.valueOf(Config.WriteStall.DEFAULT.slowdownImmutableTables()));
+        DEFAULTS.put("lsm.slowdownMicros", String.valueOf(Config.WriteStall.DEFAULT.slowdownMicros()));
+        DEFAULTS.put("lsm.stallTimeoutMillis", String.valueOf(Config.WriteStall.DEFAULT.timeoutMillis()));
+        DEFAULTS.put("lsm.bloomBitsPerKey", String.valueOf(Config.DEFAULT_BLOOM_BITS_PER_KEY));
+        DEFAULTS.put("lsm.walSyncPolicy", Config.SyncPolicy.PERIODIC.name());
+        DEFAULTS.put("lsm.walSyncIntervalMillis", String.valueOf(Config.DEFAULT_WAL_SYNC_INTERVAL_MILLIS));
+        DEFAULTS.put("lsm.tableFormat", Config.TableFormat.DENSE.name());
+        DEFAULTS.put("lsm.blockSize", String.valueOf(Config.DEFAULT_BLOCK_SIZE));
+        DEFAULTS.put("lsm.blockCacheBytes", "0");
+        DEFAULTS.put("lsm.compression", Config.Compression.NONE.name());
+        DEFAULTS.put("lsm.compaction.strategy", Config.Compaction.DEFAULT.strategy().name());
+        DEFAULTS.put("lsm.compaction.minTables", String.valueOf(Config.Compaction.DEFAULT.minTables()));
+        DEFAULTS.put("lsm.compaction.maxTables", String.valueOf(Config.Compaction.DEFAULT.maxTables()));
+        DEFAULTS.put("lsm.compaction.levelRatio", String.valueOf(Config.Compaction.DEFAULT.levelRatio()));
+
+        DEFAULTS.put("heap.maxBytes", String.valueOf(ServiceConfig.DEFAULT_MAX_HEAP_BYTES));
+        DEFAULTS.put("heap.memTablePercent", "50");
+    }
+
+    private final Map<String, String> values;
+
+    private Settings(Map<String, String> values) {
+        this.values = values;
+    }
+
+    /**
+     * @param args command line of the server
+     * @param env environment, usually {@link System#getenv()}
+     * @throws IllegalArgumentException if a key is unknown or a value is malformed
+     */
+    public static Settings load(String[] args, Map<String, String> env) throws IOException {
+        Map<String, String> arguments = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                arguments.put(PATH, arg);
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected --key=value: " + arg);
+            }
+            arguments.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+
+        Map<String, String> values = new LinkedHashMap<>(DEFAULTS);
+        String file = arguments.remove(CONFIG);
+        if (file == null) {
+            file = env.get(envName(CONFIG));
+        }
+        if (file != null) {
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(Path.of(file))) {
+                properties.load(reader);
+            }
+            for (String key : properties.stringPropertyNames()) {
+                put(values, key, properties.getProperty(key).trim());
+            }
+        }
+        for (String key : DEFAULTS.keySet()) {
+            String value = env.get(envName(key));
+            if (value != null) {
+                values.put(key, value.trim());
+            }
+        }
+        for (Map.Entry<String, String> argument : arguments.entrySet()) {
+            put(values, argument.getKey(), argument.getValue());
+        }
+
+        Settings settings = new Settings(values);
+        settings.serviceConfig();
+        settings.daoConfig(Path.of(""));
+        return settings;
+    }
+
+    /**
+     * @return known keys with their defaults
+     */
+    public static Map<String, String> keys() {
+        return Map.copyOf(DEFAULTS);
+    }
+
+    /**
+     * @return null if data path isn't set
+     */
+    public Path dataPath() {
+        String path = values.get(PATH);
+        return path.isEmpty() ? null : Path.of(path);
+    }
+
+    public ServiceConfig serviceConfig() {
+        return new ServiceConfig(
+                getInt("http.port"),
+                getInt("http.selectors"),
+                getEnum("http.execution", ServiceConfig.Execution.class),
+                getInt("http.workers"),
+                getInt("http.queueSize"),
+                getLong("http.requestTimeoutMillis"),
+                getInt("http.keepAliveSeconds"),
+                getSize("heap.maxBytes"));
+    }
+
+    public Config daoConfig(Path basePath) {
+        return new Config(
+                basePath,
+                getSize("lsm.flushThresholdBytes"),
+                getInt("lsm.bloomBitsPerKey"),
+                getEnum("lsm.walSyncPolicy", Config.SyncPolicy.class),
+                getLong("lsm.walSyncIntervalMillis"),
+                getEnum("lsm.tableFormat", Config.TableFormat.class),
+                Math.toIntExact(getSize("lsm.blockSize")),
+                getSize("lsm.blockCacheBytes"),
+                new Config.Compaction(
+                        getEnum("lsm.compaction.strategy", Config.Compaction.Strategy.class),
+                        getInt("lsm.compaction.minTables"),
+                        getInt("lsm.compaction.maxTables"),
+                        getInt("lsm.compaction.levelRatio")),
+                getEnum("lsm.compression", Config.Compression.class),
+                new Config.WriteStall(
+                        getInt("lsm.maxImmutableTables"),
+                        getInt("lsm.slowdownImmutableTables"),
+                        getLong("lsm.slowdownMicros"),
+                        getLong("lsm.stallTimeoutMillis")),
+                getInt("lsm.flushThreads"),
+                getEnum("lsm.memTable", Config.MemTable.class));
+    }
+
+    /**
+     * Memory tables on heap, the active one and those waiting for flush, must fit
+     * in {@code heap.memTablePercent} of the heap, else the server would fail with OOM under write load
+     * instead of stalling writers.
+     *
+     * @throws IllegalStateException if they don't
+     */
+    public void checkHeap(long maxHeapBytes) {
+        Config config = daoConfig(Path.of(""));
+        if (config.memTable() != Config.MemTable.HEAP) {
+            return;
+        }
+        long tables = config.writeStall().maxImmutableTables() + 1L;
+        long memTablesBytes = tables * config.flushThresholdBytes();
+        long allowed = maxHeapBytes / 100 * getInt("heap.memTablePercent");
+        if (memTablesBytes > allowed) {
+            throw new IllegalStateException(tables + " memory tables of " + config.flushThresholdBytes()
+                    + " bytes don't fit in " + allowed + " bytes of heap. "
+                    + "Consider setting Xmx, lsm.flushThresholdBytes or lsm.memTable=ARENA.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return values.toString();
+    }
+
+    private static void put(Map<String, String> values, String key, String value) {
+        if (!DEFAULTS.containsKey(key)) {
+            throw new IllegalArgumentException("Unknown setting " + key);
+        }
+        values.put(key, value);
+    }
+
+    private static String envName(String key) {
+        StringBuilder name = new StringBuilder(ENV_PREFIX);
+        for (int i = key.startsWith("lsm.") ? "lsm.".length() : 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c == '.') {
+                name.append('_');
+            } else if (Character.isUpperCase(c)) {
+                name.append('_').append(c);
+            } else {
+                name.append(Character.toUpperCase(c));
+            }
+        }
+        return name.toString();
+    }
+
+    private int getInt(String key) {
+        return Math.toIntExact(getLong(key));
+    }
+
+    private long getLong(String key) {
+        try {
+            return Long.parseLong(values.get(key));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad value of " + key + ": " + values.get(key), e);
+        }
+    }
+
+    private long getSize(String key) {
+        String value = values.get(key).toLowerCase(Locale.ROOT);
+        long multiplier = switch (value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+            case 'k' -> 1024L;
+            case 'm' -> 1024L * 1024;
+            case 'g' -> 1024L * 1024 * 1024;
+            default -> 1;
+        };
+        String number = multiplier == 1 ? value : value.substring(0, value.length() - 1);
+        try {
+            return Math.multiplyExact(Long.parseLong(number.trim()), multiplier);
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new IllegalArgumentException("Bad size of " + key + ": " + values.get(key), e);
+        }
+    }
+
+    private <T extends Enum<T>> T getEnum(String key, Class<T> type) {
+        try {
+            return Enum.valueOf(type, values.get(key).toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Bad value of " + key + ": " + values.get(key), e);
+        }
+    }
+}
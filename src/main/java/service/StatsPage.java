@@ -0,0 +1,73 @@
+package service;
+
+import jdk.incubator.foreign.MemorySegment;
+import lsm.Dao;
+import lsm.Entry;
+import lsm.dao.LsmDao;
+import lsm.dao.SSTable;
+import lsm.dao.TableMetadata;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tables of the dao from oldest to newest with their {@link TableMetadata} in JSON.
+ * Counters unknown for tables written before metadata are -1. Keys are bytes,
+ * printable ASCII is written as is and other bytes as JSON unicode escapes of their values.
+ */
+final class StatsPage {
+    static final String CONTENT_TYPE = "Content-Type: application/json";
+
+    private final StringBuilder text = new StringBuilder(1024);
+
+    private StatsPage() {
+    }
+
+    static byte[] render(Dao<MemorySegment, Entry<MemorySegment>> dao) {
+        StatsPage page = new StatsPage();
+        page.text.append("{\"tables\":[");
+        if (dao instanceof LsmDao lsmDao) {
+            page.tables(lsmDao);
+        }
+        page.text.append("]}\n");
+        return page.text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void tables(LsmDao dao) {
+        boolean first = true;
+        for (SSTable table : dao.getStorage().ssTables()) {
+            if (!first) {
+                text.append(',');
+            }
+            first = false;
+            TableMetadata metadata = table.metadata();
+            text.append("\n{\"name\":\"").append(table.getTableName().getFileName()).append('"')
+                    .append(",\"level\":").append(table.getLevel())
+                    .append(",\"entries\":").append(metadata.entries())
+                    .append(",\"tombstones\":").append(metadata.tombstones())
+                    .append(",\"keyBytes\":").append(metadata.keyBytes())
+                    .append(",\"valueBytes\":").append(metadata.valueBytes())
+                    .append(",\"fileBytes\":").append(table.sizeInBytes())
+                    .append(",\"firstKey\":");
+            key(metadata.firstKey());
+            text.append(",\"lastKey\":");
+            key(metadata.lastKey());
+            text.append('}');
+        }
+    }
+
+    private void key(MemorySegment key) {
+        if (key == null) {
+            text.append("null");
+            return;
+        }
+        text.append('"');
+        for (byte b : key.toByteArray()) {
+            if (b >= 0x20 && b < 0x7F && b != '"' && b != '\\') {
+                text.append((char) b);
+            } else {
+                text.append(String.format("\\u%04x", b & 0xFF));
+            }
+        }
+        text.append('"');
+    }
+}
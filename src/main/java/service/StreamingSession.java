@@ -0,0 +1,126 @@
+package service;
+
+import jdk.incubator.foreign.MemorySegment;
+import lsm.Entry;
+import one.nio.http.HttpServer;
+import one.nio.http.HttpSession;
+import one.nio.http.Response;
+import one.nio.net.Socket;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Session which writes bodies of {@link EntriesResponse} and {@link SegmentResponse} after their headers
+ * without building them in memory. Such responses are sent by {@link #sendResponse} as any other,
+ * so keep-alive and pipelined requests are handled as usual. Every response is counted in {@link HttpMetrics}.
+ * <p>
+ * Body of {@link EntriesResponse} is filled by {@code executor}: while the oldest one waits for it,
+ * the session doesn't listen for write, and the fill resumes writing.
+ */
+final class StreamingSession extends HttpSession {
+    private final HttpMetrics metrics;
+    private final Executor executor;
+    private final long timeoutNanos;
+    private final Set<StreamingSession> sessions;
+    private final Deque<ChunkedEntries> bodies = new ArrayDeque<>(); //guarded by this
+
+    /**
+     * @param sessions open sessions of the server, the session is added there and removes itself when closed
+     * @param timeoutNanos longest wait of a body fill for a worker, see {@link ChunkedEntries}
+     */
+    StreamingSession(Socket socket, HttpServer server, HttpMetrics metrics, Executor executor, long timeoutNanos,
+                     Set<StreamingSession> sessions) {
+        super(socket, server);
+        this.metrics = metrics;
+        this.executor = executor;
+        this.timeoutNanos = timeoutNanos;
+        this.sessions = sessions;
+        sessions.add(this);
+    }
+
+    /**
+     * Closing releases queued bodies, and with them the data of the dao they hold.
+     */
+    @Override
+    public void close() {
+        super.close();
+        sessions.remove(this);
+    }
+
+    @Override
+    protected void writeResponse(Response response, boolean includeBody) throws IOException {
+        metrics.responded(response);
+        super.writeResponse(response, includeBody);
+        if (!includeBody) {
+            return;
+        }
+        if (response instanceof EntriesResponse entriesResponse) {
+            ChunkedEntries body = new ChunkedEntries(entriesResponse.entries, this, executor, timeoutNanos);
+            bodies.add(body);
+            write(body);
+            body.start();
+        } else if (response instanceof SegmentResponse segmentResponse) {
+            write(new SegmentBody(segmentResponse.body));
+        }
+    }
+
+    @Override
+    protected synchronized void processWrite() throws Exception {
+        super.processWrite();
+        while (!bodies.isEmpty() && bodies.peek().remaining() == 0) {
+            bodies.poll();
+        }
+        ChunkedEntries oldest = bodies.peek();
+        if (oldest != null && oldest.isWaiting()) {
+            listen(READABLE);
+        }
+    }
+
+    /**
+     * Called by a fill of {@link ChunkedEntries}. A fill run by the thread which is writing the session
+     * doesn't have to resume it: the write goes on after the fill returns.
+     */
+    void resumeWrite() {
+        if (Thread.holdsLock(this)) {
+            return;
+        }
+        synchronized (this) {
+            try {
+                processWrite();
+            } catch (Exception e) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Entries as chunked body, see {@link ChunkedEntries}.
+     */
+    static final class EntriesResponse extends Response {
+        private final Iterator<Entry<MemorySegment>> entries;
+
+        EntriesResponse(Iterator<Entry<MemorySegment>> entries) {
+            super(Response.OK);
+            addHeader("Transfer-Encoding: chunked");
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Body from a segment, see {@link SegmentBody}.
+     */
+    static final class SegmentResponse extends Response {
+        private final MemorySegment body;
+
+        SegmentResponse(MemorySegment body) {
+            super(Response.OK);
+            addHeader("Content-Length: " + body.byteSize());
+            this.body = body;
+        }
+    }
+}
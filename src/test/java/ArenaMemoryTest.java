@@ -0,0 +1,139 @@
+import jdk.incubator.foreign.MemorySegment;
+import lsm.*;
+import lsm.dao.LsmDao;
+import one.nio.util.Utf8;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArenaMemoryTest {
+
+    @TempDir
+    Path dir;
+
+    private Config config;
+    private Dao<MemorySegment, Entry<MemorySegment>> dao;
+
+    @BeforeEach
+    void start() throws IOException {
+        config = new Config(dir, 64 * 1024).withMemTable(Config.MemTable.ARENA);
+        dao = DAOFactory.create(config);
+    }
+
+    @AfterEach
+    void finish() throws IOException {
+        dao.close();
+    }
+
+    @Test
+    void overwritesAndTombstonesInMemory() throws IOException {
+        dao.upsert(new BaseEntry<>(segment("b"), segment("1")));
+        dao.upsert(new BaseEntry<>(segment("a"), segment("2")));
+        dao.upsert(new BaseEntry<>(segment("c"), segment("3")));
+        dao.upsert(new BaseEntry<>(segment("b"), segment("4")));
+        dao.upsert(new BaseEntry<>(segment("c"), null));
+        dao.upsert(new BaseEntry<>(segment("d"), segment("")));
+
+        assertEquals("2", string(dao.get(segment("a")).value()));
+        assertEquals("4", string(dao.get(segment("b")).value()));
+        assertNull(dao.get(segment("c")));
+        assertEquals(0, dao.get(segment("d")).value().byteSize());
+        assertNull(dao.get(segment("e")));
+
+        Iterator<Entry<MemorySegment>> all = dao.all();
+        for (String key : new String[]{"a", "b", "d"}) {
+            assertEquals(key, string(all.next().key()));
+        }
+        assertFalse(all.hasNext());
+        assertTrue(((LsmDao) dao).getStorage().ssTables().isEmpty());
+    }
+
+    @Test
+    void entriesOutliveFlush() throws IOException {
+        dao.upsert(new BaseEntry<>(segment("key"), segment("value")));
+        Entry<MemorySegment> entry = dao.get(segment("key"));
+        Iterator<Entry<MemorySegment>> range = dao.all();
+        dao.flush();
+
+        assertEquals("value", string(entry.value()));
+        assertEquals("key", string(range.next().key()));
+        assertFalse(range.hasNext());
+    }
+
+    @Test
+    void manyTablesSurviveReopen() throws IOException {
+        TreeMap<String, String> expected = new TreeMap<>();
+        for (int i = 0; i < 20_000; i++) {
+            String key = "key" + (i * 7919 % 5000);
+            String value = i % 11 == 0 ? null : "value" + i;
+            dao.upsert(new BaseEntry<>(segment(key), value == null ? null : segment(value)));
+            if (value == null) {
+                expected.remove(key);
+            } else {
+                expected.put(key, value);
+            }
+        }
+        dao.close();
+        dao = DAOFactory.create(config);
+
+        assertTrue(((LsmDao) dao).getStorage().ssTables().size() > 1);
+        Iterator<Entry<MemorySegment>> all = dao.all();
+        for (var pair : expected.entrySet()) {
+            Entry<MemorySegment> entry = all.next();
+            assertEquals(pair.getKey(), string(entry.key()));
+            assertEquals(pair.getValue(), string(entry.value()));
+        }
+        assertFalse(all.hasNext());
+    }
+
+    @Test
+    void entriesBiggerThanChunk() throws IOException {
+        byte[] big = new byte[3 * 64 * 1024];
+        for (int i = 0; i < big.length; i++) {
+            big[i] = (byte) i;
+        }
+        dao.upsert(new BaseEntry<>(segment("small"), segment("value")));
+        dao.upsert(new BaseEntry<>(segment("big"), MemorySegment.ofArray(big)));
+
+        assertArrayEquals(big, dao.get(segment("big")).value().toByteArray());
+        dao.close();
+        dao = DAOFactory.create(config);
+        assertArrayEquals(big, dao.get(segment("big")).value().toByteArray());
+        assertEquals("value", string(dao.get(segment("small")).value()));
+    }
+
+    @Test
+    void batchIsAppliedToArena() throws IOException {
+        List<Entry<MemorySegment>> batch = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(new BaseEntry<>(segment("key" + i), segment("value" + i)));
+        }
+        batch.add(new BaseEntry<>(segment("key5"), null));
+        dao.upsert(batch);
+
+        assertNull(dao.get(segment("key5")));
+        assertEquals("value99", string(dao.get(segment("key99")).value()));
+    }
+
+    private static String string(MemorySegment segment) {
+        return Utf8.toString(segment.toByteArray());
+    }
+
+    private static MemorySegment segment(String data) {
+        return MemorySegment.ofArray(Utf8.toBytes(data));
+    }
+}
@@ -1,5 +1,6 @@
 import jdk.incubator.foreign.MemorySegment;
 import lsm.*;
+import lsm.dao.LsmDao;
 import one.nio.util.Utf8;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -8,9 +9,14 @@ import org.junit.jupiter.api.io.TempDir;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 class BasicTest {
 
@@ -63,4 +69,62 @@ class BasicTest {
         assertEquals(dao.get(key1).value(), value1);
     }
 
+    @Test
+    void upsertBatch() throws IOException {
+        MemorySegment key = MemorySegment.ofArray(Utf8.toBytes("NEW_KEY"));
+        MemorySegment key1 = MemorySegment.ofArray(Utf8.toBytes("NEW_KEY1"));
+        MemorySegment value = MemorySegment.ofArray(Utf8.toBytes("NEW_VALUE"));
+        MemorySegment value1 = MemorySegment.ofArray(Utf8.toBytes("NEW_VALUE1"));
+        dao.upsert(new BaseEntry<>(key1, value1));
+        dao.upsert(List.of(
+                new BaseEntry<>(key, value1),
+                new BaseEntry<>(key1, null),
+                new BaseEntry<>(key, value)
+        ));
+        assertEquals(dao.get(key).value(), value);
+        assertNull(dao.get(key1));
+    }
+
+    @Test
+    void snapshotIgnoresLaterWrites() throws IOException {
+        MemorySegment key = MemorySegment.ofArray(Utf8.toBytes("NEW_KEY"));
+        MemorySegment key1 = MemorySegment.ofArray(Utf8.toBytes("NEW_KEY1"));
+        MemorySegment value = MemorySegment.ofArray(Utf8.toBytes("NEW_VALUE"));
+        MemorySegment value1 = MemorySegment.ofArray(Utf8.toBytes("NEW_VALUE1"));
+        dao.upsert(new BaseEntry<>(key, value));
+        try (Dao<MemorySegment, Entry<MemorySegment>> snapshot = dao.snapshot()) {
+            dao.upsert(new BaseEntry<>(key, value1));
+            dao.upsert(new BaseEntry<>(key1, value1));
+            dao.flush();
+            dao.compact();
+            assertArrayEquals(snapshot.get(key).value().toByteArray(), value.toByteArray());
+            assertNull(snapshot.get(key1));
+            Iterator<Entry<MemorySegment>> all = snapshot.all();
+            assertArrayEquals(all.next().value().toByteArray(), value.toByteArray());
+            assertFalse(all.hasNext());
+        }
+        assertArrayEquals(dao.get(key).value().toByteArray(), value1.toByteArray());
+    }
+
+    @Test
+    void snapshotsOfSmallMemoryAreNotFlushed() throws IOException {
+        MemorySegment key = MemorySegment.ofArray(Utf8.toBytes("NEW_KEY"));
+        MemorySegment value = MemorySegment.ofArray(Utf8.toBytes("NEW_VALUE"));
+        dao.upsert(new BaseEntry<>(key, value));
+        for (int i = 0; i < 100; i++) {
+            try (Dao<MemorySegment, Entry<MemorySegment>> snapshot = dao.snapshot()) {
+                assertEquals(snapshot.get(key).value(), value);
+            }
+        }
+        assertEquals(0, ((LsmDao) dao).getStorage().ssTables().size());
+        assertEquals(0, ((LsmDao) dao).getStorage().flushing().size());
+    }
+
+    @Test
+    void closeFailsWhileSnapshotIsOpen() throws IOException {
+        Dao<MemorySegment, Entry<MemorySegment>> snapshot = dao.snapshot();
+        assertThrows(IllegalStateException.class, dao::close);
+        snapshot.close();
+    }
+
 }
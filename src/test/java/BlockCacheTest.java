@@ -0,0 +1,132 @@
+import jdk.incubator.foreign.MemorySegment;
+import lsm.*;
+import lsm.dao.BlockCache;
+import lsm.dao.LsmDao;
+import one.nio.util.Utf8;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlockCacheTest {
+    private static final int SLOT = 16;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void hitsAndMisses() {
+        try (BlockCache cache = new BlockCache(2 * SLOT, SLOT)) {
+            assertNull(cache.get(1, 0));
+            cache.put(1, 0, block(1));
+            try (BlockCache.Handle handle = cache.get(1, 0)) {
+                assertNotNull(handle);
+                assertArrayEquals(block(1).toByteArray(), handle.segment().toByteArray());
+            }
+            assertNull(cache.get(2, 0));
+
+            BlockCache.Stats stats = cache.stats();
+            assertEquals(1, stats.hits());
+            assertEquals(2, stats.misses());
+            assertEquals(0, stats.evictions());
+            assertEquals(1, stats.cachedBlocks());
+            assertEquals(2, stats.capacityBlocks());
+        }
+    }
+
+    @Test
+    void referencedBlockSurvivesEviction() {
+        try (BlockCache cache = new BlockCache(2 * SLOT, SLOT)) {
+            cache.put(1, 0, block(0));
+            cache.put(1, 1, block(1));
+            cache.get(1, 0).close();
+            cache.put(1, 2, block(2));
+
+            assertNotNull(cache.get(1, 0));
+            assertNull(cache.get(1, 1));
+            assertNotNull(cache.get(1, 2));
+            assertEquals(1, cache.stats().evictions());
+        }
+    }
+
+    @Test
+    void pinnedBlocksAreNotEvicted() {
+        try (BlockCache cache = new BlockCache(2 * SLOT, SLOT)) {
+            cache.put(1, 0, block(0));
+            cache.put(1, 1, block(1));
+            try (BlockCache.Handle first = cache.get(1, 0); BlockCache.Handle second = cache.get(1, 1)) {
+                cache.put(1, 2, block(2));
+
+                assertNull(cache.get(1, 2));
+                assertArrayEquals(block(0).toByteArray(), first.segment().toByteArray());
+                assertArrayEquals(block(1).toByteArray(), second.segment().toByteArray());
+            }
+            assertEquals(0, cache.stats().evictions());
+        }
+    }
+
+    @Test
+    void oversizedBlockIsNotCached() {
+        try (BlockCache cache = new BlockCache(2 * SLOT, SLOT)) {
+            cache.put(1, 0, MemorySegment.ofArray(new byte[SLOT + 1]));
+            assertNull(cache.get(1, 0));
+            assertEquals(0, cache.stats().cachedBlocks());
+        }
+    }
+
+    @Test
+    void pointLookupsFillCacheAndRangesDont() throws IOException {
+        int capacity = 8;
+        Config config = new Config(dir, 1 << 20).withTableFormat(Config.TableFormat.BLOCK)
+                .withBlockCacheBytes((long) capacity * Config.DEFAULT_BLOCK_SIZE);
+        try (LsmDao dao = new LsmDao(config)) {
+            for (int i = 0; i < 5000; i++) {
+                dao.upsert(new BaseEntry<>(segment(key(i)), segment("value" + i)));
+            }
+            dao.flush();
+            BlockCache cache = dao.getBlockCache();
+
+            Iterator<Entry<MemorySegment>> range = dao.all();
+            while (range.hasNext()) {
+                range.next();
+            }
+            assertEquals(0, cache.stats().cachedBlocks());
+
+            assertEquals("value0", Utf8.toString(dao.get(segment(key(0))).value().toByteArray()));
+            assertEquals("value1", Utf8.toString(dao.get(segment(key(1))).value().toByteArray()));
+            assertEquals(1, cache.stats().hits());
+            assertEquals(1, cache.stats().misses());
+
+            for (int i = 0; i < 5000; i++) {
+                assertEquals("value" + i, Utf8.toString(dao.get(segment(key(i))).value().toByteArray()));
+            }
+            BlockCache.Stats stats = cache.stats();
+            assertEquals(capacity, stats.cachedBlocks());
+            assertTrue(stats.evictions() > 0);
+            assertEquals(stats.misses(), stats.cachedBlocks() + stats.evictions());
+        }
+    }
+
+    private static MemorySegment block(int fill) {
+        byte[] data = new byte[SLOT];
+        Arrays.fill(data, (byte) fill);
+        return MemorySegment.ofArray(data);
+    }
+
+    private static String key(int i) {
+        return String.format("key%06d", i);
+    }
+
+    private static MemorySegment segment(String data) {
+        return MemorySegment.ofArray(Utf8.toBytes(data));
+    }
+}
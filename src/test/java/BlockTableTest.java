@@ -0,0 +1,183 @@
+import jdk.incubator.foreign.MemorySegment;
+import lsm.*;
+import lsm.dao.LsmDao;
+import lsm.dao.SSTable;
+import one.nio.util.Utf8;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlockTableTest {
+    private static final int KEYS = 3000;
+
+    @TempDir
+    Path dir;
+
+    private Dao<MemorySegment, Entry<MemorySegment>> dao;
+
+    @AfterEach
+    void finish() throws IOException {
+        if (dao != null) {
+            dao.close();
+        }
+    }
+
+    @Test
+    void blockTableSurvivesReopen() throws IOException {
+        Config config = new Config(dir, 1 << 20).withTableFormat(Config.TableFormat.BLOCK);
+        dao = DAOFactory.create(config);
+        fill();
+        dao.close();
+        dao = DAOFactory.create(config);
+
+        SSTable table = ((LsmDao) dao).getStorage().ssTables().get(0);
+        assertFalse(Files.exists(table.getIndexName()));
+        assertTrue(table.sizeInBytes() > 10L * Config.DEFAULT_BLOCK_SIZE);
+        checkAll();
+    }
+
+    @Test
+    void rangesCrossBlocks() throws IOException {
+        dao = DAOFactory.create(new Config(dir, 1 << 20).withTableFormat(Config.TableFormat.BLOCK));
+        fill();
+
+        Iterator<Entry<MemorySegment>> range = dao.get(segment(key(1000)), segment(key(2000)));
+        for (int i = 1000; i < 2000; i++) {
+            if (i % 7 == 0) {
+                continue;
+            }
+            Entry<MemorySegment> entry = range.next();
+            assertEquals(key(i), Utf8.toString(entry.key().toByteArray()));
+            assertEquals(value(i), Utf8.toString(entry.value().toByteArray()));
+        }
+        assertFalse(range.hasNext());
+
+        // Bounds between keys and outside of the table
+        range = dao.get(segment(key(5) + "a"), segment(key(6) + "a"));
+        assertEquals(key(6), Utf8.toString(range.next().key().toByteArray()));
+        assertFalse(range.hasNext());
+        assertFalse(dao.get(segment("a"), segment(key(0))).hasNext());
+        assertFalse(dao.get(segment("z"), null).hasNext());
+    }
+
+    @Test
+    void blockAndDenseTablesAreReadTogether() throws IOException {
+        Config dense = new Config(dir, 1 << 20)
+                .withCompaction(Config.Compaction.DEFAULT.withStrategy(Config.Compaction.Strategy.NONE));
+        dao = DAOFactory.create(dense);
+        for (int i = 0; i < KEYS; i += 2) {
+            dao.upsert(new BaseEntry<>(segment(key(i)), segment("old")));
+        }
+        dao.close();
+        dao = DAOFactory.create(dense.withTableFormat(Config.TableFormat.BLOCK));
+        for (int i = 0; i < KEYS; i += 3) {
+            dao.upsert(new BaseEntry<>(segment(key(i)), segment("new")));
+        }
+        dao.close();
+        dao = DAOFactory.create(dense);
+
+        assertEquals(2, ((LsmDao) dao).getStorage().ssTables().size());
+        for (int i = 0; i < KEYS; i++) {
+            Entry<MemorySegment> entry = dao.get(segment(key(i)));
+            String expected = i % 3 == 0 ? "new" : i % 2 == 0 ? "old" : null;
+            if (expected == null) {
+                assertNull(entry);
+            } else {
+                assertEquals(expected, Utf8.toString(entry.value().toByteArray()));
+            }
+        }
+    }
+
+    @Test
+    void deflatedTableSurvivesReopen() throws IOException {
+        Path plainDir = Files.createDirectory(dir.resolve("plain"));
+        Path deflatedDir = Files.createDirectory(dir.resolve("deflated"));
+        Config plain = new Config(plainDir, 1 << 20).withTableFormat(Config.TableFormat.BLOCK);
+        dao = DAOFactory.create(plain);
+        fill();
+        long plainSize = ((LsmDao) dao).getStorage().ssTables().get(0).sizeInBytes();
+        dao.close();
+
+        Config deflated = new Config(deflatedDir, 1 << 20).withTableFormat(Config.TableFormat.BLOCK)
+                .withCompression(Config.Compression.DEFLATE);
+        dao = DAOFactory.create(deflated);
+        fill();
+        dao.close();
+        // Codec is read from the table, not from the config
+        dao = DAOFactory.create(new Config(deflatedDir, 1 << 20));
+
+        assertTrue(((LsmDao) dao).getStorage().ssTables().get(0).sizeInBytes() < plainSize / 2);
+        checkAll();
+    }
+
+    @Test
+    void tablesWithDifferentCodecsAreReadTogether() throws IOException {
+        Config config = new Config(dir, 1 << 20).withTableFormat(Config.TableFormat.BLOCK)
+                .withCompaction(Config.Compaction.DEFAULT.withStrategy(Config.Compaction.Strategy.NONE));
+        dao = DAOFactory.create(config);
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(new BaseEntry<>(segment(key(i)), segment(value(i))));
+        }
+        dao.close();
+        dao = DAOFactory.create(config.withCompression(Config.Compression.DEFLATE));
+        for (int i = 0; i < KEYS; i += 7) {
+            dao.upsert(new BaseEntry<>(segment(key(i)), null));
+        }
+        dao.close();
+        dao = DAOFactory.create(config);
+
+        assertEquals(2, ((LsmDao) dao).getStorage().ssTables().size());
+        checkAll();
+    }
+
+    private void fill() throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(new BaseEntry<>(segment(key(i)), segment(value(i))));
+        }
+        for (int i = 0; i < KEYS; i += 7) {
+            dao.upsert(new BaseEntry<>(segment(key(i)), null));
+        }
+        dao.flush();
+    }
+
+    private void checkAll() throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            Entry<MemorySegment> entry = dao.get(segment(key(i)));
+            if (i % 7 == 0) {
+                assertNull(entry);
+            } else {
+                assertEquals(value(i), Utf8.toString(entry.value().toByteArray()));
+            }
+        }
+        assertNull(dao.get(segment(key(KEYS))));
+        Iterator<Entry<MemorySegment>> all = dao.all();
+        int count = 0;
+        while (all.hasNext()) {
+            all.next();
+            count++;
+        }
+        assertEquals(KEYS - (KEYS + 6) / 7, count);
+    }
+
+    private static String key(int i) {
+        return String.format("key%06d", i);
+    }
+
+    private static String value(int i) {
+        return "value" + i + "_" + "x".repeat(i % 50);
+    }
+
+    private static MemorySegment segment(String data) {
+        return MemorySegment.ofArray(Utf8.toBytes(data));
+    }
+}
@@ -0,0 +1,176 @@
+import jdk.incubator.foreign.MemorySegment;
+import lsm.*;
+import lsm.dao.LsmDao;
+import lsm.dao.Storage;
+import one.nio.util.Utf8;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Writers enter memory without locks and sealing waits for the ones inside, see {@link Storage.Memory#enter()}.
+ * Here memory is sealed by size, by flush and by snapshots while every writer puts its own keys,
+ * one of them in batches.
+ */
+class ConcurrentWritesTest {
+    private static final int WRITERS = 4;
+    private static final int KEYS = 5_000;
+    private static final int ROUNDS = 2;
+    private static final int BATCH = 50;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void writesSurviveSealsOfHeapMemory() throws Exception {
+        writeWhileSealing(new Config(dir, 64 * 1024));
+    }
+
+    @Test
+    void writesSurviveSealsOfArenaMemory() throws Exception {
+        writeWhileSealing(new Config(dir, 64 * 1024).withMemTable(Config.MemTable.ARENA));
+    }
+
+    private void writeWhileSealing(Config config) throws Exception {
+        AtomicIntegerArray acknowledged = new AtomicIntegerArray(WRITERS);
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        try (LsmDao dao = new LsmDao(config)) {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int writer = 0; writer < WRITERS; writer++) {
+                int id = writer;
+                writers.add(executor.submit(() -> write(dao, id, acknowledged)));
+            }
+            int snapshots = 0;
+            while (!allDone(writers)) {
+                if (snapshots % 4 == 0) {
+                    dao.flush();
+                }
+                int[] before = new int[WRITERS];
+                for (int writer = 0; writer < WRITERS; writer++) {
+                    before[writer] = acknowledged.get(writer);
+                }
+                try (Dao<MemorySegment, Entry<MemorySegment>> snapshot = dao.snapshot()) {
+                    for (int writer = 0; writer < WRITERS; writer++) {
+                        if (before[writer] > 0 && before[writer] <= KEYS) {
+                            assertNotNull(snapshot.get(segment(key(writer, before[writer] - 1))));
+                        }
+                    }
+                }
+                snapshots++;
+            }
+            for (Future<?> writer : writers) {
+                writer.get(1, TimeUnit.MINUTES);
+            }
+            assertTrue(snapshots > 0);
+
+            Storage storage = dao.getStorage();
+            checkCounted(storage.memory(), config);
+            for (Storage.Memory memory : storage.flushing()) {
+                checkCounted(memory, config);
+            }
+            checkValues(dao);
+        } finally {
+            executor.shutdownNow();
+        }
+        try (LsmDao dao = new LsmDao(config)) {
+            checkValues(dao);
+        }
+    }
+
+    /**
+     * Writer 0 puts batches, the others single entries. Every round overwrites all keys of the writer.
+     */
+    private static Void write(LsmDao dao, int writer, AtomicIntegerArray acknowledged) {
+        for (int round = 0; round < ROUNDS; round++) {
+            if (writer == 0) {
+                for (int i = 0; i < KEYS; i += BATCH) {
+                    List<Entry<MemorySegment>> batch = new ArrayList<>(BATCH);
+                    for (int j = i; j < i + BATCH; j++) {
+                        batch.add(new BaseEntry<>(segment(key(writer, j)), segment(value(j, round))));
+                    }
+                    dao.upsert(batch);
+                    acknowledged.addAndGet(writer, BATCH);
+                }
+            } else {
+                for (int i = 0; i < KEYS; i++) {
+                    dao.upsert(new BaseEntry<>(segment(key(writer, i)), segment(value(i, round))));
+                    acknowledged.incrementAndGet(writer);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean allDone(List<Future<?>> writers) {
+        for (Future<?> writer : writers) {
+            if (!writer.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counters of memory match its entries once all writers exited it. Heap memory counts entry sizes,
+     * arena counts allocated bytes, which are at least the bytes of keys and values.
+     */
+    private static void checkCounted(Storage.Memory memory, Config config) {
+        long entries = 0;
+        long data = 0;
+        Iterator<Entry<MemorySegment>> all = memory.get(null, null);
+        while (all.hasNext()) {
+            Entry<MemorySegment> entry = all.next();
+            entries++;
+            data += entry.key().byteSize() + entry.value().byteSize();
+        }
+        assertEquals(entries, memory.count());
+        if (config.memTable() == Config.MemTable.HEAP) {
+            assertEquals(data + 2L * Long.BYTES * entries, memory.size());
+        } else {
+            assertTrue(memory.size() >= data);
+        }
+    }
+
+    private static void checkValues(LsmDao dao) throws IOException {
+        for (int writer = 0; writer < WRITERS; writer++) {
+            for (int i = 0; i < KEYS; i++) {
+                Entry<MemorySegment> entry = dao.get(segment(key(writer, i)));
+                assertNotNull(entry, key(writer, i));
+                assertEquals(value(i, ROUNDS - 1), Utf8.toString(entry.value().toByteArray()));
+            }
+        }
+        Iterator<Entry<MemorySegment>> all = dao.all();
+        int entries = 0;
+        while (all.hasNext()) {
+            all.next();
+            entries++;
+        }
+        assertEquals(WRITERS * KEYS, entries);
+    }
+
+    private static String key(int writer, int i) {
+        return String.format("w%d_%06d", writer, i);
+    }
+
+    private static String value(int i, int round) {
+        return "value" + i + "_" + round;
+    }
+
+    private static MemorySegment segment(String data) {
+        return MemorySegment.ofArray(Utf8.toBytes(data));
+    }
+}
@@ -0,0 +1,142 @@
+import jdk.incubator.foreign.MemorySegment;
+import lsm.*;
+import lsm.dao.LsmDao;
+import one.nio.util.Utf8;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Opens tables checked in under {@code src/test/resources}, written by older versions of the dao:
+ * <ul>
+ * <li>{@code dense-v1}: version 1 tables without a manifest, bloom filters and metadata</li>
+ * <li>{@code dense-v2}: version 2 tables with a manifest and bloom filters, without metadata</li>
+ * <li>{@code dense-v3}: version 3 tables with key prefixes in the index, without metadata</li>
+ * </ul>
+ * Every fixture has two tables: key000..key099 with values old0..old99, then a newer table
+ * with a tombstone for every fifth key and value new{i} for the rest of every third key.
+ */
+class DenseCompatibilityTest {
+    private static final int KEYS = 100;
+
+    @TempDir
+    Path dir;
+
+    private Dao<MemorySegment, Entry<MemorySegment>> dao;
+
+    @AfterEach
+    void finish() throws IOException {
+        if (dao != null) {
+            dao.close();
+        }
+    }
+
+    @Test
+    void readsVersion1Tables() throws IOException, URISyntaxException {
+        open("dense-v1");
+        checkFixture();
+    }
+
+    @Test
+    void readsVersion2Tables() throws IOException, URISyntaxException {
+        open("dense-v2");
+        checkFixture();
+    }
+
+    @Test
+    void readsVersion3Tables() throws IOException, URISyntaxException {
+        open("dense-v3");
+        checkFixture();
+    }
+
+    @Test
+    void version1TablesSurviveReopenAndCompaction() throws IOException, URISyntaxException {
+        open("dense-v1");
+        dao.close();
+        dao = DAOFactory.create(new Config(dir, 1 << 20));
+        checkFixture();
+        assertTrue(Files.exists(dir.resolve("MANIFEST")));
+
+        dao.compact();
+        dao.close();
+        dao = DAOFactory.create(new Config(dir, 1 << 20));
+        assertEquals(1, ((LsmDao) dao).getStorage().ssTables().size());
+        checkFixture();
+    }
+
+    @Test
+    void version2TablesAreMergedWithNewOnes() throws IOException, URISyntaxException {
+        open("dense-v2");
+        dao.upsert(new BaseEntry<>(segment(key(1)), segment("newest")));
+        dao.upsert(new BaseEntry<>(segment(key(3)), null));
+        dao.flush();
+
+        assertEquals(3, ((LsmDao) dao).getStorage().ssTables().size());
+        assertEquals("newest", Utf8.toString(dao.get(segment(key(1))).value().toByteArray()));
+        assertNull(dao.get(segment(key(3))));
+        assertEquals("old2", Utf8.toString(dao.get(segment(key(2))).value().toByteArray()));
+    }
+
+    private void open(String fixture) throws IOException, URISyntaxException {
+        Path source = Path.of(DenseCompatibilityTest.class.getResource("/" + fixture).toURI());
+        try (Stream<Path> files = Files.list(source)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, dir.resolve(file.getFileName().toString()));
+            }
+        }
+        dao = DAOFactory.create(new Config(dir, 1 << 20));
+        assertEquals(2, ((LsmDao) dao).getStorage().ssTables().size());
+    }
+
+    private void checkFixture() throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            Entry<MemorySegment> entry = dao.get(segment(key(i)));
+            String expected = expected(i);
+            if (expected == null) {
+                assertNull(entry);
+            } else {
+                assertEquals(expected, Utf8.toString(entry.value().toByteArray()));
+            }
+        }
+        assertNull(dao.get(segment("key")));
+        assertNull(dao.get(segment(key(KEYS))));
+
+        Iterator<Entry<MemorySegment>> range = dao.get(segment(key(10)), segment(key(20)));
+        for (int i = 10; i < 20; i++) {
+            if (expected(i) == null) {
+                continue;
+            }
+            Entry<MemorySegment> entry = range.next();
+            assertEquals(key(i), Utf8.toString(entry.key().toByteArray()));
+            assertEquals(expected(i), Utf8.toString(entry.value().toByteArray()));
+        }
+        assertFalse(range.hasNext());
+    }
+
+    private static String expected(int i) {
+        if (i % 5 == 0) {
+            return null;
+        }
+        return i % 3 == 0 ? "new" + i : "old" + i;
+    }
+
+    private static String key(int i) {
+        return String.format("key%03d", i);
+    }
+
+    private static MemorySegment segment(String data) {
+        return MemorySegment.ofArray(Utf8.toBytes(data));
+    }
+}
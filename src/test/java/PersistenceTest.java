@@ -0,0 +1,177 @@
+import jdk.incubator.foreign.MemorySegment;
+import lsm.*;
+import lsm.dao.LsmDao;
+import lsm.dao.SSTable;
+import lsm.dao.TableMetadata;
+import one.nio.util.Utf8;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PersistenceTest {
+
+    @TempDir
+    Path dir;
+
+    private Dao<MemorySegment, Entry<MemorySegment>> dao;
+
+    @BeforeEach
+    void start() throws IOException {
+        dao = DAOFactory.create(new Config(dir, 1 << 20));
+    }
+
+    @AfterEach
+    void finish() throws IOException {
+        dao.close();
+    }
+
+    @Test
+    void getAfterReopen() throws IOException {
+        for (int i = 0; i < 1000; i += 2) {
+            dao.upsert(new BaseEntry<>(segment("key" + i), segment("value" + i)));
+            if (i % 100 == 0) {
+                dao.flush();
+            }
+        }
+        dao.upsert(new BaseEntry<>(segment("key10"), null));
+        reopen();
+
+        for (int i = 0; i < 1000; i++) {
+            Entry<MemorySegment> entry = dao.get(segment("key" + i));
+            if (i % 2 == 1 || i == 10) {
+                assertNull(entry);
+            } else {
+                assertEquals("value" + i, Utf8.toString(entry.value().toByteArray()));
+            }
+        }
+    }
+
+    @Test
+    void recoverWithoutClose() throws IOException {
+        dao.upsert(new BaseEntry<>(segment("key1"), segment("value1")));
+        dao.upsert(new BaseEntry<>(segment("key2"), segment("value2")));
+        dao.upsert(new BaseEntry<>(segment("key1"), null));
+
+        // Files as the killed process would leave them; the instance itself is closed normally
+        Path crashed = Files.createDirectory(dir.resolve("crashed"));
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                Files.copy(file, crashed.resolve(file.getFileName()));
+            }
+        }
+        dao.close();
+        dao = DAOFactory.create(new Config(crashed, 1 << 20));
+
+        assertNull(dao.get(segment("key1")));
+        assertEquals("value2", Utf8.toString(dao.get(segment("key2")).value().toByteArray()));
+    }
+
+    @Test
+    void tableMetadataSurvivesReopen() throws IOException {
+        dao.close();
+        Config config = new Config(dir, 1 << 20)
+                .withCompaction(Config.Compaction.DEFAULT.withStrategy(Config.Compaction.Strategy.NONE));
+        dao = DAOFactory.create(config);
+        for (String prefix : new String[]{"a", "c"}) {
+            for (int i = 0; i < 10; i++) {
+                dao.upsert(new BaseEntry<>(segment(prefix + i), i == 5 ? null : segment("value" + i)));
+            }
+            dao.flush();
+        }
+        dao.close();
+        dao = DAOFactory.create(config);
+
+        List<SSTable> tables = ((LsmDao) dao).getStorage().ssTables();
+        assertEquals(2, tables.size());
+        TableMetadata metadata = tables.get(0).metadata();
+        assertEquals("a0", Utf8.toString(metadata.firstKey().toByteArray()));
+        assertEquals("a9", Utf8.toString(metadata.lastKey().toByteArray()));
+        assertEquals(10, metadata.entries());
+        assertEquals(1, metadata.tombstones());
+        assertEquals(20, metadata.keyBytes());
+        assertEquals(54, metadata.valueBytes());
+
+        assertFalse(dao.get(segment("b"), segment("c")).hasNext());
+        Iterator<Entry<MemorySegment>> range = dao.get(segment("a8"), segment("c1"));
+        for (String key : new String[]{"a8", "a9", "c0"}) {
+            assertEquals(key, Utf8.toString(range.next().key().toByteArray()));
+        }
+        assertFalse(range.hasNext());
+        assertNull(dao.get(segment("b0")));
+        assertNull(dao.get(segment("c5")));
+    }
+
+    @Test
+    void leveledCompactionKeepsNewestVersions() throws IOException {
+        dao.close();
+        Config config = new Config(dir, 1 << 20)
+                .withCompaction(Config.Compaction.DEFAULT.withStrategy(Config.Compaction.Strategy.LEVELED));
+        dao = DAOFactory.create(config);
+        Map<String, String> expected = new HashMap<>();
+        for (int round = 0; round < 20; round++) {
+            for (int i = round % 3; i < 100; i += 3) {
+                dao.upsert(new BaseEntry<>(segment("key" + i), segment("value" + i + "_" + round)));
+                expected.put("key" + i, "value" + i + "_" + round);
+            }
+            dao.upsert(new BaseEntry<>(segment("key" + round), null));
+            expected.remove("key" + round);
+            dao.flush();
+        }
+        // Compaction runs in background and close doesn't wait for the rounds it hasn't started
+        ((LsmDao) dao).awaitCompaction();
+        assertTrue(level0((LsmDao) dao) < config.compaction().minTables());
+        dao.close();
+        dao = DAOFactory.create(config);
+
+        assertTrue(level0((LsmDao) dao) < config.compaction().minTables());
+        for (int i = 0; i < 100; i++) {
+            Entry<MemorySegment> entry = dao.get(segment("key" + i));
+            String value = expected.get("key" + i);
+            if (value == null) {
+                assertNull(entry);
+            } else {
+                assertEquals(value, Utf8.toString(entry.value().toByteArray()));
+            }
+        }
+    }
+
+    @Test
+    void unlistedFilesOfOthersSurviveReopen() throws IOException {
+        dao.upsert(new BaseEntry<>(segment("key1"), segment("value1")));
+        Path foreign = Files.writeString(dir.resolve("backup.txt"), "not a table");
+        Path leftover = Files.writeString(dir.resolve("100" + SSTable.INDEX + SSTable.TEMP), "");
+        reopen();
+
+        assertTrue(Files.exists(foreign));
+        assertFalse(Files.exists(leftover));
+        assertEquals("value1", Utf8.toString(dao.get(segment("key1")).value().toByteArray()));
+    }
+
+    private static long level0(LsmDao dao) {
+        return dao.getStorage().ssTables().stream().filter(t -> t.getLevel() == 0).count();
+    }
+
+    private void reopen() throws IOException {
+        dao.close();
+        dao = DAOFactory.create(new Config(dir, 1 << 20));
+    }
+
+    private static MemorySegment segment(String data) {
+        return MemorySegment.ofArray(Utf8.toBytes(data));
+    }
+}
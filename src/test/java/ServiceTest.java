@@ -0,0 +1,468 @@
+import jdk.incubator.foreign.MemorySegment;
+import lsm.BaseEntry;
+import lsm.Config;
+import lsm.DAOFactory;
+import lsm.Dao;
+import lsm.Entry;
+import lsm.WriteStallException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import service.Service;
+import service.ServiceConfig;
+import service.ServiceFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ServiceTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final int ABSENT = -1;
+
+    @TempDir
+    Path dir;
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(TIMEOUT)
+            .build();
+    private Dao<MemorySegment, Entry<MemorySegment>> dao;
+    private Service service;
+    private int port;
+
+    @AfterEach
+    void finish() throws IOException {
+        if (service != null) {
+            service.stop();
+        }
+        if (dao != null) {
+            dao.close();
+        }
+    }
+
+    @Test
+    void stalledWritesAreAnsweredWithRetryLater() throws Exception {
+        start(new Dao<>() {
+            @Override
+            public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to) {
+                return Collections.emptyIterator();
+            }
+
+            @Override
+            public void upsert(Entry<MemorySegment> entry) {
+                throw new WriteStallException("Writes are stopped");
+            }
+        });
+
+        HttpResponse<byte[]> put = send(HttpRequest.newBuilder(uri("/v0/entity?id=key"))
+                .PUT(HttpRequest.BodyPublishers.ofString("value")));
+        assertEquals(503, put.statusCode());
+        assertEquals("1", put.headers().firstValue("Retry-After").orElse(null));
+
+        HttpResponse<byte[]> delete = send(HttpRequest.newBuilder(uri("/v0/entity?id=key")).DELETE());
+        assertEquals(503, delete.statusCode());
+        assertEquals("1", delete.headers().firstValue("Retry-After").orElse(null));
+
+        assertEquals(404, send(HttpRequest.newBuilder(uri("/v0/entity?id=key")).GET()).statusCode());
+
+        HttpResponse<byte[]> batch = send(HttpRequest.newBuilder(uri("/v0/batch"))
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(upserts("key", "value"))));
+        assertEquals(503, batch.statusCode());
+        assertEquals("1", batch.headers().firstValue("Retry-After").orElse(null));
+    }
+
+    @Test
+    void fullQueueIsAnsweredWithRetryLater() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        start(blockingGets(entered, release, calls), config -> config
+                .withExecution(ServiceConfig.Execution.POOL, 1)
+                .withQueue(1, TIMEOUT.toMillis()));
+        try {
+            CompletableFuture<HttpResponse<byte[]>> handled = sendAsync(uri("/v0/entity?id=a"));
+            assertTrue(entered.await(TIMEOUT.toSeconds(), TimeUnit.SECONDS));
+            // One of them is queued, the other finds the only worker and the queue busy
+            List<CompletableFuture<HttpResponse<byte[]>>> waiting
+                    = List.of(sendAsync(uri("/v0/entity?id=b")), sendAsync(uri("/v0/entity?id=c")));
+            HttpResponse<?> rejected = (HttpResponse<?>) CompletableFuture
+                    .anyOf(waiting.toArray(new CompletableFuture[0]))
+                    .get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+            assertEquals(503, rejected.statusCode());
+            assertEquals("1", rejected.headers().firstValue("Retry-After").orElse(null));
+
+            release.countDown();
+            assertEquals(404, handled.get(TIMEOUT.toSeconds(), TimeUnit.SECONDS).statusCode());
+            for (CompletableFuture<HttpResponse<byte[]>> response : waiting) {
+                if (response.get(TIMEOUT.toSeconds(), TimeUnit.SECONDS) != rejected) {
+                    assertEquals(404, response.get().statusCode());
+                }
+            }
+            assertEquals(2, calls.get());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    void requestQueuedPastTimeoutIsAnsweredWithoutDaoCall() throws Exception {
+        long timeoutMillis = 100;
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        start(blockingGets(entered, release, calls), config -> config
+                .withExecution(ServiceConfig.Execution.POOL, 1)
+                .withQueue(10, timeoutMillis));
+        try {
+            CompletableFuture<HttpResponse<byte[]>> handled = sendAsync(uri("/v0/entity?id=a"));
+            assertTrue(entered.await(TIMEOUT.toSeconds(), TimeUnit.SECONDS));
+            CompletableFuture<HttpResponse<byte[]>> queued = sendAsync(uri("/v0/entity?id=b"));
+            // The worker is held for several timeouts, so the queued request outlives its deadline
+            Thread.sleep(5 * timeoutMillis);
+            release.countDown();
+
+            assertEquals(404, handled.get(TIMEOUT.toSeconds(), TimeUnit.SECONDS).statusCode());
+            HttpResponse<byte[]> expired = queued.get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+            assertEquals(503, expired.statusCode());
+            assertEquals("1", expired.headers().firstValue("Retry-After").orElse(null));
+            assertEquals(1, calls.get());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    void batchUpsertsAndDeletesAreReadByBatchGet() throws Exception {
+        start();
+        assertEquals(201, send(HttpRequest.newBuilder(uri("/v0/entity?id=k3"))
+                .PUT(HttpRequest.BodyPublishers.ofString("old"))).statusCode());
+
+        HttpResponse<byte[]> batch = send(HttpRequest.newBuilder(uri("/v0/batch"))
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(upserts("k1", "v1", "k2", "", "k3", null, "k1", "v1'"))));
+        assertEquals(201, batch.statusCode());
+
+        assertEquals("v1'", string(send(HttpRequest.newBuilder(uri("/v0/entity?id=k1")).GET()).body()));
+        assertEquals(404, send(HttpRequest.newBuilder(uri("/v0/entity?id=k3")).GET()).statusCode());
+
+        HttpResponse<byte[]> values = send(HttpRequest.newBuilder(uri("/v0/batch/get"))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(keys("k1", "k2", "k3", "k4"))));
+        assertEquals(200, values.statusCode());
+        ByteBuffer body = ByteBuffer.wrap(values.body());
+        assertEquals("v1'", nextValue(body));
+        assertEquals("", nextValue(body));
+        assertNull(nextValue(body));
+        assertNull(nextValue(body));
+        assertEquals(0, body.remaining());
+    }
+
+    @Test
+    void malformedBatchIsRejected() throws Exception {
+        start();
+        byte[] truncated = upserts("key", "value");
+        truncated = Arrays.copyOf(truncated, truncated.length - 1);
+
+        assertEquals(400, send(HttpRequest.newBuilder(uri("/v0/batch"))
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(truncated))).statusCode());
+        assertEquals(400, send(HttpRequest.newBuilder(uri("/v0/batch/get"))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(new byte[]{0, 0, 0, 9, 'k'}))).statusCode());
+        assertEquals(404, send(HttpRequest.newBuilder(uri("/v0/entity?id=key")).GET()).statusCode());
+    }
+
+    @Test
+    void entitiesAreStreamedWithoutTombstones() throws Exception {
+        start();
+        for (int i = 0; i < 10; i++) {
+            dao.upsert(new BaseEntry<>(segment("k" + i), segment("v" + i)));
+        }
+        dao.upsert(new BaseEntry<>(segment("k3"), null));
+
+        HttpResponse<byte[]> range = send(HttpRequest.newBuilder(uri("/v0/entities?start=k2&end=k6")).GET());
+        assertEquals(200, range.statusCode());
+        assertEquals(List.of("k2", "v2", "k4", "v4", "k5", "v5"), entities(range.body()));
+
+        assertEquals(List.of("k8", "v8", "k9", "v9"),
+                entities(send(HttpRequest.newBuilder(uri("/v0/entities?start=k8")).GET()).body()));
+
+        dao.upsert(new BaseEntry<>(segment("n\nk"), segment("v\n")));
+        dao.upsert(new BaseEntry<>(segment("n"), segment("")));
+        assertEquals(List.of("n", "", "n\nk", "v\n"),
+                entities(send(HttpRequest.newBuilder(uri("/v0/entities?start=n&end=o")).GET()).body()));
+
+        HttpResponse<byte[]> empty = send(HttpRequest.newBuilder(uri("/v0/entities?start=z")).GET());
+        assertEquals(200, empty.statusCode());
+        assertEquals(0, empty.body().length);
+    }
+
+    @Test
+    void longRangesAreStreamedAcrossBuffersAndTombstones() throws Exception {
+        start();
+        String padding = "x".repeat(100);
+        for (int i = 0; i < 20_000; i++) {
+            dao.upsert(new BaseEntry<>(segment(key(i)), segment(padding + i)));
+        }
+        dao.flush();
+        for (int i = 5_000; i < 15_000; i++) {
+            dao.upsert(new BaseEntry<>(segment(key(i)), null));
+        }
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            if (i < 5_000 || i >= 15_000) {
+                expected.add(key(i));
+                expected.add(padding + i);
+            }
+        }
+
+        HttpResponse<byte[]> range = send(HttpRequest.newBuilder(uri("/v0/entities?start=" + key(0))).GET());
+        assertEquals(200, range.statusCode());
+        assertEquals(expected, entities(range.body()));
+    }
+
+    @Test
+    void entitiesNeedStart() throws Exception {
+        start();
+        assertEquals(400, send(HttpRequest.newBuilder(uri("/v0/entities")).GET()).statusCode());
+        assertEquals(400, send(HttpRequest.newBuilder(uri("/v0/entities?start=")).GET()).statusCode());
+        assertEquals(400, send(HttpRequest.newBuilder(uri("/v0/entities?start=a&end=")).GET()).statusCode());
+    }
+
+    @Test
+    void valuesAreServedFromMemoryAndTables() throws Exception {
+        start();
+        byte[] big = new byte[1 << 19];
+        for (int i = 0; i < big.length; i++) {
+            big[i] = (byte) (i * 31);
+        }
+        dao.upsert(new BaseEntry<>(segment("big"), MemorySegment.ofArray(big)));
+        dao.upsert(new BaseEntry<>(segment("empty"), segment("")));
+        dao.upsert(new BaseEntry<>(segment("small"), segment("value")));
+        checkValues(big);
+
+        dao.flush();
+        checkValues(big);
+    }
+
+    @Test
+    void valuesAreServedFromCompressedTables() throws Exception {
+        start(DAOFactory.create(new Config(dir, 1 << 20).withTableFormat(Config.TableFormat.BLOCK)
+                .withCompression(Config.Compression.DEFLATE).withBlockCacheBytes(1 << 20)));
+        for (int i = 0; i < 1000; i++) {
+            dao.upsert(new BaseEntry<>(segment(key(i)), segment("value" + i)));
+        }
+        dao.flush();
+
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 1000; i += 7) {
+                HttpResponse<byte[]> response = send(HttpRequest.newBuilder(uri("/v0/entity?id=" + key(i))).GET());
+                assertEquals(200, response.statusCode());
+                assertEquals("value" + i, string(response.body()));
+            }
+        }
+    }
+
+    @Test
+    void stopReleasesUnsentBodyBeforeDaoIsClosed() throws Exception {
+        start();
+        byte[] big = new byte[32 << 20];
+        dao.upsert(new BaseEntry<>(segment("big"), MemorySegment.ofArray(big)));
+        dao.flush();
+
+        // The client reads only the start of the response, the rest of the mapped value waits in the session
+        try (Socket client = new Socket("localhost", port)) {
+            client.getOutputStream().write("GET /v0/entity?id=big HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            assertEquals('H', client.getInputStream().read());
+
+            service.stop();
+            service = null;
+            dao.close();
+            dao = null;
+        }
+    }
+
+    @Test
+    void metricsCountRequestsAndDaoCalls() throws Exception {
+        start();
+        send(HttpRequest.newBuilder(uri("/v0/entity?id=k1")).PUT(HttpRequest.BodyPublishers.ofString("v1")));
+        send(HttpRequest.newBuilder(uri("/v0/entity?id=k1")).GET());
+        send(HttpRequest.newBuilder(uri("/v0/entity?id=k2")).GET());
+        send(HttpRequest.newBuilder(uri("/v0/entities?start=k")).GET());
+
+        HttpResponse<byte[]> response = send(HttpRequest.newBuilder(uri("/v0/metrics")).GET());
+        assertEquals(200, response.statusCode());
+        assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("text/plain; version=0.0.4"));
+        List<String> lines = string(response.body()).lines().toList();
+        assertTrue(lines.contains("# TYPE http_responses_total counter"));
+        assertTrue(lines.contains("http_responses_total{code=\"201\"} 1"));
+        assertTrue(lines.contains("http_responses_total{code=\"200\"} 2"));
+        assertTrue(lines.contains("http_responses_total{code=\"404\"} 1"));
+        assertTrue(lines.contains("lsm_upsert_seconds_count 1"));
+        assertTrue(lines.contains("lsm_get_seconds_count 2"));
+        assertTrue(lines.contains("lsm_range_seconds_count 1"));
+        assertTrue(lines.contains("lsm_memtable_keys 1"));
+        assertTrue(lines.contains("lsm_sstables 0"));
+    }
+
+    private void start() throws IOException {
+        start(DAOFactory.create(new Config(dir, 1 << 20)));
+    }
+
+    private void start(Dao<MemorySegment, Entry<MemorySegment>> dao) throws IOException {
+        start(dao, UnaryOperator.identity());
+    }
+
+    private void start(Dao<MemorySegment, Entry<MemorySegment>> dao,
+                       UnaryOperator<ServiceConfig> config) throws IOException {
+        this.dao = dao;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        service = ServiceFactory.create(config.apply(new ServiceConfig(port)), dao);
+        service.start();
+    }
+
+    /**
+     * Dao without entries whose point get counts the call and blocks until released.
+     */
+    private static Dao<MemorySegment, Entry<MemorySegment>> blockingGets(CountDownLatch entered,
+                                                                          CountDownLatch release,
+                                                                          AtomicInteger calls) {
+        return new Dao<>() {
+            @Override
+            public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to) {
+                return Collections.emptyIterator();
+            }
+
+            @Override
+            public Entry<MemorySegment> get(MemorySegment key) throws InterruptedIOException {
+                calls.incrementAndGet();
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                return null;
+            }
+
+            @Override
+            public void upsert(Entry<MemorySegment> entry) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private URI uri(String pathAndQuery) {
+        return URI.create("http://localhost:" + port + pathAndQuery);
+    }
+
+    private HttpResponse<byte[]> send(HttpRequest.Builder request) throws IOException, InterruptedException {
+        return client.send(request.timeout(TIMEOUT).build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private CompletableFuture<HttpResponse<byte[]>> sendAsync(URI uri) {
+        return client.sendAsync(HttpRequest.newBuilder(uri).timeout(TIMEOUT).GET().build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private void checkValues(byte[] big) throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = send(HttpRequest.newBuilder(uri("/v0/entity?id=big")).GET());
+        assertEquals(200, response.statusCode());
+        assertArrayEquals(big, response.body());
+
+        response = send(HttpRequest.newBuilder(uri("/v0/entity?id=empty")).GET());
+        assertEquals(200, response.statusCode());
+        assertEquals(0, response.body().length);
+
+        assertEquals("value", string(send(HttpRequest.newBuilder(uri("/v0/entity?id=small")).GET()).body()));
+        assertEquals(404, send(HttpRequest.newBuilder(uri("/v0/entity?id=absent")).GET()).statusCode());
+    }
+
+    /**
+     * Body of {@code PUT /v0/batch}: pairs of key and value, null value deletes the key.
+     */
+    private static byte[] upserts(String... keysAndValues) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            put(buffer, keysAndValues[i]);
+            put(buffer, keysAndValues[i + 1]);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static byte[] keys(String... keys) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        for (String key : keys) {
+            put(buffer, key);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static void put(ByteBuffer buffer, String data) {
+        if (data == null) {
+            buffer.putInt(ABSENT);
+            return;
+        }
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static String nextValue(ByteBuffer body) {
+        int length = body.getInt();
+        if (length == ABSENT) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        body.get(value);
+        return string(value);
+    }
+
+    /**
+     * Keys and values of a streamed range in order, decoded from the joined chunks.
+     */
+    private static List<String> entities(byte[] body) {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        List<String> entities = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            entities.add(nextValue(buffer));
+        }
+        return entities;
+    }
+
+    private static String key(int i) {
+        return String.format("key%06d", i);
+    }
+
+    private static MemorySegment segment(String data) {
+        return MemorySegment.ofArray(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
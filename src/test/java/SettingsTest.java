@@ -0,0 +1,115 @@
+import lsm.Config;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import service.ServiceConfig;
+import service.Settings;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SettingsTest {
+    private static final long MIB = 1024L * 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void defaultsWithoutOtherSources() throws IOException {
+        Settings settings = Settings.load(new String[0], Map.of());
+        ServiceConfig service = settings.serviceConfig();
+        Config dao = settings.daoConfig(dir);
+
+        assertEquals(8080, service.port());
+        assertEquals(ServiceConfig.Execution.POOL, service.execution());
+        assertEquals(ServiceConfig.DEFAULT_QUEUE_SIZE, service.queueSize());
+        assertEquals(4 * MIB, dao.flushThresholdBytes());
+        assertEquals(Config.MemTable.HEAP, dao.memTable());
+        assertEquals(Config.TableFormat.DENSE, dao.tableFormat());
+        assertEquals(0, dao.blockCacheBytes());
+        assertNull(settings.dataPath());
+    }
+
+    @Test
+    void everySourceOverridesThePreviousOne() throws IOException {
+        Path file = properties("http.port=9000", "http.queueSize=10", "http.workers=3", "lsm.memTable=ARENA");
+        Map<String, String> env = Map.of("LSM_HTTP_QUEUE_SIZE", "20", "LSM_HTTP_WORKERS", "4");
+        Settings settings = Settings.load(new String[]{"--config=" + file, "--http.workers=5", "data"}, env);
+        ServiceConfig service = settings.serviceConfig();
+
+        assertEquals(9000, service.port());
+        assertEquals(20, service.queueSize());
+        assertEquals(5, service.workers());
+        assertEquals(0, service.keepAliveSeconds());
+        assertEquals(Config.MemTable.ARENA, settings.daoConfig(dir).memTable());
+        assertEquals(Path.of("data"), settings.dataPath());
+    }
+
+    @Test
+    void environmentNamesKeysInUpperSnakeCase() throws IOException {
+        Path file = properties("lsm.flushThreads=3");
+        Map<String, String> env = Map.of(
+                "LSM_CONFIG", file.toString(),
+                "LSM_MEM_TABLE", "arena",
+                "LSM_COMPACTION_STRATEGY", "leveled",
+                "LSM_HTTP_REQUEST_TIMEOUT_MILLIS", " 250 ");
+        Settings settings = Settings.load(new String[0], env);
+        Config dao = settings.daoConfig(dir);
+
+        assertEquals(3, dao.flushThreads());
+        assertEquals(Config.MemTable.ARENA, dao.memTable());
+        assertEquals(Config.Compaction.Strategy.LEVELED, dao.compaction().strategy());
+        assertEquals(250, settings.serviceConfig().requestTimeoutMillis());
+    }
+
+    @Test
+    void unknownKeysAndMalformedValuesAreRejected() throws IOException {
+        Path file = properties("http.queueSzie=10");
+        assertThrows(IllegalArgumentException.class, () -> load("--http.queueSzie=10"));
+        assertThrows(IllegalArgumentException.class, () -> load("--config=" + file));
+        assertThrows(IllegalArgumentException.class, () -> load("--http.queueSize"));
+        assertThrows(IllegalArgumentException.class, () -> load("--http.queueSize=many"));
+        assertThrows(IllegalArgumentException.class, () -> load("--lsm.memTable=OFFHEAP"));
+        assertThrows(IllegalArgumentException.class,
+                () -> Settings.load(new String[0], Map.of("LSM_HTTP_PORT", "http")));
+    }
+
+    @Test
+    void sizesMayHaveSuffix() throws IOException {
+        assertEquals(512, load("--lsm.flushThresholdBytes=512").daoConfig(dir).flushThresholdBytes());
+        assertEquals(64 * 1024, load("--lsm.flushThresholdBytes=64k").daoConfig(dir).flushThresholdBytes());
+        assertEquals(2 * MIB, load("--lsm.flushThresholdBytes=2M").daoConfig(dir).flushThresholdBytes());
+        assertEquals(1024 * MIB, load("--heap.maxBytes=1g").serviceConfig().maxHeapBytes());
+
+        assertThrows(IllegalArgumentException.class, () -> load("--lsm.flushThresholdBytes=12x"));
+        assertThrows(IllegalArgumentException.class, () -> load("--lsm.flushThresholdBytes=k"));
+        assertThrows(IllegalArgumentException.class, () -> load("--lsm.flushThresholdBytes=99999999999g"));
+    }
+
+    @Test
+    void heapMustFitMemoryTables() throws IOException {
+        // Default limits: 4 tables waiting for flush and the active one, 4 MiB each, in half of the heap
+        Settings settings = load();
+        settings.checkHeap(64 * MIB);
+        assertThrows(IllegalStateException.class, () -> settings.checkHeap(32 * MIB));
+
+        load("--heap.memTablePercent=80").checkHeap(32 * MIB);
+        load("--lsm.flushThresholdBytes=1m").checkHeap(32 * MIB);
+        load("--lsm.memTable=ARENA").checkHeap(MIB);
+        assertThrows(IllegalStateException.class, () -> load("--lsm.maxImmutableTables=20").checkHeap(64 * MIB));
+    }
+
+    private static Settings load(String... args) throws IOException {
+        return Settings.load(args, Map.of());
+    }
+
+    private Path properties(String... lines) throws IOException {
+        return Files.write(Files.createTempFile(dir, "settings", ".properties"), List.of(lines));
+    }
+}
@@ -0,0 +1,98 @@
+import lsm.Config;
+import lsm.WriteStallException;
+import lsm.dao.Storage;
+import lsm.dao.WriteStall;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteStallTest {
+    private static final Config.WriteStall LIMITS = new Config.WriteStall(4, 2, 5_000, 200);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void writesAreNotDelayedBelowLimits() {
+        WriteStall stall = new WriteStall(LIMITS);
+        Storage storage = storage(1, true);
+        stall.beforeWrite(() -> storage);
+
+        assertEquals(new WriteStall.Stats(0, 0, 0, 0, 0), stall.stats());
+    }
+
+    @Test
+    void writesSlowDownWhileTablesWaitForFlush() {
+        WriteStall stall = new WriteStall(LIMITS);
+        Storage storage = storage(2, false);
+        stall.beforeWrite(() -> storage);
+        stall.beforeWrite(() -> storage);
+
+        WriteStall.Stats stats = stall.stats();
+        assertEquals(2, stats.slowdowns());
+        assertTrue(stats.slowdownNanos() >= 2 * TimeUnit.MICROSECONDS.toNanos(LIMITS.slowdownMicros()));
+        assertEquals(0, stats.stops());
+    }
+
+    @Test
+    void stoppedWriteFailsAfterTimeout() {
+        WriteStall stall = new WriteStall(LIMITS);
+        Storage storage = storage(4, true);
+        long start = System.nanoTime();
+        assertThrows(WriteStallException.class, () -> stall.beforeWrite(() -> storage));
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(LIMITS.timeoutMillis()));
+        WriteStall.Stats stats = stall.stats();
+        assertEquals(1, stats.stops());
+        assertEquals(1, stats.timeouts());
+        assertTrue(stats.stopNanos() >= TimeUnit.MILLISECONDS.toNanos(LIMITS.timeoutMillis()));
+    }
+
+    @Test
+    void stoppedWriteResumesAfterFlush() throws InterruptedException {
+        WriteStall stall = new WriteStall(new Config.WriteStall(4, 2, 5_000, 10_000));
+        AtomicReference<Storage> storage = new AtomicReference<>(storage(4, true));
+        Thread flush = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            storage.set(storage(3, true));
+            stall.flushed();
+        });
+        flush.start();
+        long start = System.nanoTime();
+        stall.beforeWrite(storage::get);
+        flush.join();
+
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        WriteStall.Stats stats = stall.stats();
+        assertEquals(1, stats.stops());
+        assertEquals(0, stats.timeouts());
+    }
+
+    /**
+     * @param flushing number of sealed tables waiting for flush
+     * @param full whether the table receiving writes is full
+     */
+    private Storage storage(int flushing, boolean full) {
+        Config config = new Config(dir, 1 << 20);
+        List<Storage.Memory> sealed = new ArrayList<>();
+        for (int i = 0; i < flushing; i++) {
+            sealed.add(Storage.Memory.create(config));
+        }
+        Storage.Memory memory = Storage.Memory.create(config);
+        memory.isOversize().set(full);
+        return new Storage(memory, null, sealed, List.of(), config);
+    }
+}
@@ -0,0 +1,152 @@
+package lsm.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import lsm.BaseEntry;
+import lsm.Config;
+import one.nio.util.Utf8;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Memory marked with key "older" is sealed first, and its table is written only when the test releases it,
+ * after the newer memory is already written.
+ */
+class FlushPipelineTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @TempDir
+    Path dir;
+
+    private Config config;
+    private ExecutorService flushes;
+    private final CountDownLatch olderStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseOlder = new CountDownLatch(1);
+    private final CountDownLatch newerWritten = new CountDownLatch(1);
+
+    @BeforeEach
+    void start() {
+        config = new Config(dir, 1 << 20).withFlushThreads(2);
+        flushes = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    void finish() {
+        releaseOlder.countDown();
+        flushes.shutdownNow();
+    }
+
+    @Test
+    void tablesWrittenOutOfOrderAreInstalledOldestFirst() throws Exception {
+        try (LsmDao dao = new LsmDao(config, (table, memory) -> write(table, memory, false))) {
+            Future<?> olderFlush = flushOlderAndNewer(dao);
+            Future<?> newerFlush = flushes.submit(() -> flush(dao));
+            assertTrue(newerWritten.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+            assertTrue(dao.getStorage().ssTables().isEmpty());
+            assertEquals(2, dao.getStorage().flushing().size());
+            assertFalse(newerFlush.isDone());
+            assertEquals("2", string(dao.get(segment("key")).value()));
+
+            releaseOlder.countDown();
+            olderFlush.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            newerFlush.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+            List<SSTable> tables = dao.getStorage().ssTables();
+            assertEquals(2, tables.size());
+            assertTrue(dao.getStorage().flushing().isEmpty());
+            assertNotNull(LsmDao.getFromTables(tables.subList(0, 1), segment("older")));
+            assertEquals("2", string(LsmDao.getFromTables(tables.subList(1, 2), segment("key")).value()));
+            assertEquals("2", string(dao.get(segment("key")).value()));
+        }
+        try (LsmDao dao = new LsmDao(config)) {
+            assertEquals("2", string(dao.get(segment("key")).value()));
+        }
+    }
+
+    @Test
+    void failedFlushFailsWaitersAndInstallsNothingAfterIt() throws Exception {
+        LsmDao dao = new LsmDao(config, (table, memory) -> write(table, memory, true));
+        Future<?> olderFlush = flushOlderAndNewer(dao);
+        Future<?> newerFlush = flushes.submit(() -> flush(dao));
+        assertTrue(newerWritten.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        releaseOlder.countDown();
+
+        for (Future<?> flush : List.of(olderFlush, newerFlush)) {
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> flush.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(dao.getStorage().ssTables().isEmpty());
+        assertEquals("2", string(dao.get(segment("key")).value()));
+        assertThrows(IOException.class, dao::flush);
+        assertThrows(IOException.class, dao::close);
+
+        try (LsmDao reopened = new LsmDao(config)) {
+            assertEquals("2", string(reopened.get(segment("key")).value()));
+            assertNotNull(reopened.get(segment("older")));
+        }
+    }
+
+    /**
+     * Seals the older memory in background, waits until its write starts and puts newer values.
+     */
+    private Future<?> flushOlderAndNewer(LsmDao dao) throws InterruptedException {
+        dao.upsert(new BaseEntry<>(segment("key"), segment("1")));
+        dao.upsert(new BaseEntry<>(segment("older"), segment("")));
+        Future<?> olderFlush = flushes.submit(() -> flush(dao));
+        assertTrue(olderStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        dao.upsert(new BaseEntry<>(segment("key"), segment("2")));
+        return olderFlush;
+    }
+
+    private SSTable write(Path table, Storage.Memory memory, boolean failOlder) throws IOException {
+        if (memory.get(segment("older")) == null) {
+            SSTable written = SSTable.writeTable(table, memory.get(null, null), memory.count(), 0, config, null);
+            newerWritten.countDown();
+            return written;
+        }
+        olderStarted.countDown();
+        try {
+            releaseOlder.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (failOlder) {
+            throw new IOException("No space left on device");
+        }
+        return SSTable.writeTable(table, memory.get(null, null), memory.count(), 0, config, null);
+    }
+
+    private static Void flush(LsmDao dao) throws IOException {
+        dao.flush();
+        return null;
+    }
+
+    private static String string(MemorySegment segment) {
+        return Utf8.toString(segment.toByteArray());
+    }
+
+    private static MemorySegment segment(String data) {
+        return MemorySegment.ofArray(Utf8.toBytes(data));
+    }
+}